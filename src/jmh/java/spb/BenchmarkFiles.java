@@ -0,0 +1,28 @@
+package spb;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+class BenchmarkFiles {
+
+    // fixed seed: the benchmarks should always work with the same data
+    private static final long SEED = 42;
+
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(SEED).nextBytes(bytes);
+        return bytes;
+    }
+
+    static Path createRandomFile(String prefix, int size) throws IOException {
+        Path file = Files.createTempFile("spb-jmh-" + prefix, ".bin");
+        Files.write(file, randomBytes(size));
+        return file;
+    }
+
+    static byte[] secretKey() {
+        return randomBytes(32);
+    }
+}
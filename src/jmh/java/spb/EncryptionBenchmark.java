@@ -0,0 +1,88 @@
+package spb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stream encryption and decryption of content objects, with and without data key caching.
+ * With many small files the per message cost (data key generation and wrapping) dominates.
+ * Every encryption gets the name hash of another file, like in a backup: whether the data key is reused is decided
+ * by {@link Encryption} as for a real backup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncryptionBenchmark {
+
+    static final DataKeyCacheConfig CACHE_CONFIG = new DataKeyCacheConfig(300, 10_000, 10L * 1024 * 1024 * 1024);
+    private static final int FILE_NAME_HASHES = 1024;
+
+    @Param({"1024", "1048576", "16777216"})
+    int fileSize;
+
+    @Param({"false", "true"})
+    boolean dataKeyCaching;
+
+    Encryption encryption;
+    Path originalFile;
+    Path encryptedFile;
+    Path decryptedFile;
+    String[] fileNameHashes;
+    int nextFileNameHash;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        encryption = new Encryption(BenchmarkFiles.secretKey(), dataKeyCaching ? CACHE_CONFIG : null);
+        originalFile = BenchmarkFiles.createRandomFile("original", fileSize);
+        encryptedFile = Files.createTempFile("spb-jmh-encrypted", ".bin");
+        decryptedFile = Files.createTempFile("spb-jmh-decrypted", ".bin");
+        // calculated up front: only the encryption is measured
+        fileNameHashes = new String[FILE_NAME_HASHES];
+        for (int i = 0; i < FILE_NAME_HASHES; i++) {
+            fileNameHashes[i] = encryption.createFileNameHash(Path.of("folder", "file-" + i + ".bin"));
+        }
+        encryption.encryptFile(originalFile, encryptedFile, fileNameHashes[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        Files.deleteIfExists(originalFile);
+        Files.deleteIfExists(encryptedFile);
+        Files.deleteIfExists(decryptedFile);
+    }
+
+    @Benchmark
+    public Path encryptFile() throws IOException {
+        // a separate target: encryptedFile must stay intact for decryptFile
+        String fileNameHash = fileNameHashes[nextFileNameHash];
+        nextFileNameHash = (nextFileNameHash + 1) % FILE_NAME_HASHES;
+        encryption.encryptFile(originalFile, decryptedFile, fileNameHash);
+        return decryptedFile;
+    }
+
+    @Benchmark
+    public Path decryptFile() throws IOException {
+        encryption.decryptFile(encryptedFile, decryptedFile);
+        return decryptedFile;
+    }
+
+}
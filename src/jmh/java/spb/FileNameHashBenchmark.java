@@ -0,0 +1,40 @@
+package spb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AESCMAC of the relative path which is calculated for every changed and every restored file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileNameHashBenchmark {
+
+    Encryption encryption;
+    Path relativePath = Path.of("photos/2021/holidays/IMG_20210815_123456.jpg");
+
+    @Setup
+    public void setup() {
+        encryption = new Encryption(BenchmarkFiles.secretKey(), null);
+    }
+
+    @Benchmark
+    public String createFileNameHash() {
+        return encryption.createFileNameHash(relativePath);
+    }
+}
@@ -0,0 +1,72 @@
+package spb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of metadata objects, with and without the encryption which is part of every
+ * metadata read and write.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataBenchmark {
+
+    @Param({"false", "true"})
+    boolean dataKeyCaching;
+
+    Encryption encryption;
+    Path relativePath = Path.of("photos/2021/holidays/IMG_20210815_123456.jpg");
+    String sha256Base64 = "47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=";
+    String contentVersionId = "sesN1qhjd6h13bsG.IIUfXeAFYE5AX7h";
+    Instant creationDate = Instant.now();
+    String encodedMetadata;
+    byte[] encryptedMetadata;
+
+    @Setup
+    public void setup() {
+        encryption = new Encryption(BenchmarkFiles.secretKey(),
+                dataKeyCaching ? EncryptionBenchmark.CACHE_CONFIG : null);
+        encodedMetadata = Impl.encodeMetadata(relativePath, sha256Base64, 123_456, contentVersionId, null);
+        encryptedMetadata = encryption.encrypt(encodedMetadata.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public String encode() {
+        return Impl.encodeMetadata(relativePath, sha256Base64, 123_456, contentVersionId, null);
+    }
+
+    @Benchmark
+    public Impl.FileMetadata decode() {
+        return Impl.decodeMetadata(encodedMetadata, "backup/nameHash/", creationDate);
+    }
+
+    @Benchmark
+    public byte[] encodeAndEncrypt() {
+        String metadata = Impl.encodeMetadata(relativePath, sha256Base64, 123_456, contentVersionId, null);
+        return encryption.encrypt(metadata.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public Impl.FileMetadata decryptAndDecode() {
+        String metadata = new String(encryption.decrypt(encryptedMetadata), StandardCharsets.UTF_8);
+        return Impl.decodeMetadata(metadata, "backup/nameHash/", creationDate);
+    }
+}
@@ -0,0 +1,35 @@
+package spb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ignore check runs for every file during the walk, twice per backup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShouldIgnoreFileBenchmark {
+
+    @Param({"/Users/andi/my-data/photos/2021/holidays/IMG_20210815_123456.jpg",
+            "/Users/andi/my-data/photos/2021/holidays/.DS_Store"})
+    String file;
+
+    @Benchmark
+    public boolean shouldIgnoreFile() {
+        return Impl.shouldIgnoreFile(file);
+    }
+}
@@ -0,0 +1,165 @@
+package spb;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The local progress journal of a backup, which lets the next run continue an interrupted backup.
+ * <p>
+ * The journal records every completed file and every started multipart upload with its uploaded parts.
+ * Encrypted files which are uploaded via multipart upload are staged next to the journal, because
+ * re-encrypting a file results in a different ciphertext and the already uploaded parts could not be reused.
+ * <p>
+ * The journal is a {@link Journal} with these entries:
+ * <pre>
+ * completed,nameHash,size,lastModifiedMillis,sha256
+ * multipart,nameHash,size,lastModifiedMillis,sha256,uploadId
+ * part,nameHash,partNumber,sha256
+ * </pre>
+ * The journal and the staged files are deleted after the backup finished successfully.
+ */
+public class BackupCheckpoint implements AutoCloseable {
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String STAGING_FOLDER = "staging";
+
+    private static final Logger logger = LoggerFactory.getLogger("spb");
+
+    /**
+     * Identifies the state of an original file: if size and last modified time are unchanged,
+     * the sha256 doesn't need to be calculated again.
+     *
+     * @param sha256Base64 null while only the tree hash of a new or changed file is known: the sha256 is calculated
+     *                     when the file is encrypted, before the state is recorded
+     */
+    public record FileState(long size, long lastModifiedMillis, @Nullable String sha256Base64) {
+    }
+
+    public record MultipartUploadState(String uploadId, FileState fileState, Map<Integer, String> partChecksums) {
+    }
+
+    private final Path folder;
+    private final Map<String, FileState> completedFiles = new ConcurrentHashMap<>();
+    private final Map<String, MultipartUploadState> multipartUploads = new ConcurrentHashMap<>();
+    private final Journal journal;
+
+    private BackupCheckpoint(Path folder) throws IOException {
+        this.folder = folder;
+        Files.createDirectories(folder.resolve(STAGING_FOLDER));
+        journal = Journal.open(folder.resolve(JOURNAL_FILE), "checkpoint", this::readEntry);
+        if (!completedFiles.isEmpty() || !multipartUploads.isEmpty()) {
+            logger.info("resuming interrupted backup: {} completed files and {} multipart uploads in checkpoint {}",
+                    completedFiles.size(), multipartUploads.size(), folder);
+        }
+    }
+
+    public static BackupCheckpoint open(Path folder) throws IOException {
+        return new BackupCheckpoint(folder);
+    }
+
+    private void readEntry(String entry) {
+        String[] parts = entry.split(",", 6);
+        switch (parts[0]) {
+            case "completed" -> completedFiles.put(parts[1], fileState(parts));
+            case "multipart" -> multipartUploads.put(parts[1],
+                    new MultipartUploadState(parts[5], fileState(parts), new ConcurrentHashMap<>()));
+            case "part" -> {
+                MultipartUploadState upload = multipartUploads.get(parts[1]);
+                if (upload != null) {
+                    upload.partChecksums().put(Integer.parseInt(parts[2]), parts[3]);
+                }
+            }
+            default -> throw new IllegalArgumentException("unknown entry");
+        }
+    }
+
+    private static FileState fileState(String[] parts) {
+        if (parts[4].isEmpty()) {
+            throw new IllegalArgumentException("missing sha256");
+        }
+        return new FileState(Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4]);
+    }
+
+    /**
+     * The recorded state of the file if it was completed or its multipart upload was started
+     * and the file didn't change since then.
+     */
+    public @Nullable FileState unchangedFileState(String fileNameHash, long size, long lastModifiedMillis) {
+        FileState fileState = completedFiles.get(fileNameHash);
+        if (fileState == null && multipartUploads.containsKey(fileNameHash)) {
+            fileState = multipartUploads.get(fileNameHash).fileState();
+        }
+        if (fileState != null && fileState.size() == size && fileState.lastModifiedMillis() == lastModifiedMillis) {
+            return fileState;
+        }
+        return null;
+    }
+
+    /**
+     * The multipart upload of this exact file content which can be resumed.
+     */
+    public @Nullable MultipartUploadState resumableMultipartUpload(String fileNameHash, String originalFileSha256Base64) {
+        MultipartUploadState upload = multipartUploads.get(fileNameHash);
+        if (upload != null && upload.fileState().sha256Base64().equals(originalFileSha256Base64)
+                && Files.exists(stagingFile(fileNameHash))) {
+            return upload;
+        }
+        return null;
+    }
+
+    public Set<String> multipartUploadIds() {
+        Set<String> result = new HashSet<>();
+        multipartUploads.values().forEach(upload -> result.add(upload.uploadId()));
+        return result;
+    }
+
+    public Path stagingFile(String fileNameHash) {
+        return folder.resolve(STAGING_FOLDER).resolve(fileNameHash);
+    }
+
+    public void fileCompleted(String fileNameHash, FileState fileState) throws IOException {
+        completedFiles.put(fileNameHash, fileState);
+        multipartUploads.remove(fileNameHash);
+        journal.append("completed," + fileNameHash + "," + fileState(fileState));
+        Files.deleteIfExists(stagingFile(fileNameHash));
+    }
+
+    public void multipartUploadStarted(String fileNameHash, FileState fileState, String uploadId) throws IOException {
+        multipartUploads.put(fileNameHash, new MultipartUploadState(uploadId, fileState, new ConcurrentHashMap<>()));
+        journal.append("multipart," + fileNameHash + "," + fileState(fileState) + "," + uploadId);
+    }
+
+    public void partUploaded(String fileNameHash, int partNumber, String sha256Base64) throws IOException {
+        MultipartUploadState upload = multipartUploads.get(fileNameHash);
+        if (upload != null) {
+            upload.partChecksums().put(partNumber, sha256Base64);
+        }
+        journal.append("part," + fileNameHash + "," + partNumber + "," + sha256Base64);
+    }
+
+    private static String fileState(FileState fileState) {
+        return fileState.size() + "," + fileState.lastModifiedMillis() + "," + fileState.sha256Base64();
+    }
+
+    /**
+     * The backup finished successfully: the journal and all staged files are not needed anymore.
+     */
+    public void finish() throws IOException {
+        close();
+        Util.deleteFolderRecursively(folder);
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+}
@@ -8,9 +8,11 @@ import java.util.List;
 public record BackupFolderSummary(String backupName,
                                   String backupFolder,
                                   List<BackedUpFile> backedUpFiles,
-                                  List<DeletedFile> deletedFiles) {
+                                  List<DeletedFile> deletedFiles,
+                                  List<FailedDelete> failedDeletes) {
 
-    public sealed interface BackedUpFile permits BackedUpFile.UnchangedFile, BackedUpFile.ChangedFile {
+    public sealed interface BackedUpFile permits BackedUpFile.UnchangedFile, BackedUpFile.ChangedFile, BackedUpFile.MovedFile,
+            BackedUpFile.DeduplicatedFile, BackedUpFile.SkippedFile {
         String relativePath();
 
         record UnchangedFile(String relativePath) implements BackedUpFile {
@@ -23,11 +25,46 @@ public record BackupFolderSummary(String backupName,
 
         }
 
+        /**
+         * A new file with the same content as a deleted file: only its metadata was uploaded, referencing
+         * the content of the deleted file.
+         */
+        record MovedFile(String relativePath,
+                         String movedFrom) implements BackedUpFile {
+
+        }
+
+        /**
+         * A new or changed file whose content was already uploaded: only its metadata was uploaded, referencing
+         * the existing content object.
+         */
+        record DeduplicatedFile(String relativePath,
+                                String sha256Base64,
+                                long fileSizeInBytes) implements BackedUpFile {
+
+        }
+
+        /**
+         * A file which kept changing while it was backed up: nothing was uploaded, the previous version stays
+         * the latest one in the backup.
+         */
+        record SkippedFile(String relativePath,
+                           String reason) implements BackedUpFile {
+
+        }
+
     }
 
 
     public record DeletedFile(String relativePath) {
 
     }
+
+    /**
+     * A deleted file which couldn't be deleted in the backup, even after retrying.
+     */
+    public record FailedDelete(String relativePath, String error) {
+
+    }
 }
 
@@ -0,0 +1,40 @@
+package spb;
+
+import java.time.LocalTime;
+import java.util.List;
+
+/**
+ * Limits for the bandwidth used by uploads and downloads. 0 bytes per second means unlimited.
+ * The first schedule which applies at a time of day and sets a limit overrides the default limit.
+ *
+ * @param adaptive reduce the rate when S3 responds with 503 Slow Down and slowly increase it again afterwards
+ */
+public record BandwidthConfig(long uploadBytesPerSecond,
+                              long downloadBytesPerSecond,
+                              List<BandwidthSchedule> schedules,
+                              boolean adaptive) {
+
+    public static final BandwidthConfig UNLIMITED = new BandwidthConfig(0, 0, List.of(), false);
+
+    public boolean isEnabled() {
+        return adaptive || uploadBytesPerSecond > 0 || downloadBytesPerSecond > 0 || !schedules.isEmpty();
+    }
+
+    public long uploadBytesPerSecondAt(LocalTime time) {
+        for (BandwidthSchedule schedule : schedules) {
+            if (schedule.appliesAt(time) && schedule.uploadBytesPerSecond() != null) {
+                return schedule.uploadBytesPerSecond();
+            }
+        }
+        return uploadBytesPerSecond;
+    }
+
+    public long downloadBytesPerSecondAt(LocalTime time) {
+        for (BandwidthSchedule schedule : schedules) {
+            if (schedule.appliesAt(time) && schedule.downloadBytesPerSecond() != null) {
+                return schedule.downloadBytesPerSecond();
+            }
+        }
+        return downloadBytesPerSecond;
+    }
+}
@@ -0,0 +1,24 @@
+package spb;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.time.LocalTime;
+
+/**
+ * Bandwidth limits for a time of day window, e.g. 08:00-18:00. A window can span midnight (22:00-06:00).
+ *
+ * @param uploadBytesPerSecond   null means the default upload limit applies, 0 means unlimited
+ * @param downloadBytesPerSecond null means the default download limit applies, 0 means unlimited
+ */
+public record BandwidthSchedule(LocalTime from,
+                                LocalTime to,
+                                @Nullable Long uploadBytesPerSecond,
+                                @Nullable Long downloadBytesPerSecond) {
+
+    public boolean appliesAt(LocalTime time) {
+        if (from.isBefore(to)) {
+            return !time.isBefore(from) && time.isBefore(to);
+        }
+        return !time.isBefore(from) || time.isBefore(to);
+    }
+}
@@ -0,0 +1,90 @@
+package spb;
+
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.SdkHttpMethod;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalTime;
+import java.util.Optional;
+
+/**
+ * Limits the bandwidth of the synchronous S3 client: request bodies are read and response bodies are
+ * consumed through a {@link RateLimiter} for uploads and one for downloads.
+ * <p>
+ * The interceptor sees every attempt, including retries, and reports 503 responses to the limiter of
+ * the direction of the request, which reduces its rate in adaptive mode.
+ */
+public class BandwidthThrottlingInterceptor implements ExecutionInterceptor {
+
+    private static final int SLOW_DOWN_STATUS_CODE = 503;
+
+    private final RateLimiter uploadLimiter;
+    private final RateLimiter downloadLimiter;
+
+    public BandwidthThrottlingInterceptor(BandwidthConfig bandwidthConfig) {
+        uploadLimiter = new RateLimiter("upload",
+                () -> bandwidthConfig.uploadBytesPerSecondAt(LocalTime.now()),
+                bandwidthConfig.adaptive());
+        downloadLimiter = new RateLimiter("download",
+                () -> bandwidthConfig.downloadBytesPerSecondAt(LocalTime.now()),
+                bandwidthConfig.adaptive());
+    }
+
+    @Override
+    public Optional<RequestBody> modifyHttpContent(Context.ModifyHttpRequest context, ExecutionAttributes executionAttributes) {
+        return context.requestBody().map(requestBody -> RequestBody.fromContentProvider(
+                () -> new ThrottledInputStream(requestBody.contentStreamProvider().newStream(), uploadLimiter),
+                requestBody.contentLength(),
+                requestBody.contentType()));
+    }
+
+    @Override
+    public Optional<InputStream> modifyHttpResponseContent(Context.ModifyHttpResponse context, ExecutionAttributes executionAttributes) {
+        return context.responseBody().map(responseBody -> new ThrottledInputStream(responseBody, downloadLimiter));
+    }
+
+    @Override
+    public void afterTransmission(Context.AfterTransmission context, ExecutionAttributes executionAttributes) {
+        SdkHttpMethod method = context.httpRequest().method();
+        RateLimiter rateLimiter = method == SdkHttpMethod.GET || method == SdkHttpMethod.HEAD ? downloadLimiter : uploadLimiter;
+        int statusCode = context.httpResponse().statusCode();
+        if (statusCode == SLOW_DOWN_STATUS_CODE) {
+            rateLimiter.throttled();
+        } else if (context.httpResponse().isSuccessful()) {
+            rateLimiter.succeeded();
+        }
+    }
+
+    private static class ThrottledInputStream extends FilterInputStream {
+
+        private final RateLimiter rateLimiter;
+
+        ThrottledInputStream(InputStream in, RateLimiter rateLimiter) {
+            super(in);
+            this.rateLimiter = rateLimiter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result >= 0) {
+                rateLimiter.acquire(1);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                rateLimiter.acquire(read);
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package spb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import static spb.Util.DIVIDER;
+
+@CommandLine.Command(name = "benchmark-crypto", mixinStandardHelpOptions = true,
+        description = "measure the SHA256 and AES-GCM throughput of every available provider on this machine")
+public class BenchmarkCrypto implements Callable<Integer> {
+
+    private final Logger logger = LoggerFactory.getLogger("SPB");
+
+    @CommandLine.Option(names = {"--seconds"}, description = "How long every provider is measured, after a warmup " +
+            "of the same duration. Default is 3", paramLabel = "seconds", required = false)
+    private int seconds = 3;
+
+    @Override
+    public Integer call() throws Exception {
+        if (seconds <= 0) {
+            logger.error("--seconds must be positive");
+            return 1;
+        }
+        Duration duration = Duration.ofSeconds(seconds);
+        CryptoProviders.selectProviders(CryptoConfig.DEFAULT);
+        benchmark(CryptoProviders.SHA_256, CryptoProviders.sha256Provider(), duration);
+        benchmark(CryptoProviders.AES_GCM, CryptoProviders.aesGcmProvider(), duration);
+        logger.info(DIVIDER);
+        logger.info("set crypto.sha256-provider and crypto.aes-gcm-provider to 'jdk' or 'bouncycastle' to override the selection");
+        return 0;
+    }
+
+    private void benchmark(String algorithm, Provider selectedProvider, Duration duration) throws GeneralSecurityException {
+        logger.info(DIVIDER);
+        Map<String, Boolean> intrinsics = CryptoProviders.intrinsics(algorithm);
+        logger.info("{} (intrinsics: {})", algorithm, intrinsics.isEmpty() ? "unknown" : intrinsics);
+        for (CryptoProvider cryptoProvider : List.of(CryptoProvider.JDK, CryptoProvider.BOUNCYCASTLE)) {
+            Provider provider = CryptoProviders.provider(cryptoProvider, algorithm);
+            CryptoProviders.megabytesPerSecond(algorithm, provider, duration);
+            double megabytesPerSecond = CryptoProviders.megabytesPerSecond(algorithm, provider, duration);
+            logger.info("{} ({}): {} MB/s{}", cryptoProvider.name().toLowerCase(), provider.getName(),
+                    String.format(Locale.ROOT, "%.1f", megabytesPerSecond), provider == selectedProvider ? " (selected)" : "");
+        }
+    }
+}
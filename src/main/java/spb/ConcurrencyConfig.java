@@ -0,0 +1,18 @@
+package spb;
+
+/**
+ * @param adaptive       adjust the number of concurrent S3 requests, disk reads and encryptions to the observed
+ *                       latency, throughput and errors. Otherwise only the maximum applies.
+ * @param maxConcurrency the size of the thread pools and the upper bound of every limit
+ */
+public record ConcurrencyConfig(boolean adaptive, int maxConcurrency) {
+
+    /**
+     * More concurrent requests than pooled connections only wait for a connection, while every one of them holds
+     * its buffers.
+     */
+    public static ConcurrencyConfig defaultFor(HttpClientConfig httpClientConfig) {
+        return new ConcurrencyConfig(true, httpClientConfig.maxConnections());
+    }
+
+}
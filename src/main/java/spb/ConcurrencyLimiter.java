@@ -0,0 +1,169 @@
+package spb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many operations of one kind (S3 requests, disk reads, encryptions) run at the same time.
+ * <p>
+ * In adaptive mode the limit is adjusted once per second, based on the operations completed in that second:
+ * <ul>
+ *     <li>any failed operation: multiplicative decrease of the limit by 25%</li>
+ *     <li>the limit wasn't reached: no change, the limit isn't the bottleneck</li>
+ *     <li>throughput improved or latency is close to the lowest observed latency: increase by one</li>
+ *     <li>latency is more than twice the lowest observed latency without better throughput: decrease by one,
+ *     more operations only queue up</li>
+ * </ul>
+ */
+public class ConcurrencyLimiter {
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double THROUGHPUT_IMPROVEMENT = 1.05;
+    private static final double LATENCY_TOLERANCE = 1.5;
+    private static final double LATENCY_OVERLOAD = 2.0;
+    // lets the baseline latency follow slowly when conditions change
+    private static final double MIN_LATENCY_DRIFT = 1.001;
+
+    private static final Logger logger = LoggerFactory.getLogger("spb");
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final boolean adaptive;
+
+    private int limit;
+    private int inFlight;
+    private int maxLimitReached;
+
+    private long windowStartNanos = System.nanoTime();
+    private long windowBytes;
+    private long windowCompleted;
+    private long windowLatencyNanos;
+    private int windowMaxInFlight;
+    private boolean windowFailed;
+    private double previousThroughput;
+    private double minLatencyNanos = Double.MAX_VALUE;
+
+    public ConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit, boolean adaptive) {
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.adaptive = adaptive;
+        this.limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+        this.maxLimitReached = limit;
+    }
+
+    /**
+     * A running operation. Call {@link #completed(long)} when it succeeded: closing it without means the operation failed.
+     */
+    public class Permit implements AutoCloseable {
+        private final long startNanos = System.nanoTime();
+        private boolean completed;
+        private long bytes;
+        private boolean closed;
+
+        public void completed(long bytes) {
+            this.completed = true;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            release(System.nanoTime() - startNanos, bytes, completed);
+        }
+    }
+
+    /**
+     * Blocks until one more operation is allowed.
+     */
+    public Permit acquire() throws InterruptedIOException {
+        synchronized (this) {
+            try {
+                while (inFlight >= limit) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for " + name);
+            }
+            inFlight++;
+            windowMaxInFlight = Math.max(windowMaxInFlight, inFlight);
+        }
+        return new Permit();
+    }
+
+    private synchronized void release(long latencyNanos, long bytes, boolean completed) {
+        inFlight--;
+        if (completed) {
+            windowCompleted++;
+            windowBytes += bytes;
+            windowLatencyNanos += latencyNanos;
+        } else {
+            windowFailed = true;
+        }
+        long now = System.nanoTime();
+        if (adaptive && now - windowStartNanos >= WINDOW_NANOS) {
+            adjustLimit(now);
+        }
+        notifyAll();
+    }
+
+    private void adjustLimit(long now) {
+        int newLimit = limit;
+        if (windowFailed) {
+            newLimit = (int) (limit * 0.75);
+        } else if (windowCompleted > 0 && windowMaxInFlight >= limit) {
+            double elapsedSeconds = (double) (now - windowStartNanos) / WINDOW_NANOS;
+            // operations without bytes (e.g. small requests) are measured in operations per second
+            double throughput = (windowBytes > 0 ? windowBytes : windowCompleted) / elapsedSeconds;
+            double latencyNanos = (double) windowLatencyNanos / windowCompleted;
+            minLatencyNanos = Math.min(latencyNanos, minLatencyNanos * MIN_LATENCY_DRIFT);
+            if (throughput > previousThroughput * THROUGHPUT_IMPROVEMENT || latencyNanos <= minLatencyNanos * LATENCY_TOLERANCE) {
+                newLimit = limit + 1;
+            } else if (latencyNanos > minLatencyNanos * LATENCY_OVERLOAD) {
+                newLimit = limit - 1;
+            }
+            previousThroughput = throughput;
+        }
+        newLimit = Math.max(minLimit, Math.min(newLimit, maxLimit));
+        if (newLimit != limit) {
+            logger.debug("{} concurrency limit {} -> {}", name, limit, newLimit);
+            limit = newLimit;
+            maxLimitReached = Math.max(maxLimitReached, limit);
+        }
+        windowStartNanos = now;
+        windowBytes = 0;
+        windowCompleted = 0;
+        windowLatencyNanos = 0;
+        windowMaxInFlight = inFlight;
+        windowFailed = false;
+    }
+
+    public synchronized int limit() {
+        return limit;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    public synchronized int maxLimitReached() {
+        return maxLimitReached;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + " limit " + limit + " (max " + maxLimitReached + ")";
+    }
+}
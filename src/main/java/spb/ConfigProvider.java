@@ -1,5 +1,9 @@
 package spb;
 
+import org.jetbrains.annotations.Nullable;
+
+import java.net.URI;
+import java.nio.file.Path;
 import java.util.List;
 
 public interface ConfigProvider {
@@ -12,4 +16,106 @@ public interface ConfigProvider {
     List<FolderToBackupConfig> getFoldersBackupConfig();
 
     int getMultiPartUploadLimitInBytes();
+
+    /**
+     * null means data key caching is disabled: every encrypted object gets a new data key.
+     */
+    default @Nullable DataKeyCacheConfig getDataKeyCacheConfig() {
+        return null;
+    }
+
+    /**
+     * An alternative S3 compatible endpoint, for example a local stand-in. null means the default AWS S3 endpoint.
+     * Requests to an endpoint override use path style addressing.
+     */
+    default @Nullable URI getS3EndpointOverride() {
+        return null;
+    }
+
+    /**
+     * null means the region is resolved by the SDK: env values, system properties or the AWS config file.
+     */
+    default @Nullable String getS3Region() {
+        return null;
+    }
+
+    default S3TransferBackend getS3TransferBackend() {
+        return S3TransferBackend.SYNC;
+    }
+
+    /**
+     * Only used by the {@link S3TransferBackend#CRT} backend to size its connection pool and part parallelism.
+     */
+    default double getS3TargetThroughputInGbps() {
+        return 10.0;
+    }
+
+    /**
+     * HTTP client and retry settings of the synchronous S3 client.
+     */
+    default HttpClientConfig getHttpClientConfig() {
+        return HttpClientConfig.DEFAULT;
+    }
+
+    /**
+     * Where the progress of running backups is recorded, so that an interrupted backup can be resumed.
+     */
+    default Path getCheckpointFolder() {
+        return Path.of(System.getProperty("user.home"), ".spb", "checkpoints");
+    }
+
+    /**
+     * Where data which never changes, like decrypted metadata versions, is cached across runs.
+     */
+    default Path getCacheFolder() {
+        return Path.of(System.getProperty("user.home"), ".spb", "cache");
+    }
+
+    /**
+     * Whether identical file contents are uploaded only once across all backups in the bucket: files with
+     * the content of an already uploaded file reference its content object.
+     */
+    default boolean isDedupEnabled() {
+        return false;
+    }
+
+    /**
+     * null means every file is hashed with SHA256 by a single thread.
+     */
+    default @Nullable TreeHashConfig getTreeHashConfig() {
+        return null;
+    }
+
+    /**
+     * How often a file which changed while it was backed up is tried again, before it is skipped until the next backup.
+     */
+    default int getModifiedFileRetries() {
+        return 3;
+    }
+
+    default CryptoConfig getCryptoConfig() {
+        return CryptoConfig.DEFAULT;
+    }
+
+    default BandwidthConfig getBandwidthConfig() {
+        return BandwidthConfig.UNLIMITED;
+    }
+
+    default ConcurrencyConfig getConcurrencyConfig() {
+        return ConcurrencyConfig.defaultFor(getHttpClientConfig());
+    }
+
+    /**
+     * Where a JSON report with the performance metrics of every run is written. null means no report.
+     */
+    default @Nullable Path getMetricsReportFolder() {
+        return null;
+    }
+
+    /**
+     * Where the metrics of every run are exported to in addition to the report. null means no export.
+     */
+    default @Nullable MetricsExportConfig getMetricsExportConfig() {
+        return null;
+    }
 }
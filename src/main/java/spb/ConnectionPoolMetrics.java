@@ -0,0 +1,86 @@
+package spb;
+
+import org.slf4j.Logger;
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+import software.amazon.awssdk.metrics.MetricRecord;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the connection pool metrics the SDK reports for every request: how many connections were leased,
+ * how many requests had to wait for a connection and how long acquiring a connection took.
+ */
+public class ConnectionPoolMetrics implements MetricPublisher {
+
+    private final AtomicInteger maxConcurrency = new AtomicInteger();
+    private final AtomicInteger maxLeasedConcurrency = new AtomicInteger();
+    private final AtomicInteger maxPendingAcquires = new AtomicInteger();
+    private final AtomicLong requestsWithPendingAcquires = new AtomicLong();
+    private final AtomicLong acquireCount = new AtomicLong();
+    private final AtomicLong totalAcquireNanos = new AtomicLong();
+    private final AtomicLong maxAcquireNanos = new AtomicLong();
+
+    @Override
+    public void publish(MetricCollection metricCollection) {
+        for (MetricRecord<?> metricRecord : metricCollection) {
+            record(metricRecord);
+        }
+        for (MetricCollection child : metricCollection.children()) {
+            publish(child);
+        }
+    }
+
+    private void record(MetricRecord<?> metricRecord) {
+        if (metricRecord.metric().equals(HttpMetric.MAX_CONCURRENCY)) {
+            maxConcurrency.accumulateAndGet((Integer) metricRecord.value(), Math::max);
+        } else if (metricRecord.metric().equals(HttpMetric.LEASED_CONCURRENCY)) {
+            maxLeasedConcurrency.accumulateAndGet((Integer) metricRecord.value(), Math::max);
+        } else if (metricRecord.metric().equals(HttpMetric.PENDING_CONCURRENCY_ACQUIRES)) {
+            int pending = (Integer) metricRecord.value();
+            maxPendingAcquires.accumulateAndGet(pending, Math::max);
+            if (pending > 0) {
+                requestsWithPendingAcquires.incrementAndGet();
+            }
+        } else if (metricRecord.metric().equals(HttpMetric.CONCURRENCY_ACQUIRE_DURATION)) {
+            long nanos = ((Duration) metricRecord.value()).toNanos();
+            acquireCount.incrementAndGet();
+            totalAcquireNanos.addAndGet(nanos);
+            maxAcquireNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    public void logSummary(Logger logger) {
+        long count = acquireCount.get();
+        if (count == 0) {
+            return;
+        }
+        logger.info("connection pool: max connections {}, max leased {}, max pending {}, {} of {} requests waited for a connection",
+                maxConcurrency.get(), maxLeasedConcurrency.get(), maxPendingAcquires.get(), requestsWithPendingAcquires.get(), count);
+        logger.info("connection pool: acquire time avg {}ms, max {}ms",
+                totalAcquireNanos.get() / count / 1_000_000.0, maxAcquireNanos.get() / 1_000_000.0);
+    }
+
+    public Map<String, Object> toMap() {
+        long count = acquireCount.get();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("maxConnections", maxConcurrency.get());
+        result.put("maxLeased", maxLeasedConcurrency.get());
+        result.put("maxPendingAcquires", maxPendingAcquires.get());
+        result.put("requestsWithPendingAcquires", requestsWithPendingAcquires.get());
+        result.put("acquires", count);
+        result.put("avgAcquireMillis", count == 0 ? 0.0 : totalAcquireNanos.get() / count / 1_000_000.0);
+        result.put("maxAcquireMillis", maxAcquireNanos.get() / 1_000_000.0);
+        return result;
+    }
+
+    @Override
+    public void close() {
+
+    }
+}
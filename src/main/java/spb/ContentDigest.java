@@ -0,0 +1,57 @@
+package spb;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Hashes bytes as they are read, e.g. while a file is encrypted, to the same type of hash as a hash stored in the
+ * metadata: a SHA256 or a {@link TreeHash}.
+ */
+public interface ContentDigest {
+
+    void update(byte[] bytes, int offset, int length);
+
+    String hash();
+
+    static ContentDigest like(String hash) throws NoSuchAlgorithmException {
+        if (TreeHash.isTreeHash(hash)) {
+            return TreeHash.digest(TreeHash.segmentSize(hash));
+        }
+        return sha256();
+    }
+
+    static ContentDigest sha256() throws NoSuchAlgorithmException {
+        MessageDigest messageDigest = CryptoProviders.sha256();
+        return new ContentDigest() {
+            @Override
+            public void update(byte[] bytes, int offset, int length) {
+                messageDigest.update(bytes, offset, length);
+            }
+
+            @Override
+            public String hash() {
+                return Base64.getEncoder().encodeToString(messageDigest.digest());
+            }
+        };
+    }
+
+    /**
+     * Updates both digests with the same bytes, e.g. to calculate a second hash in the same pass. The hash is the
+     * one of the first digest.
+     */
+    static ContentDigest both(ContentDigest first, ContentDigest second) {
+        return new ContentDigest() {
+            @Override
+            public void update(byte[] bytes, int offset, int length) {
+                first.update(bytes, offset, length);
+                second.update(bytes, offset, length);
+            }
+
+            @Override
+            public String hash() {
+                return first.hash();
+            }
+        };
+    }
+}
@@ -0,0 +1,137 @@
+package spb;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A local index of all content objects in the bucket, across backups, by the keyed hash of their content
+ * (see {@link Encryption#createContentHash(String, long)}). Used to upload identical file contents only once.
+ * <p>
+ * The index also knows which files, of all backups, reference a content object: a content object may only be
+ * deleted once no file references it anymore.
+ * <p>
+ * The index is a {@link Journal} with these entries. A later content object for the same content hash replaces
+ * the earlier one:
+ * <pre>
+ * contentHash,contentVersionId,contentObjectKey
+ * ref,contentObjectKey,objectKey
+ * unref,contentObjectKey,objectKey
+ * built
+ * </pre>
+ * The index can always be rebuilt from the metadata of the backups.
+ */
+public class ContentIndex implements AutoCloseable {
+
+    public record ContentObject(String contentObjectKey, String contentVersionId) {
+    }
+
+    private final Map<String, ContentObject> contentObjects = new ConcurrentHashMap<>();
+    // content object key -> object keys of the referencing files
+    private final Map<String, Set<String>> references = new ConcurrentHashMap<>();
+    private final Journal journal;
+    private volatile boolean built;
+
+    private ContentIndex(Path file) throws IOException {
+        journal = Journal.open(file, "content index", this::readEntry);
+    }
+
+    public static ContentIndex open(Path file) throws IOException {
+        return new ContentIndex(file);
+    }
+
+    private void readEntry(String entry) {
+        if (entry.equals("built")) {
+            built = true;
+            return;
+        }
+        String[] parts = entry.split(",", 3);
+        if (parts.length != 3 || parts[2].isEmpty()) {
+            throw new IllegalArgumentException("missing key");
+        }
+        switch (parts[0]) {
+            case "ref" -> putReference(parts[1], parts[2]);
+            case "unref" -> takeReference(parts[1], parts[2]);
+            default -> contentObjects.put(parts[0], new ContentObject(parts[2], parts[1]));
+        }
+    }
+
+    /**
+     * Whether the index was completely built from the metadata of the backups. Otherwise, e.g. if it didn't exist
+     * before or building it was interrupted, it must be built (again).
+     */
+    public boolean isBuilt() {
+        return built;
+    }
+
+    public void built() throws IOException {
+        if (!built) {
+            built = true;
+            journal.append("built");
+        }
+    }
+
+    public @Nullable ContentObject contentObject(String contentHash) {
+        return contentObjects.get(contentHash);
+    }
+
+    public void addContentObject(String contentHash, ContentObject contentObject) throws IOException {
+        if (!contentObject.equals(contentObjects.put(contentHash, contentObject))) {
+            journal.append(contentHash + "," + contentObject.contentVersionId() + "," + contentObject.contentObjectKey());
+        }
+    }
+
+    /**
+     * Records that the file with the given metadata object key prefix references the content object.
+     */
+    public void addReference(String contentObjectKey, String objectKey) throws IOException {
+        if (putReference(contentObjectKey, objectKey)) {
+            journal.append("ref," + contentObjectKey + "," + objectKey);
+        }
+    }
+
+    /**
+     * Records that the file doesn't reference the content object anymore, e.g. because it was deleted.
+     */
+    public void removeReference(String contentObjectKey, String objectKey) throws IOException {
+        if (takeReference(contentObjectKey, objectKey)) {
+            journal.append("unref," + contentObjectKey + "," + objectKey);
+        }
+    }
+
+    private boolean putReference(String contentObjectKey, String objectKey) {
+        boolean[] added = new boolean[1];
+        references.compute(contentObjectKey, (key, objectKeys) -> {
+            Set<String> result = objectKeys == null ? new HashSet<>() : objectKeys;
+            added[0] = result.add(objectKey);
+            return result;
+        });
+        return added[0];
+    }
+
+    private boolean takeReference(String contentObjectKey, String objectKey) {
+        boolean[] removed = new boolean[1];
+        references.computeIfPresent(contentObjectKey, (key, objectKeys) -> {
+            removed[0] = objectKeys.remove(objectKey);
+            return objectKeys.isEmpty() ? null : objectKeys;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Whether any file of any backup references the content object.
+     */
+    public boolean isReferenced(String contentObjectKey) {
+        return references.containsKey(contentObjectKey);
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+}
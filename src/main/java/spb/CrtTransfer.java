@@ -0,0 +1,68 @@
+package spb;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.transfer.s3.S3TransferManager;
+import software.amazon.awssdk.transfer.s3.model.CompletedFileUpload;
+import software.amazon.awssdk.transfer.s3.model.DownloadFileRequest;
+import software.amazon.awssdk.transfer.s3.model.UploadFileRequest;
+
+import java.nio.file.Path;
+
+/**
+ * Transfers content objects via the S3 Transfer Manager and the CRT based client: a single file
+ * is uploaded and downloaded as many parts in parallel over a shared connection pool,
+ * without any threads of our own.
+ */
+public class CrtTransfer implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger("spb");
+
+    private final String bucketName;
+    private final S3AsyncClient s3AsyncClient;
+    private final S3TransferManager transferManager;
+
+    public CrtTransfer(ConfigProvider configProvider) {
+        this.bucketName = configProvider.getBucketName();
+        this.s3AsyncClient = S3ClientFactory.createCrtClient(configProvider);
+        this.transferManager = S3TransferManager.builder()
+                .s3Client(s3AsyncClient)
+                .build();
+    }
+
+    /**
+     * @return the version id of the uploaded object
+     */
+    public String uploadFile(String objectKey, Path file) {
+        UploadFileRequest uploadFileRequest = UploadFileRequest.builder()
+                .putObjectRequest(builder -> builder
+                        .bucket(bucketName)
+                        .key(objectKey)
+                        .checksumAlgorithm(ChecksumAlgorithm.SHA256))
+                .source(file)
+                .build();
+        CompletedFileUpload completedFileUpload = transferManager.uploadFile(uploadFileRequest).completionFuture().join();
+        logger.debug("uploaded {} via transfer manager: {}", objectKey, completedFileUpload.response());
+        return completedFileUpload.response().versionId();
+    }
+
+    public void downloadFile(String objectKey, @Nullable String versionId, Path target) {
+        DownloadFileRequest downloadFileRequest = DownloadFileRequest.builder()
+                .getObjectRequest(builder -> builder
+                        .bucket(bucketName)
+                        .key(objectKey)
+                        .versionId(versionId))
+                .destination(target)
+                .build();
+        transferManager.downloadFile(downloadFileRequest).completionFuture().join();
+    }
+
+    @Override
+    public void close() {
+        transferManager.close();
+        s3AsyncClient.close();
+    }
+}
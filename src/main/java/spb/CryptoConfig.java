@@ -0,0 +1,10 @@
+package spb;
+
+/**
+ * The providers used for hashing files with SHA256 and for the AES-GCM encryption of objects.
+ */
+public record CryptoConfig(CryptoProvider sha256Provider, CryptoProvider aesGcmProvider) {
+
+    public static final CryptoConfig DEFAULT = new CryptoConfig(CryptoProvider.AUTO, CryptoProvider.AUTO);
+
+}
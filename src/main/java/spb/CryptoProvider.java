@@ -0,0 +1,19 @@
+package spb;
+
+/**
+ * The security provider used for a cryptographic primitive.
+ */
+public enum CryptoProvider {
+    /**
+     * The fastest provider available on this machine, see {@link CryptoProviders}.
+     */
+    AUTO,
+    /**
+     * The providers of the JDK, which use the AES and SHA instructions of the CPU via intrinsics.
+     */
+    JDK,
+    /**
+     * The pure Java BouncyCastle provider.
+     */
+    BOUNCYCASTLE
+}
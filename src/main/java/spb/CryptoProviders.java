@@ -0,0 +1,247 @@
+package spb;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selects the security providers for SHA256 and AES-GCM.
+ * <p>
+ * {@link CryptoProvider#AUTO} uses the JDK providers, unless the JVM reports their intrinsics (using AES-NI, the SHA
+ * extensions or their ARMv8 equivalents) as disabled: then both providers are measured for a moment and the
+ * faster one is used. A native image can't report its intrinsics and always uses the JDK providers. Reading the
+ * options of the JVM takes a noticeable part of the startup: it is done in the background and until then the JDK
+ * providers are used, which calculate the same results.
+ * <p>
+ * SHA256 is used via {@link #sha256()}. The AWS Encryption SDK doesn't accept a provider: BouncyCastle is used for
+ * AES-GCM by registering it as the most preferred provider.
+ */
+public final class CryptoProviders {
+
+    static final String SHA_256 = "SHA-256";
+    static final String AES_GCM = "AES/GCM/NoPadding";
+
+    // the JVM disables these when the CPU lacks the instructions. The intrinsics themselves are diagnostic options,
+    // which aren't visible without -XX:+UnlockDiagnosticVMOptions
+    static final List<String> SHA_256_INTRINSICS = List.of("UseSHA");
+    static final List<String> AES_GCM_INTRINSICS = List.of("UseAES");
+
+    private static final Duration AUTO_MEASUREMENT = Duration.ofMillis(100);
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int GCM_TAG_BITS = 128;
+    private static final int GCM_IV_BYTES = 12;
+
+    private static final Logger logger = LoggerFactory.getLogger("spb");
+
+    private static volatile Provider sha256Provider = provider(CryptoProvider.JDK, SHA_256);
+    private static volatile Provider aesGcmProvider = provider(CryptoProvider.JDK, AES_GCM);
+    // a selection in the background is discarded if the providers were configured again in the meantime
+    private static int configurations;
+
+    private CryptoProviders() {
+    }
+
+    // creating the provider registers hundreds of algorithms: only done when it's used, not on every startup
+    private static class BouncyCastle {
+        static final Provider PROVIDER = new BouncyCastleProvider();
+    }
+
+    public static synchronized void configure(CryptoConfig cryptoConfig) {
+        if (cryptoConfig.sha256Provider() != CryptoProvider.AUTO && cryptoConfig.aesGcmProvider() != CryptoProvider.AUTO) {
+            selectProviders(cryptoConfig);
+            return;
+        }
+        int configuration = ++configurations;
+        useProviders(provider(cryptoConfig.sha256Provider(), SHA_256), provider(cryptoConfig.aesGcmProvider(), AES_GCM));
+        Thread thread = new Thread(() -> {
+            Provider selectedSha256Provider = select(SHA_256, cryptoConfig.sha256Provider(), SHA_256_INTRINSICS);
+            Provider selectedAesGcmProvider = select(AES_GCM, cryptoConfig.aesGcmProvider(), AES_GCM_INTRINSICS);
+            synchronized (CryptoProviders.class) {
+                if (configuration == configurations) {
+                    useProviders(selectedSha256Provider, selectedAesGcmProvider);
+                }
+            }
+        }, "crypto-providers");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Selects the providers right away, including the measurement for {@link CryptoProvider#AUTO}.
+     */
+    static synchronized void selectProviders(CryptoConfig cryptoConfig) {
+        configurations++;
+        useProviders(select(SHA_256, cryptoConfig.sha256Provider(), SHA_256_INTRINSICS),
+                select(AES_GCM, cryptoConfig.aesGcmProvider(), AES_GCM_INTRINSICS));
+    }
+
+    private static void useProviders(Provider newSha256Provider, Provider newAesGcmProvider) {
+        sha256Provider = newSha256Provider;
+        aesGcmProvider = newAesGcmProvider;
+        if (aesGcmProvider.getName().equals(BouncyCastleProvider.PROVIDER_NAME)) {
+            if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+                Security.insertProviderAt(aesGcmProvider, 1);
+            }
+        } else {
+            Security.removeProvider(BouncyCastleProvider.PROVIDER_NAME);
+        }
+    }
+
+    public static MessageDigest sha256() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(SHA_256, sha256Provider);
+    }
+
+    public static Provider sha256Provider() {
+        return sha256Provider;
+    }
+
+    public static Provider aesGcmProvider() {
+        return aesGcmProvider;
+    }
+
+    /**
+     * The provider for the algorithm: the JDK falls back to BouncyCastle when its provider isn't available.
+     *
+     * @param cryptoProvider {@link CryptoProvider#AUTO} means the JDK here
+     */
+    static Provider provider(CryptoProvider cryptoProvider, String algorithm) {
+        if (cryptoProvider == CryptoProvider.BOUNCYCASTLE) {
+            return BouncyCastle.PROVIDER;
+        }
+        Provider jdkProvider = Security.getProvider(algorithm.equals(SHA_256) ? "SUN" : "SunJCE");
+        return jdkProvider != null ? jdkProvider : BouncyCastle.PROVIDER;
+    }
+
+    private static Provider select(String algorithm, CryptoProvider cryptoProvider, List<String> intrinsics) {
+        Provider result;
+        if (cryptoProvider != CryptoProvider.AUTO) {
+            result = provider(cryptoProvider, algorithm);
+        } else if (intrinsics.stream().anyMatch(intrinsic -> Boolean.FALSE.equals(vmOption(intrinsic)))) {
+            logger.debug("{} intrinsics are disabled ... measuring the providers", algorithm);
+            result = fasterProvider(algorithm);
+        } else {
+            result = provider(CryptoProvider.JDK, algorithm);
+        }
+        logger.debug("using provider {} for {}", result.getName(), algorithm);
+        return result;
+    }
+
+    private static Provider fasterProvider(String algorithm) {
+        Provider jdkProvider = provider(CryptoProvider.JDK, algorithm);
+        try {
+            // the first measurement of each provider only warms it up
+            megabytesPerSecond(algorithm, jdkProvider, AUTO_MEASUREMENT);
+            megabytesPerSecond(algorithm, BouncyCastle.PROVIDER, AUTO_MEASUREMENT);
+            double jdk = megabytesPerSecond(algorithm, jdkProvider, AUTO_MEASUREMENT);
+            double bouncyCastle = megabytesPerSecond(algorithm, BouncyCastle.PROVIDER, AUTO_MEASUREMENT);
+            return bouncyCastle > jdk ? BouncyCastle.PROVIDER : jdkProvider;
+        } catch (GeneralSecurityException e) {
+            logger.warn("measuring the providers for {} failed ... using {}", algorithm, jdkProvider.getName(), e);
+            return jdkProvider;
+        }
+    }
+
+    /**
+     * The value of a boolean HotSpot option, e.g. whether an intrinsic is enabled. null if the VM can't tell,
+     * e.g. in a native image.
+     */
+    static @Nullable Boolean vmOption(String name) {
+        try {
+            HotSpotDiagnosticMXBean hotSpotDiagnostic = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            if (hotSpotDiagnostic == null) {
+                return null;
+            }
+            return Boolean.valueOf(hotSpotDiagnostic.getVMOption(name).getValue());
+        } catch (RuntimeException | LinkageError e) {
+            // unknown options, e.g. on other architectures, throw IllegalArgumentException
+            return null;
+        }
+    }
+
+    /**
+     * The intrinsics relevant for the algorithm and whether they are enabled, empty if the VM can't tell.
+     */
+    static Map<String, Boolean> intrinsics(String algorithm) {
+        Map<String, Boolean> result = new LinkedHashMap<>();
+        for (String intrinsic : algorithm.equals(SHA_256) ? SHA_256_INTRINSICS : AES_GCM_INTRINSICS) {
+            Boolean enabled = vmOption(intrinsic);
+            if (enabled != null) {
+                result.put(intrinsic, enabled);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hashes or encrypts a buffer of random bytes repeatedly for the given duration.
+     */
+    static double megabytesPerSecond(String algorithm, Provider provider, Duration duration) throws GeneralSecurityException {
+        return algorithm.equals(SHA_256) ? sha256MegabytesPerSecond(provider, duration) : aesGcmMegabytesPerSecond(provider, duration);
+    }
+
+    private static double sha256MegabytesPerSecond(Provider provider, Duration duration) throws NoSuchAlgorithmException {
+        MessageDigest messageDigest = MessageDigest.getInstance(SHA_256, provider);
+        byte[] input = randomBytes(BUFFER_SIZE);
+        long bytes = 0;
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        long now;
+        do {
+            messageDigest.update(input);
+            bytes += input.length;
+            now = System.nanoTime();
+        } while (now < end);
+        messageDigest.digest();
+        return megabytesPerSecond(bytes, now - start);
+    }
+
+    private static double aesGcmMegabytesPerSecond(Provider provider, Duration duration) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(AES_GCM, provider);
+        SecretKeySpec key = new SecretKeySpec(randomBytes(32), "AES");
+        byte[] input = randomBytes(BUFFER_SIZE);
+        byte[] output = new byte[BUFFER_SIZE + GCM_TAG_BITS / 8];
+        byte[] iv = new byte[GCM_IV_BYTES];
+        long bytes = 0;
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        long now;
+        do {
+            // a key and iv pair must not be used twice
+            ByteBuffer.wrap(iv).putLong(GCM_IV_BYTES - Long.BYTES, bytes);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+            cipher.doFinal(input, 0, input.length, output, 0);
+            bytes += input.length;
+            now = System.nanoTime();
+        } while (now < end);
+        return megabytesPerSecond(bytes, now - start);
+    }
+
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return (double) bytes / (1024 * 1024) / ((double) nanos / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] result = new byte[size];
+        new SecureRandom().nextBytes(result);
+        return result;
+    }
+}
@@ -0,0 +1,9 @@
+package spb;
+
+/**
+ * Limits for reusing a cached data key: it is discarded after it is older than {@code maxAgeSeconds},
+ * encrypted {@code messageUseLimit} messages or {@code byteUseLimit} bytes, whatever comes first.
+ */
+public record DataKeyCacheConfig(long maxAgeSeconds, long messageUseLimit, long byteUseLimit) {
+
+}
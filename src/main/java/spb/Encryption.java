@@ -0,0 +1,199 @@
+package spb;
+
+import com.amazonaws.encryptionsdk.AwsCrypto;
+import com.amazonaws.encryptionsdk.CommitmentPolicy;
+import com.amazonaws.encryptionsdk.CryptoAlgorithm;
+import com.amazonaws.encryptionsdk.CryptoInputStream;
+import com.amazonaws.encryptionsdk.CryptoMaterialsManager;
+import com.amazonaws.encryptionsdk.DefaultCryptoMaterialsManager;
+import com.amazonaws.encryptionsdk.caching.CachingCryptoMaterialsManager;
+import com.amazonaws.encryptionsdk.caching.LocalCryptoMaterialsCache;
+import com.amazonaws.encryptionsdk.jce.JceMasterKey;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.macs.CMac;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.utils.IoUtils;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * All client side encryption of spb: content and metadata objects are encrypted as
+ * AWS Encryption SDK messages and the object keys are derived via AESCMAC.
+ * <p>
+ * By default every message gets a freshly generated data key. If a {@link DataKeyCacheConfig} is given
+ * data keys are cached and reused across messages with the same encryption context within the configured limits.
+ * The cache is partitioned by encryption context: then all content objects share one context instead of the
+ * per-file name hash, otherwise no content object would ever reuse a data key. A content object stays bound to its
+ * file by its object key, which contains the name hash, and by the metadata object referencing its version.
+ */
+public class Encryption {
+
+    // changing this key will make existing backups fail.
+    private static final String MASTER_KEY_ID = "SpbSecretKey";
+
+    // we only need very few entries: one per distinct encryption context in flight
+    private static final int DATA_KEY_CACHE_CAPACITY = 100;
+
+    // the encryption context of all content objects when data keys are cached
+    static final Map<String, String> SHARED_CONTENT_CONTEXT = Collections.singletonMap("spb", "content");
+
+    private final AwsCrypto awsCrypto = AwsCrypto.builder()
+            .withCommitmentPolicy(CommitmentPolicy.RequireEncryptRequireDecrypt)
+            .withEncryptionAlgorithm(CryptoAlgorithm.ALG_AES_256_GCM_HKDF_SHA512_COMMIT_KEY)
+            .build();
+
+    private final SecretKeySpec secretKeySpec;
+    private final CryptoMaterialsManager cryptoMaterialsManager;
+    private final boolean dataKeyCaching;
+
+    private final Logger logger = LoggerFactory.getLogger("spb");
+
+    public Encryption(byte[] rawSecretKeyBytes, @Nullable DataKeyCacheConfig dataKeyCacheConfig) {
+        secretKeySpec = new SecretKeySpec(rawSecretKeyBytes, "AES");
+        JceMasterKey masterKey = JceMasterKey.getInstance(secretKeySpec, "Spb", MASTER_KEY_ID, "AES/GCM/NoPadding");
+        if (dataKeyCacheConfig == null) {
+            cryptoMaterialsManager = new DefaultCryptoMaterialsManager(masterKey);
+            dataKeyCaching = false;
+        } else {
+            logger.info("data key caching enabled: {}", dataKeyCacheConfig);
+            cryptoMaterialsManager = CachingCryptoMaterialsManager.newBuilder()
+                    .withMasterKeyProvider(masterKey)
+                    .withCache(new LocalCryptoMaterialsCache(DATA_KEY_CACHE_CAPACITY))
+                    .withMaxAge(dataKeyCacheConfig.maxAgeSeconds(), TimeUnit.SECONDS)
+                    .withMessageUseLimit(dataKeyCacheConfig.messageUseLimit())
+                    .withByteUseLimit(dataKeyCacheConfig.byteUseLimit())
+                    .build();
+            dataKeyCaching = true;
+        }
+    }
+
+    public void encryptFile(Path originalFile, Path encryptedFile, String fileNameHash) throws IOException {
+        encryptFile(originalFile, encryptedFile, fileNameHash, bytes -> {
+        });
+    }
+
+    /**
+     * @param progress is called with the bytes of the original file read so far, e.g. to report the progress of larger files
+     */
+    public void encryptFile(Path originalFile, Path encryptedFile, String fileNameHash, LongConsumer progress) throws IOException {
+        encryptFile(originalFile, encryptedFile, fileNameHash, progress, null);
+    }
+
+    /**
+     * @param progress      is called with the bytes of the original file read so far, e.g. to report the progress of larger files
+     * @param contentDigest is updated with exactly the bytes which were encrypted, e.g. to detect changes of the
+     *                      file since it was hashed. null means no digest.
+     */
+    public void encryptFile(Path originalFile,
+                            Path encryptedFile,
+                            String fileNameHash,
+                            LongConsumer progress,
+                            @Nullable ContentDigest contentDigest) throws IOException {
+        Map<String, String> context = dataKeyCaching ? SHARED_CONTENT_CONTEXT : Collections.singletonMap("nameHash", fileNameHash);
+        // the caching materials manager bypasses the cache for messages of unknown size: the size is fixed up front
+        long maxInputLength = dataKeyCaching ? Files.size(originalFile) : Long.MAX_VALUE;
+        InputStream originalFileStream = new FilterInputStream(new FileInputStream(originalFile.toFile())) {
+            private long remaining = maxInputLength;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining == 0 && len > 0) {
+                    // reading more would exceed the fixed size and fail the encryption
+                    if (in.read() != -1) {
+                        throw new Impl.FileModifiedException(originalFile + " grew while it was encrypted");
+                    }
+                    return -1;
+                }
+                int read = super.read(b, off, (int) Math.min(len, remaining));
+                if (read > 0) {
+                    remaining -= read;
+                    progress.accept(read);
+                    if (contentDigest != null) {
+                        contentDigest.update(b, off, read);
+                    }
+                }
+                return read;
+            }
+        };
+        try (CryptoInputStream<?> encryptingStream = awsCrypto
+                .createEncryptingStream(cryptoMaterialsManager, originalFileStream, context);
+             FileOutputStream out = new FileOutputStream(encryptedFile.toFile())) {
+            if (dataKeyCaching) {
+                encryptingStream.setMaxInputLength(maxInputLength);
+            }
+            IoUtils.copy(encryptingStream, out);
+        }
+    }
+
+    public void decryptFile(Path encryptedFile, Path decryptedFile) throws IOException {
+        try (CryptoInputStream<?> decryptingStream = awsCrypto
+                .createDecryptingStream(cryptoMaterialsManager, new FileInputStream(encryptedFile.toFile()));
+             FileOutputStream out = new FileOutputStream(decryptedFile.toFile())) {
+            IoUtils.copy(decryptingStream, out);
+        }
+    }
+
+    public byte[] encrypt(byte[] plaintext) {
+        return awsCrypto.encryptData(cryptoMaterialsManager, plaintext, Collections.emptyMap()).getResult();
+    }
+
+    public byte[] decrypt(byte[] ciphertext) {
+        return awsCrypto.decryptData(cryptoMaterialsManager, ciphertext).getResult();
+    }
+
+    public String createFileNameHash(Path relativeFileName) {
+
+        /**
+         * We are using here BouncyCastle directly to calculate AESCMAC hash instead via
+         * JCE because this works in native images.
+         */
+        CMac cMac = new CMac(new AESEngine());
+        cMac.init(new KeyParameter(secretKeySpec.getEncoded()));
+
+        byte[] filenameBytes = relativeFileName.toString().getBytes(StandardCharsets.UTF_8);
+        cMac.update(filenameBytes, 0, filenameBytes.length);
+        byte[] keyBytes = new byte[cMac.getMacSize()];
+        cMac.doFinal(keyBytes, 0);
+        return Base64.getUrlEncoder().encodeToString(keyBytes);
+    }
+
+    /**
+     * A HMAC-SHA256 of the content of a file, keyed with the secret key: identifies identical contents without
+     * revealing their plain SHA256.
+     */
+    public String createContentHash(String originalFileSha256Base64, long originalFileSizeInBytes) {
+        HMac hMac = new HMac(new SHA256Digest());
+        hMac.init(new KeyParameter(secretKeySpec.getEncoded()));
+
+        byte[] contentBytes = (originalFileSha256Base64 + "," + originalFileSizeInBytes).getBytes(StandardCharsets.UTF_8);
+        hMac.update(contentBytes, 0, contentBytes.length);
+        byte[] hashBytes = new byte[hMac.getMacSize()];
+        hMac.doFinal(hashBytes, 0);
+        return Base64.getUrlEncoder().encodeToString(hashBytes);
+    }
+
+}
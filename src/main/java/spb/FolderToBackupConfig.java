@@ -1,5 +1,21 @@
 package spb;
 
-public record FolderToBackupConfig(String folder, String backupName) {
+import org.jetbrains.annotations.Nullable;
 
-}
\ No newline at end of file
+/**
+ * @param snapshotFolder    the files are read from this folder instead, e.g. a file system snapshot of the folder
+ *                          created by the pre backup command. null means the folder itself.
+ * @param preBackupCommand  a shell command run before the backup of the folder: the backup is aborted if it fails.
+ *                          null means none.
+ * @param postBackupCommand a shell command run after the backup of the folder, also if it failed. null means none.
+ */
+public record FolderToBackupConfig(String folder,
+                                   String backupName,
+                                   @Nullable String snapshotFolder,
+                                   @Nullable String preBackupCommand,
+                                   @Nullable String postBackupCommand) {
+
+    public FolderToBackupConfig(String folder, String backupName) {
+        this(folder, backupName, null, null, null);
+    }
+}
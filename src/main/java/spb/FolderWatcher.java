@@ -0,0 +1,170 @@
+package spb;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches folders, including all their sub folders, for changed, created and deleted paths.
+ * <p>
+ * The events of a burst of changes, e.g. an editor saving a file several times, are collected until the folders
+ * are quiet for the debounce duration. Events can be lost: the operating system only queues a limited number
+ * of them and sub folders created before they are registered are not watched yet. Then the folder is reported
+ * for a full rescan instead.
+ */
+public class FolderWatcher implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger("spb");
+
+    // a folder which never gets quiet is still backed up after this many debounce durations
+    private static final int MAX_DEBOUNCE_FACTOR = 10;
+
+    /**
+     * @param dirtyPaths       changed, created or deleted paths by folder, files or directories
+     * @param foldersToRescan folders with lost events: all their files must be checked
+     */
+    public record Changes(Map<Path, Set<Path>> dirtyPaths, Set<Path> foldersToRescan) {
+
+        public boolean isEmpty() {
+            return dirtyPaths.isEmpty() && foldersToRescan.isEmpty();
+        }
+    }
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new LinkedHashMap<>();
+    private final Map<Path, Set<Path>> dirtyPaths = new LinkedHashMap<>();
+    private final Set<Path> foldersToRescan = new LinkedHashSet<>();
+    private final List<Path> folders;
+
+    public FolderWatcher(List<Path> folders) throws IOException {
+        this.folders = folders;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        for (Path folder : folders) {
+            register(folder, folder);
+        }
+    }
+
+    private void register(Path folder, Path directory) {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    WatchKey watchKey = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    watchedDirectories.put(watchKey, dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // e.g. the directory was deleted again: the rescan finds out what is left
+            logger.debug("watching {} failed ... rescanning {}", directory, folder, e);
+            foldersToRescan.add(folder);
+        }
+    }
+
+    /**
+     * Waits for changes until the deadline and returns them once the folders are quiet for the debounce duration.
+     * Empty if nothing changed until the deadline.
+     */
+    public Changes awaitChanges(Duration debounce, Instant deadline) throws InterruptedException {
+        // e.g. sub folders which couldn't be registered
+        Instant firstChange = hasChanges() ? Instant.now() : null;
+        while (true) {
+            Instant now = Instant.now();
+            if (firstChange == null && now.isAfter(deadline)) {
+                return takeChanges();
+            }
+            long waitMillis = firstChange == null
+                    ? Duration.between(now, deadline).toMillis()
+                    : debounce.toMillis();
+            WatchKey watchKey;
+            try {
+                watchKey = watchService.poll(Math.max(waitMillis, 1), TimeUnit.MILLISECONDS);
+            } catch (ClosedWatchServiceException e) {
+                return takeChanges();
+            }
+            if (watchKey != null) {
+                processEvents(watchKey);
+                if (firstChange == null && hasChanges()) {
+                    firstChange = Instant.now();
+                }
+            }
+            boolean quiet = watchKey == null;
+            boolean debouncedTooLong = firstChange != null
+                    && Instant.now().isAfter(firstChange.plus(debounce.multipliedBy(MAX_DEBOUNCE_FACTOR)));
+            if (firstChange != null && (quiet || debouncedTooLong)) {
+                return takeChanges();
+            }
+        }
+    }
+
+    private void processEvents(WatchKey watchKey) {
+        Path directory = watchedDirectories.get(watchKey);
+        Path folder = directory == null ? null : folderOf(directory);
+        for (WatchEvent<?> event : watchKey.pollEvents()) {
+            if (folder == null) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                logger.debug("lost events of {} ... rescanning {}", directory, folder);
+                foldersToRescan.add(folder);
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            dirtyPaths.computeIfAbsent(folder, f -> new LinkedHashSet<>()).add(path);
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                register(folder, path);
+            }
+        }
+        if (!watchKey.reset()) {
+            // the directory was deleted or can't be watched anymore
+            watchedDirectories.remove(watchKey);
+        }
+    }
+
+    private @Nullable Path folderOf(Path directory) {
+        for (Path folder : folders) {
+            if (directory.startsWith(folder)) {
+                return folder;
+            }
+        }
+        return null;
+    }
+
+    private boolean hasChanges() {
+        return !dirtyPaths.isEmpty() || !foldersToRescan.isEmpty();
+    }
+
+    private Changes takeChanges() {
+        Changes changes = new Changes(new LinkedHashMap<>(dirtyPaths), new LinkedHashSet<>(foldersToRescan));
+        dirtyPaths.clear();
+        foldersToRescan.clear();
+        return changes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
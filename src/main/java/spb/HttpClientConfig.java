@@ -0,0 +1,29 @@
+package spb;
+
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.core.retry.RetryMode;
+
+import java.time.Duration;
+
+/**
+ * Settings of the HTTP client and its connection pool used by the synchronous S3 client.
+ * null values mean the SDK default.
+ *
+ * @param maxConnections               the maximum number of pooled connections
+ * @param connectionTimeToLive         how long a pooled connection is reused at most
+ * @param tcpKeepAlive                 whether TCP keep-alive is enabled for pooled connections
+ * @param socketTimeout                how long to wait for data on an established connection
+ * @param connectionAcquisitionTimeout how long to wait for a connection from the pool
+ * @param retryMode                    standard, adaptive (client side rate limiting when throttled) or legacy
+ */
+public record HttpClientConfig(int maxConnections,
+                               @Nullable Duration connectionTimeToLive,
+                               boolean tcpKeepAlive,
+                               @Nullable Duration socketTimeout,
+                               @Nullable Duration connectionAcquisitionTimeout,
+                               @Nullable RetryMode retryMode) {
+
+    // the same as the SDK defaults
+    public static final HttpClientConfig DEFAULT = new HttpClientConfig(50, null, false, null, null, null);
+
+}
@@ -1,20 +1,13 @@
 package spb;
 
-import com.amazonaws.encryptionsdk.AwsCrypto;
-import com.amazonaws.encryptionsdk.CommitmentPolicy;
-import com.amazonaws.encryptionsdk.CryptoAlgorithm;
-import com.amazonaws.encryptionsdk.CryptoInputStream;
-import com.amazonaws.encryptionsdk.CryptoResult;
-import com.amazonaws.encryptionsdk.jce.JceMasterKey;
-import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.macs.CMac;
-import org.bouncycastle.crypto.params.KeyParameter;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
 import software.amazon.awssdk.services.s3.model.CommonPrefix;
 import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
@@ -29,50 +22,79 @@ import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
 import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsRequest;
 import software.amazon.awssdk.services.s3.model.ListObjectVersionsRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectVersionsResponse;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.MultipartUpload;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.NoSuchUploadException;
 import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
 import software.amazon.awssdk.services.s3.model.ObjectVersion;
+import software.amazon.awssdk.services.s3.model.Part;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Error;
 import software.amazon.awssdk.services.s3.model.UploadPartRequest;
 import software.amazon.awssdk.services.s3.model.UploadPartResponse;
-import software.amazon.awssdk.services.s3.paginators.ListObjectVersionsIterable;
 import software.amazon.awssdk.utils.IoUtils;
+import spb.BackupCheckpoint.FileState;
+import spb.BackupCheckpoint.MultipartUploadState;
 import spb.BackupFolderSummary.BackedUpFile;
 import spb.BackupFolderSummary.BackedUpFile.ChangedFile;
+import spb.BackupFolderSummary.BackedUpFile.DeduplicatedFile;
+import spb.BackupFolderSummary.BackedUpFile.MovedFile;
+import spb.BackupFolderSummary.BackedUpFile.SkippedFile;
 import spb.BackupFolderSummary.BackedUpFile.UnchangedFile;
 import spb.BackupFolderSummary.DeletedFile;
-
-import javax.crypto.spec.SecretKeySpec;
+import spb.BackupFolderSummary.FailedDelete;
+import spb.ConcurrencyLimiter.Permit;
+import spb.ContentIndex.ContentObject;
+import spb.JfrEvents.EncryptFileEvent;
+import spb.JfrEvents.PutObjectEvent;
+import spb.JfrEvents.ReadMetadataEvent;
+import spb.JfrEvents.RestoreFileEvent;
+import spb.JfrEvents.UploadPartEvent;
+import spb.JfrEvents.WalkEvent;
+import spb.RunMetrics.PhaseTimer;
+
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.InputStreamReader;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.NavigableSet;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -85,27 +107,53 @@ import static spb.Util.bytesToHumanReadableFormat;
 
 public class Impl {
 
-    private static final AwsCrypto awsCrypto = AwsCrypto.builder()
-            .withCommitmentPolicy(CommitmentPolicy.RequireEncryptRequireDecrypt)
-            .withEncryptionAlgorithm(CryptoAlgorithm.ALG_AES_256_GCM_HKDF_SHA512_COMMIT_KEY)
-            .build();
     private static final int MAX_FILES_COUNT = 10_000;
+    private static final int MAX_CONCURRENT_MULTIPART_FILES = 4;
+    private static final Duration WATCH_MIN_RETRY_DELAY = Duration.ofSeconds(30);
+    private static final Duration MODIFIED_FILE_RETRY_DELAY = Duration.ofSeconds(1);
+    // the pause blocks a thread of the file pool
+    private static final Duration MAX_MODIFIED_FILE_RETRY_DELAY = Duration.ofSeconds(30);
+    // retries of modified files per backup, at least: otherwise a tenth of the backed up files
+    private static final int MIN_MODIFIED_FILE_RETRIES = 10;
 
     private static final long HUNDRED_MB = 100 * 1024 * 1024L;
 
-    // changing this key will make existing backups fail.
-    private static final String MASTER_KEY_ID = "SpbSecretKey";
-
     // currently we only have version 1
     private static final int METADATA_VERSION_1 = 1;
+    // additionally references the content object of another file, e.g. of a moved file or of a file with the same content
+    private static final int METADATA_VERSION_2 = 2;
+    // both versions can end with the tree hash of the file, which older versions ignore. Version 2 writes the backup
+    // name of the content before it then
+    private static final int TREE_HASH_INDEX_VERSION_1 = 5;
+    private static final int TREE_HASH_INDEX_VERSION_2 = 7;
+
+    // one DeleteObjects request deletes up to 1000 keys: the content and metadata of 500 files
+    private static final int DELETE_BATCH_FILES = 500;
+    private static final int DELETE_ATTEMPTS = 3;
+    private static final int DELETE_THREADS = 4;
     private final ConfigProvider configFile;
     private final S3Client s3Client;
+    private final @Nullable CrtTransfer crtTransfer;
+    private final ConnectionPoolMetrics connectionPoolMetrics = new ConnectionPoolMetrics();
+    private final RunMetrics runMetrics = new RunMetrics();
     private String bucketName;
-    private JceMasterKey masterKey;
-    private SecretKeySpec secretKeySpec;
-
-    private final ExecutorService threadPoolExecutor = Executors.newFixedThreadPool(10);
-    private final ExecutorService multipartUploadExecutor = Executors.newFixedThreadPool(5);
+    private Encryption encryption;
+
+    private final ExecutorService threadPoolExecutor;
+    private final ExecutorService multipartUploadExecutor;
+    private final Semaphore multipartFiles = new Semaphore(MAX_CONCURRENT_MULTIPART_FILES);
+    private final ExecutorService deleteExecutor;
+    private final ExecutorService treeHashExecutor;
+    private final ConcurrencyLimiter s3RequestsLimiter;
+    private final ConcurrencyLimiter diskReadsLimiter;
+    private final ConcurrencyLimiter encryptionLimiter;
+    private volatile ProgressReporter progressReporter = ProgressReporter.disabled();
+    // per backup name
+    private final Map<String, MetadataCache> metadataCaches = new LinkedHashMap<>();
+    // backups whose multipart uploads were checked for orphans of earlier runs: in watch mode once, not every batch
+    private final Set<String> orphanedUploadsCheckedBackups = ConcurrentHashMap.newKeySet();
+    // used for backups with dedup enabled and whenever dedup was enabled before: it knows the shared content objects
+    private @Nullable ContentIndex contentIndex;
 
     private final Logger logger = LoggerFactory.getLogger("spb");
 
@@ -118,7 +166,9 @@ public class Impl {
                                String objectKey,
                                long originalFileSizeInBytes,
                                Instant creationDate,
-                               String contentVersionId
+                               String contentVersionId,
+                               String contentObjectKey,
+                               @Nullable String treeHash
     ) implements FileInfo {
 
     }
@@ -138,6 +188,9 @@ public class Impl {
 
         @Nullable String contentVersionId();
 
+        // the content object of the file itself or, for moved files, of the file it was moved from
+        String contentObjectKey();
+
     }
 
     public sealed interface HistoricalFile
@@ -157,7 +210,8 @@ public class Impl {
                 boolean isLatest,
                 String objectKey,
                 String contentVersionId,
-                String metadataVersionId
+                String metadataVersionId,
+                String contentObjectKey
         ) implements HistoricalFile, FileInfo {
         }
 
@@ -169,13 +223,40 @@ public class Impl {
         }
     }
 
-    record CountFilesResult(long count, long ignoredFiles) {
+    record CountFilesResult(long count, long bytes, long ignoredFiles) {
     }
 
     public Impl(ConfigProvider configProvider) throws IOException {
+        this(configProvider, null);
+    }
+
+    /**
+     * @param s3Client null means a client is created as configured, otherwise the given client is used
+     *                 and no connection pool metrics are collected
+     */
+    public Impl(ConfigProvider configProvider, @Nullable S3Client s3Client) throws IOException {
         this.configFile = configProvider;
         readConfigFile();
-        s3Client = S3Client.create();
+        ConcurrencyConfig concurrencyConfig = configProvider.getConcurrencyConfig();
+        int maxConcurrency = concurrencyConfig.maxConcurrency();
+        boolean adaptive = concurrencyConfig.adaptive();
+        int processors = Runtime.getRuntime().availableProcessors();
+        threadPoolExecutor = runMetrics.newThreadPool("files", maxConcurrency);
+        multipartUploadExecutor = runMetrics.newThreadPool("multipartUpload", maxConcurrency);
+        deleteExecutor = runMetrics.newThreadPool("delete", Math.min(DELETE_THREADS, maxConcurrency));
+        treeHashExecutor = runMetrics.newThreadPool("treeHash", processors);
+        s3RequestsLimiter = new ConcurrencyLimiter("S3 requests", adaptive ? 10 : maxConcurrency, 1, maxConcurrency, adaptive);
+        diskReadsLimiter = new ConcurrencyLimiter("disk reads", adaptive ? 4 : maxConcurrency, 1, maxConcurrency, adaptive);
+        encryptionLimiter = new ConcurrencyLimiter("encryption", adaptive ? processors : maxConcurrency, 1,
+                adaptive ? Math.min(2 * processors, maxConcurrency) : maxConcurrency, adaptive);
+        this.s3Client = s3Client != null ? s3Client : S3ClientFactory.createS3Client(configProvider,
+                List.of(connectionPoolMetrics, runMetrics.s3MetricPublisher()));
+        if (configProvider.getS3TransferBackend() == S3TransferBackend.CRT) {
+            logger.info("using the S3 transfer manager for uploading and downloading content");
+            crtTransfer = new CrtTransfer(configProvider);
+        } else {
+            crtTransfer = null;
+        }
     }
 
     public Impl() throws IOException {
@@ -185,17 +266,89 @@ public class Impl {
     public void shutdown() {
         threadPoolExecutor.shutdown();
         multipartUploadExecutor.shutdown();
+        deleteExecutor.shutdown();
+        treeHashExecutor.shutdown();
+        if (crtTransfer != null) {
+            crtTransfer.close();
+        }
+        closeMetadataCaches();
+        closeContentIndex();
+        connectionPoolMetrics.logSummary(logger);
+        logger.info("concurrency: {}, {}, {}", s3RequestsLimiter, diskReadsLimiter, encryptionLimiter);
+        writeMetricsReport();
+    }
+
+    private void closeMetadataCaches() {
+        synchronized (metadataCaches) {
+            for (MetadataCache metadataCache : metadataCaches.values()) {
+                try {
+                    metadataCache.close();
+                } catch (IOException e) {
+                    logger.warn("could not close the metadata cache", e);
+                }
+            }
+            metadataCaches.clear();
+        }
+    }
+
+    private void writeMetricsReport() {
+        Path reportFolder = configFile.getMetricsReportFolder();
+        MetricsExportConfig metricsExportConfig = configFile.getMetricsExportConfig();
+        if (reportFolder == null && metricsExportConfig == null) {
+            return;
+        }
+        Map<String, Object> concurrencyLimits = new LinkedHashMap<>();
+        for (ConcurrencyLimiter limiter : List.of(s3RequestsLimiter, diskReadsLimiter, encryptionLimiter)) {
+            concurrencyLimits.put(limiter.name(), Map.of("limit", limiter.limit(), "maxLimit", limiter.maxLimitReached()));
+        }
+        Map<String, Object> additionalSections = new LinkedHashMap<>();
+        additionalSections.put("connectionPool", connectionPoolMetrics.toMap());
+        additionalSections.put("concurrencyLimits", concurrencyLimits);
+        if (reportFolder != null) {
+            try {
+                Path reportFile = runMetrics.writeReport(reportFolder, additionalSections);
+                logger.info("metrics report written to {}", reportFile);
+            } catch (IOException e) {
+                logger.warn("could not write the metrics report to {}", reportFolder, e);
+            }
+        }
+        if (metricsExportConfig != null) {
+            Map<String, Object> report = runMetrics.toMap();
+            report.putAll(additionalSections);
+            try {
+                MetricsExporter.export(metricsExportConfig, report);
+                logger.info("metrics exported to {}", metricsExportConfig.target());
+            } catch (IOException e) {
+                logger.warn("could not export the metrics to {}", metricsExportConfig.target(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("interrupted while exporting the metrics to {}", metricsExportConfig.target());
+            }
+        }
     }
 
     private void readConfigFile() throws IOException {
         bucketName = configFile.getBucketName();
 
-        secretKeySpec = new SecretKeySpec(configFile.getRawSecretKeyBytes(), "AES");
-        masterKey = JceMasterKey.getInstance(secretKeySpec, "Spb", MASTER_KEY_ID, "AES/GCM/NoPadding");
+        CryptoProviders.configure(configFile.getCryptoConfig());
+        encryption = new Encryption(configFile.getRawSecretKeyBytes(), configFile.getDataKeyCacheConfig());
+
+    }
 
+    private void closeContentIndex() {
+        if (contentIndex == null) {
+            return;
+        }
+        try {
+            contentIndex.close();
+        } catch (IOException e) {
+            logger.warn("could not close the content index", e);
+        }
+        contentIndex = null;
     }
 
     public List<BackupFolderSummary> backupFolders(boolean dryRun) throws IOException, ExecutionException, InterruptedException {
+        runMetrics.command(dryRun ? "backup-dry-run" : "backup");
         List<FolderToBackupConfig> foldersBackupConfig = configFile.getFoldersBackupConfig();
         List<BackupFolderSummary> result = new ArrayList<>();
         if (dryRun) {
@@ -204,18 +357,271 @@ public class Impl {
             logger.info(DIVIDER);
         }
         logger.info("start backup of {} folders", foldersBackupConfig.size());
+        if (!dryRun && contentIndex == null && (configFile.isDedupEnabled() || Files.exists(contentIndexFile()))) {
+            openContentIndex();
+        }
         for (FolderToBackupConfig folderToBackupConfig : foldersBackupConfig) {
-            result.add(backupSingleFolder(folderToBackupConfig.folder(), folderToBackupConfig.backupName(), dryRun));
+            result.add(backupFolderOrSnapshot(folderToBackupConfig, dryRun));
         }
         result.forEach(backupFolderSummary -> printBackupSummary(backupFolderSummary, dryRun));
         return result;
     }
 
+    /**
+     * Backs up the folder, or the snapshot of the folder if configured, between the pre and post backup commands.
+     * The files have the same names in the backup, whether they are read from the folder or the snapshot.
+     */
+    private BackupFolderSummary backupFolderOrSnapshot(FolderToBackupConfig folderToBackupConfig, boolean dryRun) throws
+            IOException, ExecutionException, InterruptedException {
+        if (folderToBackupConfig.preBackupCommand() != null) {
+            int exitCode = runBackupCommand(folderToBackupConfig, folderToBackupConfig.preBackupCommand());
+            if (exitCode != 0) {
+                logger.error("pre backup command of '{}' failed with exit code {}", folderToBackupConfig.backupName(), exitCode);
+                throw new RuntimeException("pre backup command failed");
+            }
+        }
+        try {
+            String folder = folderToBackupConfig.snapshotFolder() != null ? folderToBackupConfig.snapshotFolder() : folderToBackupConfig.folder();
+            if (folderToBackupConfig.snapshotFolder() != null) {
+                logger.info("backing up '{}' from the snapshot '{}'", folderToBackupConfig.folder(), folder);
+            }
+            return backupSingleFolder(folder, folderToBackupConfig.backupName(), dryRun);
+        } finally {
+            if (folderToBackupConfig.postBackupCommand() != null) {
+                int exitCode = runBackupCommand(folderToBackupConfig, folderToBackupConfig.postBackupCommand());
+                if (exitCode != 0) {
+                    // the backup itself is complete
+                    logger.error("post backup command of '{}' failed with exit code {}", folderToBackupConfig.backupName(), exitCode);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the command with the shell, e.g. to create or remove a file system snapshot. The output is logged.
+     */
+    private int runBackupCommand(FolderToBackupConfig folderToBackupConfig, String command) throws IOException, InterruptedException {
+        logger.info("running '{}'", command);
+        boolean windows = System.getProperty("os.name").toLowerCase().startsWith("windows");
+        ProcessBuilder processBuilder = new ProcessBuilder(windows ? List.of("cmd", "/c", command) : List.of("sh", "-c", command))
+                .redirectErrorStream(true);
+        processBuilder.environment().put("SPB_BACKUP_NAME", folderToBackupConfig.backupName());
+        processBuilder.environment().put("SPB_FOLDER", folderToBackupConfig.folder());
+        if (folderToBackupConfig.snapshotFolder() != null) {
+            processBuilder.environment().put("SPB_SNAPSHOT_FOLDER", folderToBackupConfig.snapshotFolder());
+        }
+        Process process = processBuilder.start();
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                logger.info("{}: {}", folderToBackupConfig.backupName(), line);
+            }
+        }
+        return process.waitFor();
+    }
+
+    /**
+     * Backs up all folders and then keeps backing up their changes, until interrupted.
+     * <p>
+     * The backed up files are read from the bucket only once: afterwards every batch of changed paths is compared
+     * against the manifest in memory, which is updated by every backup. All folders are scanned completely
+     * every rescan interval and when file system events were lost, so that missed changes are backed up eventually.
+     * Folders with a snapshot folder or backup commands are not supported: their changes would have to be read
+     * from a new snapshot for every batch.
+     */
+    public void watchFolders(Duration debounce, Duration rescanInterval) throws IOException, ExecutionException, InterruptedException {
+        runMetrics.command("watch");
+        List<FolderToBackupConfig> foldersBackupConfig = configFile.getFoldersBackupConfig();
+        for (FolderToBackupConfig folderToBackupConfig : foldersBackupConfig) {
+            if (folderToBackupConfig.snapshotFolder() != null || folderToBackupConfig.preBackupCommand() != null
+                    || folderToBackupConfig.postBackupCommand() != null) {
+                logger.error("Invalid config: backup '{}' has a snapshot folder or backup commands, which watch doesn't support",
+                        folderToBackupConfig.backupName());
+                throw new RuntimeException("Invalid config");
+            }
+        }
+        if (contentIndex == null && (configFile.isDedupEnabled() || Files.exists(contentIndexFile()))) {
+            openContentIndex();
+        }
+        Map<String, Map<String, FileMetadata>> manifests = new LinkedHashMap<>();
+        List<Path> folders = foldersBackupConfig.stream().map(config -> Path.of(config.folder())).toList();
+        // watching starts before the first backup: changes during the backup are backed up right afterwards
+        try (FolderWatcher folderWatcher = new FolderWatcher(folders)) {
+            Set<Path> foldersToRescan = new LinkedHashSet<>(folders);
+            // files which kept changing while they were backed up, by folder
+            Map<Path, Set<Path>> skippedPaths = new LinkedHashMap<>();
+            Instant retrySkippedPaths = null;
+            Instant nextRescan = Instant.now().plus(rescanInterval);
+            Duration retryDelay = WATCH_MIN_RETRY_DELAY;
+            while (!Thread.currentThread().isInterrupted()) {
+                Instant deadline = retrySkippedPaths == null ? nextRescan : Collections.min(List.of(nextRescan, retrySkippedPaths));
+                FolderWatcher.Changes changes = foldersToRescan.isEmpty()
+                        ? folderWatcher.awaitChanges(debounce, deadline)
+                        : new FolderWatcher.Changes(Map.of(), Set.of());
+                foldersToRescan.addAll(changes.foldersToRescan());
+                if (!Instant.now().isBefore(nextRescan)) {
+                    foldersToRescan.addAll(folders);
+                    nextRescan = Instant.now().plus(rescanInterval);
+                }
+                Map<Path, Set<Path>> dirtyPathsByFolder = new LinkedHashMap<>(changes.dirtyPaths());
+                skippedPaths.forEach((folder, paths) -> dirtyPathsByFolder.merge(folder, paths, (dirtyPaths, skipped) -> {
+                    Set<Path> result = new LinkedHashSet<>(dirtyPaths);
+                    result.addAll(skipped);
+                    return result;
+                }));
+                skippedPaths.clear();
+                retrySkippedPaths = null;
+                Set<Path> failedFolders = new LinkedHashSet<>();
+                for (FolderToBackupConfig folderToBackupConfig : foldersBackupConfig) {
+                    Path folder = Path.of(folderToBackupConfig.folder());
+                    String backupName = folderToBackupConfig.backupName();
+                    Set<Path> dirtyPaths = dirtyPathsByFolder.get(folder);
+                    boolean rescan = foldersToRescan.contains(folder);
+                    if (!rescan && dirtyPaths == null) {
+                        continue;
+                    }
+                    try {
+                        Map<String, FileMetadata> manifest = manifests.get(backupName);
+                        if (manifest == null) {
+                            manifest = readManifest(backupName);
+                            manifests.put(backupName, manifest);
+                        }
+                        BackupFolderSummary backupFolderSummary = rescan
+                                ? backupSingleFolder(folder.toString(), backupName, false, manifest)
+                                : backupDirtyPaths(folder, backupName, manifest, dirtyPaths);
+                        logWatchSummary(backupFolderSummary, rescan);
+                        Set<Path> skipped = new LinkedHashSet<>();
+                        for (BackedUpFile backedUpFile : backupFolderSummary.backedUpFiles()) {
+                            if (backedUpFile instanceof SkippedFile skippedFile) {
+                                skipped.add(folder.resolve(skippedFile.relativePath()));
+                            }
+                        }
+                        if (!skipped.isEmpty()) {
+                            skippedPaths.put(folder, skipped);
+                        }
+                    } catch (IOException | ExecutionException | RuntimeException e) {
+                        logger.error("backup of changes in '{}' failed ... rescanning it in {}", folder, retryDelay, e);
+                        failedFolders.add(folder);
+                    }
+                }
+                foldersToRescan.clear();
+                if (failedFolders.isEmpty() && skippedPaths.isEmpty()) {
+                    retryDelay = WATCH_MIN_RETRY_DELAY;
+                    continue;
+                }
+                if (!failedFolders.isEmpty()) {
+                    // without waiting, a permanent failure would retry in a loop
+                    Thread.sleep(retryDelay.toMillis());
+                    foldersToRescan.addAll(failedFolders);
+                }
+                // only the skipped files are backed up again, with the next batch or after the delay
+                retrySkippedPaths = skippedPaths.isEmpty() ? null : Instant.now().plus(retryDelay);
+                retryDelay = Collections.min(List.of(retryDelay.multipliedBy(2), rescanInterval));
+            }
+        }
+    }
+
+    /**
+     * Backs up the changed files and deletes the deleted files found at or below the dirty paths.
+     */
+    private BackupFolderSummary backupDirtyPaths(Path folder,
+                                                 String backupName,
+                                                 Map<String, FileMetadata> manifest,
+                                                 Set<Path> dirtyPaths) throws IOException, ExecutionException, InterruptedException {
+        Set<String> filesToBackup = new LinkedHashSet<>();
+        Set<String> deletedFiles = new LinkedHashSet<>();
+        // sorted once per batch: the files below a dirty path are a range of it
+        NavigableSet<String> manifestFiles = new TreeSet<>(manifest.keySet());
+        for (Path path : dirtyPaths) {
+            if (Files.isRegularFile(path)) {
+                if (!shouldIgnoreFile(path.toString())) {
+                    filesToBackup.add(folder.relativize(path).toString());
+                }
+                continue;
+            }
+            if (Files.isDirectory(path)) {
+                // e.g. a directory moved into the folder: its files don't cause events
+                try (Stream<Path> walk = Files.walk(path)) {
+                    for (Path file : (Iterable<Path>) walk::iterator) {
+                        if (Files.isRegularFile(file) && !shouldIgnoreFile(file.toString())) {
+                            filesToBackup.add(folder.relativize(file).toString());
+                        }
+                    }
+                }
+            }
+            // a deleted file or directory, or files deleted together with a directory
+            for (String fileName : manifestFilesAtOrBelow(manifestFiles, folder.relativize(path).toString())) {
+                if (!filesToBackup.contains(fileName) && !Files.exists(folder.resolve(fileName))) {
+                    deletedFiles.add(fileName);
+                }
+            }
+        }
+        if (filesToBackup.isEmpty() && deletedFiles.isEmpty()) {
+            return new BackupFolderSummary(backupName, folder.toString(), List.of(), List.of(), List.of());
+        }
+        long bytes = filesToBackup.stream().mapToLong(file -> folder.resolve(file).toFile().length()).sum();
+        progressReporter = ProgressReporter.start("backup '" + backupName + "'", filesToBackup.size(), bytes,
+                s3RequestsLimiter::inFlight);
+        try {
+            return backupChanges(folder, backupName, manifest, filesToBackup, deletedFiles);
+        } finally {
+            progressReporter.close();
+            progressReporter = ProgressReporter.disabled();
+        }
+    }
+
+    /**
+     * The files of the sorted manifest file names which are the given relative path or below it.
+     */
+    static Set<String> manifestFilesAtOrBelow(NavigableSet<String> manifestFiles, String relativePath) {
+        if (relativePath.isEmpty()) {
+            return manifestFiles;
+        }
+        Set<String> result = new LinkedHashSet<>();
+        if (manifestFiles.contains(relativePath)) {
+            result.add(relativePath);
+        }
+        String prefix = relativePath + File.separator;
+        for (String fileName : manifestFiles.tailSet(prefix, true)) {
+            if (!fileName.startsWith(prefix)) {
+                break;
+            }
+            result.add(fileName);
+        }
+        return result;
+    }
+
+    private void logWatchSummary(BackupFolderSummary backupFolderSummary, boolean rescan) {
+        long changedFiles = backupFolderSummary.backedUpFiles().stream()
+                .filter(file -> !(file instanceof UnchangedFile) && !(file instanceof SkippedFile))
+                .count();
+        long skippedFiles = backupFolderSummary.backedUpFiles().stream().filter(file -> file instanceof SkippedFile).count();
+        long uploadedBytes = backupFolderSummary.backedUpFiles().stream()
+                .filter(file -> file instanceof ChangedFile)
+                .mapToLong(file -> ((ChangedFile) file).fileSizeInBytes())
+                .sum();
+        if (!rescan && changedFiles == 0 && skippedFiles == 0 && backupFolderSummary.deletedFiles().isEmpty()
+                && backupFolderSummary.failedDeletes().isEmpty()) {
+            return;
+        }
+        logger.info("{} '{}': {} changed files ({} uploaded), {} deleted files{}{}",
+                rescan ? "rescanned" : "backed up changes of",
+                backupFolderSummary.backupName(),
+                changedFiles,
+                bytesToHumanReadableFormat(uploadedBytes),
+                backupFolderSummary.deletedFiles().size(),
+                backupFolderSummary.failedDeletes().isEmpty() ? "" : ", " + backupFolderSummary.failedDeletes().size() + " failed deletes",
+                skippedFiles == 0 ? "" : ", " + skippedFiles + " skipped files which changed while backing them up");
+    }
+
     private void printBackupSummary(BackupFolderSummary backupFolderSummary, boolean dryRun) {
         String backupName = backupFolderSummary.backupName();
         List<BackedUpFile> backedUpFiles = backupFolderSummary.backedUpFiles();
         int changedFilesCount = 0;
         int unchangedFilesCount = 0;
+        int movedFilesCount = 0;
+        int deduplicatedFilesCount = 0;
+        int skippedFilesCount = 0;
         long totalBytesUploaded = 0;
         for (BackedUpFile backedUpFile : backedUpFiles) {
             if (backedUpFile instanceof ChangedFile changedFile) {
@@ -223,10 +629,17 @@ public class Impl {
                 totalBytesUploaded += changedFile.fileSizeInBytes();
             } else if (backedUpFile instanceof UnchangedFile) {
                 unchangedFilesCount++;
+            } else if (backedUpFile instanceof MovedFile) {
+                movedFilesCount++;
+            } else if (backedUpFile instanceof DeduplicatedFile) {
+                deduplicatedFilesCount++;
+            } else if (backedUpFile instanceof SkippedFile) {
+                skippedFilesCount++;
             }
         }
 
         List<DeletedFile> deletedFiles = backupFolderSummary.deletedFiles();
+        List<FailedDelete> failedDeletes = backupFolderSummary.failedDeletes();
 
         logger.info("number of backed up files (changed and unchanged): {}", backedUpFiles.size());
         logger.info("number of deleted files: {}", deletedFiles.size());
@@ -240,6 +653,8 @@ public class Impl {
         }
         logger.info("total files backed up: {} made out of {} changed vs {} unchanged", backedUpFiles.size(), changedFilesCount, unchangedFilesCount);
         logger.info("total data uploaded {} ", bytesToHumanReadableFormat(totalBytesUploaded));
+        logger.info("total files moved without uploading them again {}", movedFilesCount);
+        logger.info("total files with an already uploaded content {}", deduplicatedFilesCount);
         logger.info("total files deleted {}", deletedFiles.size());
         logger.info(DIVIDER);
 
@@ -253,6 +668,12 @@ public class Impl {
                 logger.debug("file {} was changed and backed up. ", backedUpFile.relativePath());
             } else if (backedUpFile instanceof UnchangedFile) {
                 logger.debug("file {} was not changed and not backed up. ", backedUpFile.relativePath());
+            } else if (backedUpFile instanceof MovedFile movedFile) {
+                logger.debug("file {} was moved from {}. ", movedFile.relativePath(), movedFile.movedFrom());
+            } else if (backedUpFile instanceof DeduplicatedFile) {
+                logger.debug("file {} was changed and its content was already uploaded. ", backedUpFile.relativePath());
+            } else if (backedUpFile instanceof SkippedFile skippedFile) {
+                logger.debug("file {} was skipped: {}. ", skippedFile.relativePath(), skippedFile.reason());
             }
         }
         if (deletedFiles.size() == 0) {
@@ -263,6 +684,9 @@ public class Impl {
                 logger.debug("file {} was deleted", deletedFile.relativePath());
             }
         }
+        for (FailedDelete failedDelete : failedDeletes) {
+            logger.error("file {} could not be deleted: {}", failedDelete.relativePath(), failedDelete.error());
+        }
         if (dryRun) {
             logger.info(DIVIDER);
             logger.info("DRY RUN SUMMARY FINISHED FOR '{}'", backupName);
@@ -272,7 +696,16 @@ public class Impl {
         }
         logger.info("total files backed up: {} made out of {} changed vs {} unchanged", backedUpFiles.size(), changedFilesCount, unchangedFilesCount);
         logger.info("total data uploaded {} ", bytesToHumanReadableFormat(totalBytesUploaded));
+        logger.info("total files moved without uploading them again {}", movedFilesCount);
+        logger.info("total files with an already uploaded content {}", deduplicatedFilesCount);
         logger.info("total files deleted {}", deletedFiles.size());
+        if (!failedDeletes.isEmpty()) {
+            logger.error("total files which could not be deleted {}: they are deleted with the next backup", failedDeletes.size());
+        }
+        if (skippedFilesCount > 0) {
+            logger.warn("total files skipped because they changed while backing them up {}: they are backed up with the next backup",
+                    skippedFilesCount);
+        }
         logger.info(DIVIDER);
 
     }
@@ -282,11 +715,32 @@ public class Impl {
             String folderStr,
             String backupName,
             boolean dryRun
+    ) throws IOException, ExecutionException, InterruptedException {
+        return backupSingleFolder(folderStr, backupName, dryRun, null);
+    }
+
+    /**
+     * @param manifest the backed up files by file name, which is updated with the changes of this backup.
+     *                 null means the backed up files are read from the bucket.
+     */
+    private BackupFolderSummary backupSingleFolder(
+            String folderStr,
+            String backupName,
+            boolean dryRun,
+            @Nullable Map<String, FileMetadata> manifest
     ) throws IOException, ExecutionException, InterruptedException {
         Path folder = Path.of(folderStr);
         CountFilesResult filesCount;
         try {
-            filesCount = countFilesToBackup(folder);
+            WalkEvent walkEvent = new WalkEvent();
+            walkEvent.begin();
+            try (PhaseTimer timer = runMetrics.time("walk")) {
+                filesCount = countFilesToBackup(folder);
+            }
+            walkEvent.folder = folder.toString();
+            walkEvent.files = filesCount.count;
+            walkEvent.bytes = filesCount.bytes;
+            walkEvent.commit();
         } catch (IOException e) {
             logger.error("error accessing files to backup ... abort backing up {}.", folder, e);
             throw new RuntimeException(e);
@@ -296,16 +750,26 @@ public class Impl {
             logger.error("Abort ... to many files to backup");
             throw new RuntimeException("To many files to backup");
         }
-        logger.info("Found {} files to backup ({} ignored files)", filesCount.count, filesCount.ignoredFiles);
-        List<FileMetadata> alreadyBackedUpFiles = getBackedUpFiles(backupName);
+        logger.info("Found {} files to backup with {} ({} ignored files)", filesCount.count,
+                bytesToHumanReadableFormat(filesCount.bytes), filesCount.ignoredFiles);
+        if (manifest == null) {
+            manifest = readManifest(backupName);
+        }
 
         if (dryRun) {
-            BackupFolderSummary backupFolderSummary = dryRunBackupSingleFolderImpl(folder, backupName, alreadyBackedUpFiles);
+            BackupFolderSummary backupFolderSummary = dryRunBackupSingleFolderImpl(folder, backupName, new ArrayList<>(manifest.values()));
             return backupFolderSummary;
 
         } else {
-            BackupFolderSummary backupFolderSummary = backupSingleFolderImpl(folder, backupName, alreadyBackedUpFiles);
-            return backupFolderSummary;
+            progressReporter = ProgressReporter.start("backup '" + backupName + "'", filesCount.count, filesCount.bytes,
+                    s3RequestsLimiter::inFlight);
+            try {
+                BackupFolderSummary backupFolderSummary = backupSingleFolderImpl(folder, backupName, manifest);
+                return backupFolderSummary;
+            } finally {
+                progressReporter.close();
+                progressReporter = ProgressReporter.disabled();
+            }
         }
     }
 
@@ -343,7 +807,7 @@ public class Impl {
                     if (originalFileSize > HUNDRED_MB) {
                         logger.debug("calculating sha256 for larger file {} with {}", file, bytesToHumanReadableFormat(originalFileSize));
                     }
-                    originalFileSha256Base64 = Util.sha256Base64ForFile(file);
+                    originalFileSha256Base64 = hashForBackup(file, fileNamesMap.get(fileRelativePath.toString()), true).sha256Base64();
                     if (doesFileNeedBackup(folder, fileRelativePath, originalFileSha256Base64, fileNamesMap)) {
                         newlyBackedUpFiles.add(new BackedUpFile.ChangedFile(fileRelativePath.toString(), originalFileSha256Base64, originalFileSize));
                     } else {
@@ -361,62 +825,231 @@ public class Impl {
                 .filter(fileMetadata -> !existingFiles.contains(fileMetadata.fileName()))
                 .map(fileMetadata -> new DeletedFile(fileMetadata.fileName))
                 .toList();
-        return new BackupFolderSummary(backupName, folder.toString(), newlyBackedUpFiles, filesToDelete);
+        return new BackupFolderSummary(backupName, folder.toString(), newlyBackedUpFiles, filesToDelete, List.of());
     }
 
-    private BackupFolderSummary backupSingleFolderImpl(Path folder, String backupName, List<FileMetadata> alreadyBackedUpFiles) throws
+    /**
+     * The backed up files by file name. Also added to the content index, if it is open.
+     */
+    private Map<String, FileMetadata> readManifest(String backupName) throws IOException, ExecutionException, InterruptedException {
+        List<FileMetadata> alreadyBackedUpFiles = getBackedUpFiles(backupName);
+        if (contentIndex != null) {
+            addToContentIndex(alreadyBackedUpFiles);
+        }
+        Map<String, FileMetadata> manifest = new ConcurrentHashMap<>();
+        alreadyBackedUpFiles.forEach(fileMetadata -> manifest.put(fileMetadata.fileName(), fileMetadata));
+        return manifest;
+    }
+
+    private BackupFolderSummary backupSingleFolderImpl(Path folder, String backupName, Map<String, FileMetadata> manifest) throws
             IOException, ExecutionException, InterruptedException {
         logger.info("Start backup '{}' from folder '{}'", backupName, folder);
         if (!folder.toFile().isDirectory()) {
             throw new RuntimeException("Must be a folder " + folder);
         }
 
-        Map<String, FileMetadata> fileNamesMap = alreadyBackedUpFiles
-                .stream()
-                .collect(Collectors.toMap(FileMetadata::fileName, fileMetadata -> fileMetadata));
-
+        Set<String> existingFiles = new LinkedHashSet<>();
+        try (Stream<Path> walk = Files.walk(folder)) {
+            for (Path file : (Iterable<Path>) walk::iterator) {
+                if (file.equals(folder) || file.toFile().isDirectory()) {
+                    continue;
+                }
+                if (shouldIgnoreFile(file.toString())) {
+                    logger.debug("file {} is ignored", file);
+                    continue;
+                }
+                existingFiles.add(folder.relativize(file).toString());
+            }
+        }
+        Set<String> deletedFiles = new LinkedHashSet<>(manifest.keySet());
+        deletedFiles.removeAll(existingFiles);
+        return backupChanges(folder, backupName, manifest, existingFiles, deletedFiles);
+    }
 
+    /**
+     * Backs up the given files, if they changed, and deletes the given deleted files in the backup.
+     *
+     * @param manifest     the backed up files by file name: updated with the backed up and deleted files
+     * @param filesToBackup new or maybe changed files, relative to the folder
+     * @param deletedFiles  backed up files which don't exist anymore
+     */
+    private BackupFolderSummary backupChanges(Path folder,
+                                              String backupName,
+                                              Map<String, FileMetadata> manifest,
+                                              Set<String> filesToBackup,
+                                              Set<String> deletedFiles) throws
+            IOException, ExecutionException, InterruptedException {
         Path tempDirectory = Files.createTempDirectory(backupName);
         tempDirectory.toFile().deleteOnExit();
 
-        List<CompletableFuture<?>> futures = new ArrayList<>();
-        List<BackedUpFile> newlyBackedUpFiles = Collections.synchronizedList(new ArrayList<>());
-        Set<String> existingFiles = Collections.synchronizedSet(new LinkedHashSet<>());
-        try (Stream<Path> walk = Files.walk(folder)) {
-            walk.forEach(file -> {
-                if (file.equals(folder)) {
-                    return;
-                }
-                if (file.toFile().isDirectory()) {
-                    return;
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(checkpointFolder(backupName))) {
+            if (!orphanedUploadsCheckedBackups.contains(backupName)) {
+                abortOrphanedMultipartUploads(backupName, checkpoint.multipartUploadIds());
+                orphanedUploadsCheckedBackups.add(backupName);
+            }
+
+            Set<Long> newFileSizes = new LinkedHashSet<>();
+            for (String fileToBackup : filesToBackup) {
+                if (!manifest.containsKey(fileToBackup)) {
+                    newFileSizes.add(folder.resolve(fileToBackup).toFile().length());
                 }
-                if (shouldIgnoreFile(file.toString())) {
-                    logger.debug("file {} is ignored", file);
-                    return;
+            }
+
+            // a deleted file can only have been moved to a new file of the same size
+            Map<String, FileMetadata> moveSources = new LinkedHashMap<>();
+            List<FileMetadata> moveCandidates = new ArrayList<>();
+            List<FileMetadata> otherDeletedFiles = new ArrayList<>();
+            for (String deletedFile : deletedFiles) {
+                FileMetadata fileMetadata = manifest.get(deletedFile);
+                if (newFileSizes.contains(fileMetadata.originalFileSizeInBytes())) {
+                    moveSources.putIfAbsent(moveKey(fileMetadata.originalFileSha256Base64(), fileMetadata.originalFileSizeInBytes()), fileMetadata);
+                    moveCandidates.add(fileMetadata);
+                } else {
+                    otherDeletedFiles.add(fileMetadata);
                 }
+            }
+            logger.info("Found {} deleted files", deletedFiles.size());
+            // the metadata of files which can't have been moved is deleted while the files are uploaded: only whether
+            // their content is still referenced is known after the uploads
+            CompletableFuture<DeleteFilesResult> metadataDeletes = deleteFiles(otherDeletedFiles, Set.of());
+
+            // content objects the backed up files referenced before, e.g. the content a changed file was moved from
+            Set<String> releasedContentObjectKeys = ConcurrentHashMap.newKeySet();
+            List<CompletableFuture<?>> futures = new ArrayList<>();
+            List<BackedUpFile> newlyBackedUpFiles = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger retryBudget = new AtomicInteger(Math.max(MIN_MODIFIED_FILE_RETRIES, filesToBackup.size() / 10));
+            for (String fileToBackup : filesToBackup) {
+                Path fileRelativePath = Path.of(fileToBackup);
                 futures.add(CompletableFuture.runAsync((() -> {
                     try {
-                        Path fileRelativePath = folder.relativize(file);
-                        existingFiles.add(fileRelativePath.toString());
-                        BackedUpFile backedUpFile = encryptAndUploadFile(folder, fileRelativePath, tempDirectory, backupName, fileNamesMap);
+                        progressReporter.fileStarted();
+                        BackedUpFile backedUpFile = encryptAndUploadModifiedFile(folder, fileRelativePath, tempDirectory, backupName,
+                                manifest, moveSources, releasedContentObjectKeys, checkpoint, retryBudget);
+                        progressReporter.fileFinished(folder.resolve(fileRelativePath).toFile().length());
                         newlyBackedUpFiles.add(backedUpFile);
                     } catch (Exception e) {
                         logger.info("upload failed", e);
                         throw new RuntimeException(e);
                     }
                 }), threadPoolExecutor));
-            });
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+            logger.info("finished uploading new or changed files");
+
+            DeleteFilesResult metadataDeletesResult = metadataDeletes.get();
+            Set<String> deletedMetadataFileNames = new HashSet<>();
+            metadataDeletesResult.deletedFiles().forEach(deletedFile -> deletedMetadataFileNames.add(deletedFile.relativePath()));
+            // files whose metadata failed to be deleted stay in the manifest and keep referencing their content
+            List<FileMetadata> filesReleasingContent = new ArrayList<>(moveCandidates);
+            otherDeletedFiles.stream()
+                    .filter(fileMetadata -> deletedMetadataFileNames.contains(fileMetadata.fileName()))
+                    .forEach(filesReleasingContent::add);
+            // only after the uploads all references are known, e.g. of moved files or of files deduplicated meanwhile
+            Set<String> contentObjectKeysToDelete = unreferencedContentObjectKeys(manifest, filesReleasingContent, releasedContentObjectKeys);
+            DeleteFilesResult moveCandidatesResult = deleteFiles(moveCandidates, contentObjectKeysToDelete).get();
+            Set<String> remainingContentObjectKeysToDelete = new LinkedHashSet<>(contentObjectKeysToDelete);
+            moveCandidates.forEach(moveCandidate -> remainingContentObjectKeysToDelete.remove(moveCandidate.contentObjectKey()));
+            deleteContentObjects(remainingContentObjectKeysToDelete);
+            List<DeletedFile> allDeletedFiles = new ArrayList<>(metadataDeletesResult.deletedFiles());
+            allDeletedFiles.addAll(moveCandidatesResult.deletedFiles());
+            List<FailedDelete> allFailedDeletes = new ArrayList<>(metadataDeletesResult.failedDeletes());
+            allFailedDeletes.addAll(moveCandidatesResult.failedDeletes());
+            // files which failed to be deleted stay in the manifest: they are deleted with the next backup
+            allDeletedFiles.forEach(deletedFile -> manifest.remove(deletedFile.relativePath()));
+            // uploads recorded in the checkpoint which were not resumed, e.g. because the file changed meanwhile.
+            // Completed uploads are removed from the checkpoint: without others, no upload was left behind
+            if (!checkpoint.multipartUploadIds().isEmpty()) {
+                abortOrphanedMultipartUploads(backupName, Set.of());
+            }
+            checkpoint.finish();
+            return new BackupFolderSummary(backupName, folder.toString(), newlyBackedUpFiles, allDeletedFiles, allFailedDeletes);
+        }
+    }
 
+    /**
+     * Opens the content index of the bucket. A new index is built from the metadata of all configured backups.
+     */
+    private void openContentIndex() throws IOException, ExecutionException, InterruptedException {
+        contentIndex = ContentIndex.open(contentIndexFile());
+        if (!contentIndex.isBuilt()) {
+            logger.info("building the content index from the metadata of all backups");
+            for (String backupName : backupNames()) {
+                addToContentIndex(getBackedUpFiles(backupName));
+            }
+            contentIndex.built();
         }
-        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
-        logger.info("finished uploading new or changed files");
+    }
+
+    private Path contentIndexFile() {
+        return configFile.getCacheFolder().resolve(bucketName).resolve("content-index");
+    }
+
+    private void addToContentIndex(List<FileMetadata> backedUpFiles) throws IOException {
+        for (FileMetadata fileMetadata : backedUpFiles) {
+            contentIndex.addContentObject(
+                    encryption.createContentHash(fileMetadata.originalFileSha256Base64(), fileMetadata.originalFileSizeInBytes()),
+                    new ContentObject(fileMetadata.contentObjectKey(), fileMetadata.contentVersionId()));
+            contentIndex.addReference(fileMetadata.contentObjectKey(), fileMetadata.objectKey());
+        }
+    }
+
+    /**
+     * The content objects of the files to delete and the released content objects which are not referenced by any
+     * remaining file, of this backup or of any other backup known to the content index. The references of the files
+     * to delete are released.
+     */
+    private Set<String> unreferencedContentObjectKeys(Map<String, FileMetadata> manifest,
+                                                      List<FileMetadata> filesToDelete,
+                                                      Set<String> releasedContentObjectKeys) throws IOException {
+        Set<String> fileNamesToDelete = new HashSet<>();
+        filesToDelete.forEach(fileMetadata -> fileNamesToDelete.add(fileMetadata.fileName()));
+        Set<String> referencedContentObjectKeys = new HashSet<>();
+        for (FileMetadata backedUpFile : manifest.values()) {
+            if (!fileNamesToDelete.contains(backedUpFile.fileName())) {
+                referencedContentObjectKeys.add(backedUpFile.contentObjectKey());
+            }
+        }
+        Set<String> result = new HashSet<>(releasedContentObjectKeys);
+        for (FileMetadata fileToDelete : filesToDelete) {
+            if (contentIndex != null) {
+                contentIndex.removeReference(fileToDelete.contentObjectKey(), fileToDelete.objectKey());
+            }
+            result.add(fileToDelete.contentObjectKey());
+        }
+        result.removeIf(contentObjectKey -> referencedContentObjectKeys.contains(contentObjectKey)
+                || (contentIndex != null && contentIndex.isReferenced(contentObjectKey)));
+        return result;
+    }
+
+    private Path checkpointFolder(String backupName) {
+        return configFile.getCheckpointFolder().resolve(bucketName).resolve(backupName);
+    }
 
-        List<DeletedFile> deletedFiles = deleteFiles(alreadyBackedUpFiles, existingFiles);
-        return new BackupFolderSummary(backupName, folder.toString(), newlyBackedUpFiles, deletedFiles);
+    /**
+     * Multipart uploads of an interrupted backup which can't be resumed only cost storage: they are aborted.
+     */
+    private void abortOrphanedMultipartUploads(String backupName, Set<String> resumableUploadIds) {
+        ListMultipartUploadsRequest listMultipartUploadsRequest = ListMultipartUploadsRequest.builder()
+                .bucket(bucketName)
+                .prefix(backupName + "/")
+                .build();
+        for (MultipartUpload multipartUpload : s3Client.listMultipartUploadsPaginator(listMultipartUploadsRequest).uploads()) {
+            if (resumableUploadIds.contains(multipartUpload.uploadId())) {
+                continue;
+            }
+            logger.info("aborting orphaned multipart upload of {} started at {}", multipartUpload.key(), multipartUpload.initiated());
+            AbortMultipartUploadRequest abortMultipartUploadRequest = AbortMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(multipartUpload.key())
+                    .uploadId(multipartUpload.uploadId())
+                    .build();
+            s3Client.abortMultipartUpload(abortMultipartUploadRequest);
+        }
     }
 
 
     public void verifyAllBackup() throws IOException, NoSuchAlgorithmException, ExecutionException, InterruptedException {
+        runMetrics.command("verify");
         logger.info("start verifying all {} backups", configFile.getFoldersBackupConfig().size());
         for (FolderToBackupConfig folderToBackupConfig : configFile.getFoldersBackupConfig()) {
             verifyBackup(folderToBackupConfig.backupName());
@@ -425,6 +1058,7 @@ public class Impl {
     }
 
     public void verifyBackup(String backupName) throws IOException, NoSuchAlgorithmException, ExecutionException, InterruptedException {
+        runMetrics.command("verify");
         logger.info("Start verifying backup {}", backupName);
         Path tempDirectory = Files.createTempDirectory(backupName);
         logger.debug("Created tmp directory {}", tempDirectory);
@@ -434,22 +1068,156 @@ public class Impl {
     }
 
     public void restoreFullBackup(String backupName, Path targetFolder) throws IOException, ExecutionException, InterruptedException, NoSuchAlgorithmException {
-        List<FileMetadata> backedUpFiles = getBackedUpFiles(backupName);
+        restoreFullBackup(backupName, targetFolder, RestoreOptions.defaults());
+    }
 
-        List<CompletableFuture<?>> completableFutures = new ArrayList<>();
-        for (final FileMetadata fileMetadata : backedUpFiles) {
-            completableFutures.add(CompletableFuture.runAsync(() -> {
+    public void restoreFullBackup(String backupName, Path targetFolder, RestoreOptions restoreOptions) throws
+            IOException, ExecutionException, InterruptedException {
+        runMetrics.command("restore");
+        restoreFiles(backupName, getBackedUpFiles(backupName), targetFolder, restoreOptions);
+    }
+
+    /**
+     * Restores the latest version of all files matching the pattern. Only the metadata of matching files is read,
+     * as far as the file names are known from the metadata cache.
+     */
+    public void restoreMatchingFiles(String backupName, Pattern filePattern, Path targetFolder, RestoreOptions restoreOptions) throws
+            IOException, ExecutionException, InterruptedException {
+        runMetrics.command("restore");
+        List<FileMetadata> matchingFiles = getBackedUpFiles(backupName, filePattern);
+        logger.info("{} files in backup {} match the pattern '{}'", matchingFiles.size(), backupName, filePattern);
+        restoreFiles(backupName, matchingFiles, targetFolder, restoreOptions);
+    }
+
+    /**
+     * Restores the backup as it was at the given time: for every file the metadata version which was current at
+     * that time. Files which were deleted at that time or backed up later are not restored.
+     * <p>
+     * The versions of all files are resolved from one listing of all metadata versions and delete markers.
+     *
+     * @param filePattern only files matching the pattern are restored, null means all files
+     */
+    public void restoreAsOf(String backupName,
+                            Instant asOf,
+                            @Nullable Pattern filePattern,
+                            Path targetFolder,
+                            RestoreOptions restoreOptions) throws IOException, ExecutionException, InterruptedException {
+        runMetrics.command("restore");
+        List<FileMetadata> filesAsOf = getBackedUpFilesAsOf(backupName, asOf, filePattern);
+        logger.info("{} files in backup {} as of {}", filesAsOf.size(), backupName, asOf);
+        restoreFiles(backupName, filesAsOf, targetFolder, restoreOptions);
+    }
+
+    private List<FileMetadata> getBackedUpFilesAsOf(String backupName, Instant asOf, @Nullable Pattern filePattern) throws
+            ExecutionException, InterruptedException, IOException {
+        Map<String, List<Object>> objectKeyToVersionAndDeleteMarker;
+        try (PhaseTimer timer = runMetrics.time("remoteListing")) {
+            objectKeyToVersionAndDeleteMarker = listMetadataVersionsAndDeleteMarkers(backupName);
+        }
+        MetadataCache metadataCache = metadataCache(backupName);
+
+        List<FileMetadata> result = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (Map.Entry<String, List<Object>> entry : objectKeyToVersionAndDeleteMarker.entrySet()) {
+            String objectKey = entry.getKey();
+            ObjectVersion versionAsOf = null;
+            // sorted by date: the last entry not after asOf was current at that time
+            for (Object versionOrDeleteMarker : entry.getValue()) {
+                if (lastModified(versionOrDeleteMarker).isAfter(asOf)) {
+                    break;
+                }
+                versionAsOf = versionOrDeleteMarker instanceof ObjectVersion objectVersion ? objectVersion : null;
+            }
+            if (versionAsOf == null) {
+                continue;
+            }
+            if (filePattern != null) {
+                String cachedFileName = metadataCache.fileName(nameHash(backupName, objectKey));
+                if (cachedFileName != null && !filePattern.matcher(cachedFileName).matches()) {
+                    continue;
+                }
+            }
+            ObjectVersion metadataObjectVersion = versionAsOf;
+            futures.add(CompletableFuture.runAsync(() -> {
                 try {
-                    restoreFile(fileMetadata, targetFolder);
+                    FileMetadata fileMetadata = readFileMetadataVersion(backupName, objectKey, metadataObjectVersion, metadataCache);
+                    if (filePattern == null || filePattern.matcher(fileMetadata.fileName()).matches()) {
+                        result.add(fileMetadata);
+                    }
                 } catch (Exception e) {
-                    logger.error("error restoring file {}", fileMetadata.fileName, e);
+                    logger.error("error reading metadata object ", e);
                     throw new RuntimeException(e);
                 }
             }, threadPoolExecutor));
         }
-        logger.info("Waiting for restoring of all files finished");
-        CompletableFuture.allOf(completableFutures.toArray(new CompletableFuture[0])).get();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+        return result;
+    }
+
+    private void restoreFiles(String backupName,
+                              List<FileMetadata> backedUpFiles,
+                              Path targetFolder,
+                              RestoreOptions restoreOptions) throws IOException, ExecutionException, InterruptedException {
+        long totalBytes = backedUpFiles.stream().mapToLong(FileMetadata::originalFileSizeInBytes).sum();
+        AtomicLong alreadyRestoredFiles = new AtomicLong();
+        // the thread pool starts the files in the order they are submitted
+        List<FileMetadata> orderedFiles = restoreOptions.order().sort(backedUpFiles, restoreOptions.priorityPatterns());
+        RestoreManifest restoreManifest = restoreOptions.manifest() != null
+                ? RestoreManifest.create(restoreOptions.manifest(), orderedFiles.stream().map(FileMetadata::fileName).toList())
+                : null;
+
+        progressReporter = ProgressReporter.start("restore '" + backupName + "'", backedUpFiles.size(), totalBytes,
+                s3RequestsLimiter::inFlight);
+        try {
+            List<CompletableFuture<?>> completableFutures = new ArrayList<>();
+            for (final FileMetadata fileMetadata : orderedFiles) {
+                completableFutures.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        progressReporter.fileStarted();
+                        if (restoreOptions.incremental() && isAlreadyRestored(fileMetadata, targetFolder)) {
+                            logger.debug("file {} is already restored", fileMetadata.fileName());
+                            alreadyRestoredFiles.incrementAndGet();
+                            runMetrics.increment("filesAlreadyRestored", 1);
+                        } else {
+                            restoreFile(fileMetadata, targetFolder);
+                        }
+                        if (restoreManifest != null) {
+                            restoreManifest.fileRestored(fileMetadata.fileName());
+                        }
+                        progressReporter.fileFinished(fileMetadata.originalFileSizeInBytes());
+                    } catch (Exception e) {
+                        logger.error("error restoring file {}", fileMetadata.fileName, e);
+                        throw new RuntimeException(e);
+                    }
+                }, threadPoolExecutor));
+            }
+            logger.info("Waiting for restoring of all files finished");
+            CompletableFuture.allOf(completableFutures.toArray(new CompletableFuture[0])).get();
+        } finally {
+            progressReporter.close();
+            progressReporter = ProgressReporter.disabled();
+            if (restoreManifest != null) {
+                restoreManifest.close();
+            }
+        }
+        if (restoreOptions.incremental()) {
+            logger.info("Restored {} files with {} to {}, of which {} files were already restored", backedUpFiles.size(),
+                    bytesToHumanReadableFormat(totalBytes), targetFolder, alreadyRestoredFiles.get());
+        } else {
+            logger.info("Restored {} files with {} to {}", backedUpFiles.size(), bytesToHumanReadableFormat(totalBytes), targetFolder);
+        }
+    }
 
+    /**
+     * Whether the file exists in the target folder with the size and SHA256 of the backed up file. The size is
+     * compared first: files from an interrupted restore are usually incomplete and don't need to be hashed.
+     */
+    private boolean isAlreadyRestored(FileInfo fileInfo, Path targetFolder) throws IOException, NoSuchAlgorithmException {
+        Path file = targetFolder.resolve(fileInfo.fileName());
+        if (!Files.isRegularFile(file) || Files.size(file) != fileInfo.originalFileSizeInBytes()) {
+            return false;
+        }
+        return hashLike(file, fileInfo.originalFileSha256Base64()).equals(fileInfo.originalFileSha256Base64());
     }
 
 
@@ -457,9 +1225,11 @@ public class Impl {
                                       Path targetFolder,
                                       String fileToRestore,
                                       String metadataVersionId) throws IOException, NoSuchAlgorithmException {
-        String fileNameHash = createFileNameHash(Path.of(fileToRestore));
+        runMetrics.command("restore");
+        String fileNameHash = encryption.createFileNameHash(Path.of(fileToRestore));
         FileMetadata fileMetadata = readFileMetadata(backupName + "/" + fileNameHash + "/", metadataVersionId);
         restoreFile(fileMetadata, targetFolder);
+        logger.info("file {} restored at {}", fileToRestore, targetFolder);
     }
 
 
@@ -467,42 +1237,60 @@ public class Impl {
                             String backupName,
                             String fileToRestore) throws
             IOException, ExecutionException, InterruptedException, NoSuchAlgorithmException {
-        List<FileMetadata> alreadyBackedUpFiles = getBackedUpFiles(backupName);
-        Optional<FileMetadata> backedUpFileOptional = alreadyBackedUpFiles.stream().filter(fileMetadata -> fileMetadata.fileName.equals(fileToRestore)).findFirst();
-        if (backedUpFileOptional.isEmpty()) {
+        runMetrics.command("restore");
+        FileMetadata backedUpFile = readLatestFileMetadata(backupName, fileToRestore);
+        if (backedUpFile == null) {
             logger.info("file {} not found in backup {} ... nothing to restore", fileToRestore, backupName);
             return;
         }
-        restoreFile(backedUpFileOptional.get(), targetFolder);
+        restoreFile(backedUpFile, targetFolder);
+        logger.info("file {} restored at {}", fileToRestore, targetFolder);
     }
 
 
     public void restoreFile(FileInfo fileInfo,
                             Path targetFolder) throws IOException, NoSuchAlgorithmException {
         logger.debug("restoring file {}", fileInfo);
+        RestoreFileEvent restoreFileEvent = new RestoreFileEvent();
+        restoreFileEvent.begin();
         /**
          * Download
          */
         GetObjectRequest getObjectRequest = GetObjectRequest
                 .builder()
                 .bucket(bucketName)
-                .key(contentObjectKey(fileInfo.objectKey()))
+                .key(fileInfo.contentObjectKey())
                 .versionId(fileInfo.contentVersionId())
                 .build();
         Path encryptedFiled = targetFolder.resolve(fileInfo.fileName() + ".encrypted");
         encryptedFiled.toFile().getParentFile().mkdirs();
         long time = System.currentTimeMillis();
         logger.debug("Start downloading file {}. Original file size: {} bytes", fileInfo.fileName(), fileInfo.originalFileSizeInBytes());
-        GetObjectResponse getObjectResponse = s3Client.getObject(getObjectRequest, encryptedFiled);
+        try (Permit permit = s3RequestsLimiter.acquire();
+             PhaseTimer timer = runMetrics.time("download")) {
+            if (crtTransfer != null) {
+                crtTransfer.downloadFile(getObjectRequest.key(), getObjectRequest.versionId(), encryptedFiled);
+            } else {
+                s3Client.getObject(getObjectRequest, encryptedFiled);
+            }
+            progressReporter.transferred(Files.size(encryptedFiled));
+            permit.completed(Files.size(encryptedFiled));
+            timer.bytes(Files.size(encryptedFiled));
+        }
         logger.debug("Finished downloading file {} after {}ms ", fileInfo.fileName(), System.currentTimeMillis() - time);
         Path decryptedFile = targetFolder.resolve(fileInfo.fileName());
-        decryptFile(decryptedFile, encryptedFiled.toFile());
+        try (Permit permit = encryptionLimiter.acquire();
+             PhaseTimer timer = runMetrics.time("decrypt")) {
+            encryption.decryptFile(encryptedFiled, decryptedFile);
+            permit.completed(Files.size(encryptedFiled));
+            timer.bytes(Files.size(encryptedFiled));
+        }
         encryptedFiled.toFile().deleteOnExit();
 
         /**
          * Verify
          */
-        String sha256 = Util.sha256Base64ForFile(decryptedFile);
+        String sha256 = hashLike(decryptedFile, fileInfo.originalFileSha256Base64());
         if (sha256.equals(fileInfo.originalFileSha256Base64())) {
             logger.debug("Verified SHA256 successfully for restored file {}", fileInfo.fileName());
         } else {
@@ -510,7 +1298,11 @@ public class Impl {
             throw new RuntimeException("Could not verify restored file");
         }
 
-        logger.info("file {} restored at {}", fileInfo.fileName(), targetFolder);
+        runMetrics.increment("filesRestored", 1);
+        restoreFileEvent.file = fileInfo.fileName();
+        restoreFileEvent.bytes = fileInfo.originalFileSizeInBytes();
+        restoreFileEvent.commit();
+        logger.debug("file {} restored at {}", fileInfo.fileName(), targetFolder);
     }
 
 
@@ -520,84 +1312,116 @@ public class Impl {
      */
     public Map<String, List<FileMetadata>> allBackedUpFiles() throws
             IOException, ExecutionException, InterruptedException {
+        return allBackedUpFiles(null, null);
+    }
+
+    /**
+     * @param backupName  only this backup is listed, null means all backups in the config file
+     * @param filePattern only the metadata of files matching the pattern is read, as far as the file names
+     *                    are known from the local cache. null means all files.
+     */
+    public Map<String, List<FileMetadata>> allBackedUpFiles(@Nullable String backupName, @Nullable Pattern filePattern) throws
+            IOException, ExecutionException, InterruptedException {
+        runMetrics.command("list");
         Map<String, List<FileMetadata>> result = new LinkedHashMap<>();
-        List<FolderToBackupConfig> foldersBackupConfig = configFile.getFoldersBackupConfig();
-        for (FolderToBackupConfig folderToBackupConfig : foldersBackupConfig) {
-            List<FileMetadata> fileMetadata = getBackedUpFiles(folderToBackupConfig.backupName());
-            result.put(folderToBackupConfig.backupName(), fileMetadata);
+        for (String name : backupNames(backupName)) {
+            result.put(name, getBackedUpFiles(name, filePattern));
         }
         return result;
     }
 
-    public Map<String, Map<String, List<HistoricalFile>>> allBackedUpFilesIncludingHistory() throws ExecutionException, InterruptedException {
-        Map<String, Map<String, List<HistoricalFile>>> result = new LinkedHashMap<>();
-        List<FolderToBackupConfig> foldersBackupConfig = configFile.getFoldersBackupConfig();
-        for (FolderToBackupConfig folderToBackupConfig : foldersBackupConfig) {
-            Map<String, List<HistoricalFile>> fileMetadata = getBackedUpFilesIncludingHistory(folderToBackupConfig.backupName());
-            result.put(folderToBackupConfig.backupName(), fileMetadata);
+    /**
+     * The latest version of a single file, looked up directly via its name hash.
+     *
+     * @return null if the file isn't backed up or was deleted
+     */
+    public @Nullable FileMetadata backedUpFile(String backupName, String fileName) throws IOException {
+        runMetrics.command("list");
+        return readLatestFileMetadata(backupName, fileName);
+    }
+
+    /**
+     * @return null if the file isn't backed up or was deleted
+     */
+    private @Nullable FileMetadata readLatestFileMetadata(String backupName, String fileName) throws IOException {
+        String keyWithEndingSlash = backupName + "/" + encryption.createFileNameHash(Path.of(fileName)) + "/";
+        try {
+            return readFileMetadata(keyWithEndingSlash, null);
+        } catch (NoSuchKeyException e) {
+            return null;
         }
-        return result;
+    }
 
+    /**
+     * The names of all backups in the config file.
+     */
+    public List<String> backupNames() {
+        return backupNames(null);
     }
 
+    private List<String> backupNames(@Nullable String backupName) {
+        if (backupName != null) {
+            return List.of(backupName);
+        }
+        return configFile.getFoldersBackupConfig().stream().map(FolderToBackupConfig::backupName).toList();
+    }
+
+    public Map<String, Map<String, List<HistoricalFile>>> allBackedUpFilesIncludingHistory() throws ExecutionException, InterruptedException, IOException {
+        return allBackedUpFilesIncludingHistory(null, null);
+    }
 
     /**
-     * The result is ordered by date, from oldest to newest.
+     * @param backupName  only this backup is listed, null means all backups in the config file
+     * @param filePattern only the history of the files matching the pattern is read, null means all files
      */
-    private Map<String, List<HistoricalFile>> getBackedUpFilesIncludingHistory(String backupName) throws ExecutionException, InterruptedException {
-        List<CommonPrefix> allKeys = getAllObjectKeysInBackup(backupName, true);
+    public Map<String, Map<String, List<HistoricalFile>>> allBackedUpFilesIncludingHistory(@Nullable String backupName,
+                                                                                         @Nullable Pattern filePattern) throws
+            ExecutionException, InterruptedException, IOException {
+        runMetrics.command("list");
+        Map<String, Map<String, List<HistoricalFile>>> result = new LinkedHashMap<>();
+        for (String name : backupNames(backupName)) {
+            result.put(name, getBackedUpFilesIncludingHistory(name, filePattern));
+        }
+        return result;
 
-        Map<String, List<Object>> objectKeyToVersionAndDeleteMarker = new LinkedHashMap<>();
-        for (CommonPrefix commonPrefix : allKeys) {
-            ListObjectVersionsRequest req = ListObjectVersionsRequest.builder()
-                    .bucket(bucketName)
-                    .prefix(commonPrefix.prefix() + "metadata")
-                    .delimiter("/")
-                    .maxKeys(1_000)
-                    .build();
-            ListObjectVersionsIterable iterable = s3Client.listObjectVersionsPaginator(req);
-            /**
-             Unfortunately in SDK v2 versions and delete markers are parsed separately
-             which means we need to create again one list by combining and sorting both lists.
-             "LastModified" has a 1 seconds resolution, which means in theory we can't separate events
-             happened in less than 1 second, which should be fine for our use case here.
-             See https://github.com/aws/aws-sdk-cpp/issues/1649
-             and https://github.com/aws/aws-sdk-java-v2/issues/1620
-             */
-            List<Object> versionsAndDeleteMarkers = new ArrayList<>();
-            iterable.stream().forEach(singleResp -> {
-                versionsAndDeleteMarkers.addAll(singleResp.versions());
-                versionsAndDeleteMarkers.addAll(singleResp.deleteMarkers());
-            });
-            versionsAndDeleteMarkers.sort((o1, o2) -> {
-                Instant i1 = null;
-                if (o1 instanceof ObjectVersion objectVersion) {
-                    i1 = objectVersion.lastModified();
-                } else if (o1 instanceof DeleteMarkerEntry deleteMarkerEntry) {
-                    i1 = deleteMarkerEntry.lastModified();
-                }
-                Instant i2 = null;
-                if (o2 instanceof ObjectVersion objectVersion) {
-                    i2 = objectVersion.lastModified();
-                } else if (o2 instanceof DeleteMarkerEntry deleteMarkerEntry) {
-                    i2 = deleteMarkerEntry.lastModified();
-                }
-                return i1.compareTo(i2);
-            });
-            objectKeyToVersionAndDeleteMarker.put(commonPrefix.prefix(), versionsAndDeleteMarkers);
+    }
+
+
+    /**
+     * The versions of every file are ordered by date, from oldest to newest.
+     * <p>
+     * All metadata versions and delete markers of the backup are listed in one sweep. Metadata is only read
+     * for the files matching the pattern: once to find the file name and then for every version, which is
+     * cached locally because metadata versions never change.
+     */
+    private Map<String, List<HistoricalFile>> getBackedUpFilesIncludingHistory(String backupName, @Nullable Pattern filePattern) throws
+            ExecutionException, InterruptedException, IOException {
+        Map<String, List<Object>> objectKeyToVersionAndDeleteMarker;
+        try (PhaseTimer timer = runMetrics.time("remoteListing")) {
+            objectKeyToVersionAndDeleteMarker = listMetadataVersionsAndDeleteMarkers(backupName);
         }
+        logger.info("Total files backed up including deleted files: {}", objectKeyToVersionAndDeleteMarker.size());
+        MetadataCache metadataCache = metadataCache(backupName);
 
         Map<String, List<HistoricalFile>> result = Collections.synchronizedMap(new LinkedHashMap<>());
         List<CompletableFuture<?>> futures = new ArrayList<>();
         for (String objectKey : objectKeyToVersionAndDeleteMarker.keySet()) {
             futures.add(CompletableFuture.runAsync(() -> {
-                // This is sorted
-                String fileName = null;
-                List<HistoricalFile> fileMetadataForOneKey = new ArrayList<>();
-                for (Object versionOrDeleteMarker : objectKeyToVersionAndDeleteMarker.get(objectKey)) {
-                    if (versionOrDeleteMarker instanceof ObjectVersion metadataObjectVersion) {
-                        try {
-                            FileMetadata fileMetadata = readFileMetadata(objectKey, metadataObjectVersion.versionId());
+                try {
+                    // This is sorted
+                    List<Object> versionsAndDeleteMarkers = objectKeyToVersionAndDeleteMarker.get(objectKey);
+                    String fileName = fileName(backupName, objectKey, versionsAndDeleteMarkers, metadataCache);
+                    if (fileName == null) {
+                        logger.debug("no metadata version found for {} ... ignoring it", objectKey);
+                        return;
+                    }
+                    if (filePattern != null && !filePattern.matcher(fileName).matches()) {
+                        return;
+                    }
+                    List<HistoricalFile> fileMetadataForOneKey = new ArrayList<>();
+                    for (Object versionOrDeleteMarker : versionsAndDeleteMarkers) {
+                        if (versionOrDeleteMarker instanceof ObjectVersion metadataObjectVersion) {
+                            FileMetadata fileMetadata = readFileMetadataVersion(backupName, objectKey, metadataObjectVersion, metadataCache);
                             fileMetadataForOneKey.add(new HistoricalBackedUpFile(
                                     fileMetadata.fileName,
                                     fileMetadata.originalFileSha256Base64,
@@ -606,40 +1430,161 @@ public class Impl {
                                     metadataObjectVersion.isLatest(),
                                     objectKey,
                                     fileMetadata.contentVersionId,
-                                    metadataObjectVersion.versionId()
+                                    metadataObjectVersion.versionId(),
+                                    fileMetadata.contentObjectKey
+                            ));
+                        } else if (versionOrDeleteMarker instanceof DeleteMarkerEntry deleteMarkerEntry) {
+                            fileMetadataForOneKey.add(new HistoricalDeletedFile(
+                                    fileName,
+                                    deleteMarkerEntry.lastModified(),
+                                    deleteMarkerEntry.isLatest()
                             ));
-                            if (fileName == null) {
-                                fileName = fileMetadata.fileName;
-                            }
-                        } catch (Exception e) {
-                            logger.error("error reading metadata object ", e);
-                            throw new RuntimeException(e);
                         }
-                    } else if (versionOrDeleteMarker instanceof DeleteMarkerEntry deleteMarkerEntry) {
-                        fileMetadataForOneKey.add(new HistoricalDeletedFile(
-                                fileName,
-                                deleteMarkerEntry.lastModified(),
-                                deleteMarkerEntry.isLatest()
-                        ));
                     }
+                    result.put(fileName, fileMetadataForOneKey);
+                } catch (Exception e) {
+                    logger.error("error reading metadata object ", e);
+                    throw new RuntimeException(e);
                 }
-                result.put(fileName, fileMetadataForOneKey);
             }, threadPoolExecutor));
         }
         CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
         return result;
     }
 
+    /**
+     * All versions and delete markers of the metadata objects of the backup, grouped by the key of the file
+     * (ending with a slash) and ordered by date.
+     */
+    private Map<String, List<Object>> listMetadataVersionsAndDeleteMarkers(String backupName) {
+        ListObjectVersionsRequest req = ListObjectVersionsRequest.builder()
+                .bucket(bucketName)
+                .prefix(backupName + "/")
+                .maxKeys(1_000)
+                .build();
+        Map<String, List<Object>> result = new LinkedHashMap<>();
+        for (ListObjectVersionsResponse response : s3Client.listObjectVersionsPaginator(req)) {
+            for (ObjectVersion objectVersion : response.versions()) {
+                if (objectVersion.key().endsWith("/metadata")) {
+                    result.computeIfAbsent(keyWithEndingSlash(objectVersion.key()), key -> new ArrayList<>()).add(objectVersion);
+                }
+            }
+            for (DeleteMarkerEntry deleteMarkerEntry : response.deleteMarkers()) {
+                if (deleteMarkerEntry.key().endsWith("/metadata")) {
+                    result.computeIfAbsent(keyWithEndingSlash(deleteMarkerEntry.key()), key -> new ArrayList<>()).add(deleteMarkerEntry);
+                }
+            }
+        }
+        /**
+         Unfortunately in SDK v2 versions and delete markers are parsed separately
+         which means we need to create again one list by combining and sorting both lists.
+         "LastModified" has a 1 seconds resolution, which means in theory we can't separate events
+         happened in less than 1 second, which should be fine for our use case here.
+         See https://github.com/aws/aws-sdk-cpp/issues/1649
+         and https://github.com/aws/aws-sdk-java-v2/issues/1620
+         */
+        for (List<Object> versionsAndDeleteMarkers : result.values()) {
+            versionsAndDeleteMarkers.sort(Comparator.comparing(Impl::lastModified));
+        }
+        return result;
+    }
+
+    private static Instant lastModified(Object versionOrDeleteMarker) {
+        if (versionOrDeleteMarker instanceof ObjectVersion objectVersion) {
+            return objectVersion.lastModified();
+        }
+        return ((DeleteMarkerEntry) versionOrDeleteMarker).lastModified();
+    }
+
+    private static String keyWithEndingSlash(String objectKey) {
+        return objectKey.substring(0, objectKey.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * The name of the file stored under this key, from the cache or from the metadata of the latest version.
+     */
+    private @Nullable String fileName(String backupName,
+                                      String keyWithEndingSlash,
+                                      List<Object> versionsAndDeleteMarkers,
+                                      MetadataCache metadataCache) throws IOException {
+        String fileName = metadataCache.fileName(nameHash(backupName, keyWithEndingSlash));
+        if (fileName != null) {
+            return fileName;
+        }
+        for (int i = versionsAndDeleteMarkers.size() - 1; i >= 0; i--) {
+            if (versionsAndDeleteMarkers.get(i) instanceof ObjectVersion objectVersion) {
+                return readFileMetadataVersion(backupName, keyWithEndingSlash, objectVersion, metadataCache).fileName();
+            }
+        }
+        return null;
+    }
+
+    private FileMetadata readFileMetadataVersion(String backupName,
+                                                 String keyWithEndingSlash,
+                                                 ObjectVersion metadataObjectVersion,
+                                                 MetadataCache metadataCache) throws IOException {
+        String nameHash = nameHash(backupName, keyWithEndingSlash);
+        String metadata = metadataCache.metadata(nameHash, metadataObjectVersion.versionId());
+        if (metadata != null) {
+            runMetrics.increment("metadataCacheHits", 1);
+            return decodeMetadata(metadata, keyWithEndingSlash, metadataObjectVersion.lastModified());
+        }
+        MetadataObject metadataObject = downloadMetadata(keyWithEndingSlash, metadataObjectVersion.versionId());
+        FileMetadata fileMetadata = decodeMetadata(metadataObject.metadata(), keyWithEndingSlash, metadataObject.creationDate());
+        metadataCache.addMetadata(nameHash, metadataObjectVersion.versionId(), metadataObject.metadata());
+        metadataCache.addFileName(nameHash, fileMetadata.fileName());
+        return fileMetadata;
+    }
+
+    private static String nameHash(String backupName, String keyWithEndingSlash) {
+        return keyWithEndingSlash.substring(backupName.length() + 1, keyWithEndingSlash.length() - 1);
+    }
+
+    private MetadataCache metadataCache(String backupName) throws IOException {
+        synchronized (metadataCaches) {
+            MetadataCache metadataCache = metadataCaches.get(backupName);
+            if (metadataCache == null) {
+                metadataCache = MetadataCache.open(configFile.getCacheFolder().resolve(bucketName).resolve(backupName).resolve("metadata"));
+                metadataCaches.put(backupName, metadataCache);
+            }
+            return metadataCache;
+        }
+    }
+
     private List<FileMetadata> getBackedUpFiles(String backupName) throws
-            ExecutionException, InterruptedException {
-        List<CommonPrefix> allPrefixes = getAllObjectKeysInBackup(backupName, false);
+            ExecutionException, InterruptedException, IOException {
+        return getBackedUpFiles(backupName, null);
+    }
+
+    /**
+     * @param filePattern files whose name is known from the metadata cache and doesn't match are skipped
+     *                    without reading their metadata. null means all files.
+     */
+    private List<FileMetadata> getBackedUpFiles(String backupName, @Nullable Pattern filePattern) throws
+            ExecutionException, InterruptedException, IOException {
+        List<CommonPrefix> allPrefixes;
+        try (PhaseTimer timer = runMetrics.time("remoteListing")) {
+            allPrefixes = getAllObjectKeysInBackup(backupName);
+        }
+        MetadataCache metadataCache = metadataCache(backupName);
 
         List<FileMetadata> result = Collections.synchronizedList(new ArrayList<>());
         List<CompletableFuture<?>> futures = new ArrayList<>();
         for (CommonPrefix commonPrefix : allPrefixes) {
+            String nameHash = nameHash(backupName, commonPrefix.prefix());
+            if (filePattern != null) {
+                String cachedFileName = metadataCache.fileName(nameHash);
+                if (cachedFileName != null && !filePattern.matcher(cachedFileName).matches()) {
+                    continue;
+                }
+            }
             futures.add(CompletableFuture.runAsync(() -> {
                 try {
-                    result.add(readFileMetadata(commonPrefix.prefix(), null));
+                    FileMetadata fileMetadata = readFileMetadata(commonPrefix.prefix(), null);
+                    metadataCache.addFileName(nameHash, fileMetadata.fileName());
+                    if (filePattern == null || filePattern.matcher(fileMetadata.fileName()).matches()) {
+                        result.add(fileMetadata);
+                    }
                 } catch (Exception e) {
                     logger.error("error reading metadata object ", e);
                     throw new RuntimeException(e);
@@ -651,98 +1596,264 @@ public class Impl {
     }
 
     private FileMetadata readFileMetadata(String keyWithEndingSlash, @Nullable String versionId) throws IOException {
+        MetadataObject metadataObject = downloadMetadata(keyWithEndingSlash, versionId);
+        FileMetadata fileMetadata = decodeMetadata(metadataObject.metadata(), keyWithEndingSlash, metadataObject.creationDate());
+        logger.debug("read metadata: {}", fileMetadata);
+        return fileMetadata;
+    }
+
+    private record MetadataObject(String metadata, Instant creationDate) {
+    }
+
+    /**
+     * Downloads and decrypts a metadata object.
+     */
+    private MetadataObject downloadMetadata(String keyWithEndingSlash, @Nullable String versionId) throws IOException {
         GetObjectRequest getObjectRequest = GetObjectRequest.builder()
                 .bucket(bucketName)
                 .key(keyWithEndingSlash + "metadata")
                 .versionId(versionId)
                 .build();
         logger.debug("get object for metadata: {}", getObjectRequest);
-        ResponseInputStream<GetObjectResponse> responseResponseInputStream = s3Client.getObject(getObjectRequest);
-        GetObjectResponse getObjectResponse = responseResponseInputStream.response();
-        Instant creationDate = getObjectResponse.lastModified();
-        byte[] metaDataEncrypted = IoUtils.toByteArray(responseResponseInputStream);
-        CryptoResult<byte[], JceMasterKey> decrypted = awsCrypto.decryptData(masterKey, metaDataEncrypted);
+        ReadMetadataEvent readMetadataEvent = new ReadMetadataEvent();
+        readMetadataEvent.begin();
+        Instant creationDate;
+        byte[] metaDataEncrypted;
+        try (Permit permit = s3RequestsLimiter.acquire();
+             PhaseTimer timer = runMetrics.time("readMetadata")) {
+            ResponseInputStream<GetObjectResponse> responseResponseInputStream = s3Client.getObject(getObjectRequest);
+            GetObjectResponse getObjectResponse = responseResponseInputStream.response();
+            creationDate = getObjectResponse.lastModified();
+            metaDataEncrypted = IoUtils.toByteArray(responseResponseInputStream);
+            permit.completed(metaDataEncrypted.length);
+            timer.bytes(metaDataEncrypted.length);
+        }
+        String metadata = new String(encryption.decrypt(metaDataEncrypted), StandardCharsets.UTF_8);
+        readMetadataEvent.objectKey = getObjectRequest.key();
+        readMetadataEvent.versionId = versionId;
+        readMetadataEvent.bytes = metaDataEncrypted.length;
+        readMetadataEvent.commit();
+        return new MetadataObject(metadata, creationDate);
+    }
+
+    /**
+     * @param treeHash the {@link TreeHash} of the file in addition to its SHA256, if it was hashed with one
+     */
+    static String encodeMetadata(Path originalFileRelative,
+                                 String originalFileSha256Base64,
+                                 long originalFileSizeBytes,
+                                 String contentVersionId,
+                                 @Nullable String treeHash) {
+        // comma separated list
+        return METADATA_VERSION_1 +
+                "," + Base64.getEncoder().encodeToString(originalFileRelative.toString().getBytes(StandardCharsets.UTF_8)) +
+                "," + originalFileSha256Base64 +
+                "," + originalFileSizeBytes +
+                "," + contentVersionId +
+                (treeHash != null ? "," + treeHash : "");
+    }
+
+    /**
+     * @param contentNameHash   the name hash of the file whose content object version is used
+     * @param contentBackupName the backup of that file, null means the same backup: required with a tree hash
+     * @param treeHash          the {@link TreeHash} of the file in addition to its SHA256, if it was hashed with one
+     */
+    static String encodeMetadata(Path originalFileRelative,
+                                 String originalFileSha256Base64,
+                                 long originalFileSizeBytes,
+                                 String contentVersionId,
+                                 String contentNameHash,
+                                 @Nullable String contentBackupName,
+                                 @Nullable String treeHash) {
+        if (treeHash != null && contentBackupName == null) {
+            throw new IllegalArgumentException("a tree hash requires the backup name of the content");
+        }
+        return METADATA_VERSION_2 +
+                "," + Base64.getEncoder().encodeToString(originalFileRelative.toString().getBytes(StandardCharsets.UTF_8)) +
+                "," + originalFileSha256Base64 +
+                "," + originalFileSizeBytes +
+                "," + contentVersionId +
+                "," + contentNameHash +
+                (contentBackupName != null ? "," + Base64.getEncoder().encodeToString(contentBackupName.getBytes(StandardCharsets.UTF_8)) : "") +
+                (treeHash != null ? "," + treeHash : "");
+    }
 
-        String metadata = new String(decrypted.getResult(), StandardCharsets.UTF_8);
+    static FileMetadata decodeMetadata(String metadata, String keyWithEndingSlash, Instant creationDate) {
         // we saved it as comma separated
         String[] metadataEntries = metadata.split(",");
 
         int metadataVersion = Integer.parseInt(metadataEntries[0]);
-        if (metadataVersion != METADATA_VERSION_1) {
-            logger.error("unexpected metadata version {}", metadataVersion);
-            throw new RuntimeException("unexpected metadata version");
+        if (metadataVersion != METADATA_VERSION_1 && metadataVersion != METADATA_VERSION_2) {
+            throw new RuntimeException("unexpected metadata version " + metadataVersion);
         }
         String fileName = new String(Base64.getDecoder().decode(metadataEntries[1]), StandardCharsets.UTF_8);
         String originalFileSha256Base64 = metadataEntries[2];
         long originalFileSizeInBytes = Long.parseLong(metadataEntries[3]);
         String contentVersionId = metadataEntries[4];
+        String contentObjectKey = contentObjectKey(keyWithEndingSlash);
+        int treeHashIndex = metadataVersion == METADATA_VERSION_1 ? TREE_HASH_INDEX_VERSION_1 : TREE_HASH_INDEX_VERSION_2;
+        String treeHash = metadataEntries.length > treeHashIndex ? metadataEntries[treeHashIndex] : null;
+        if (TreeHash.isTreeHash(originalFileSha256Base64)) {
+            // written by versions which stored the tree hash instead of the SHA256
+            treeHash = originalFileSha256Base64;
+        }
+        if (metadataVersion == METADATA_VERSION_2) {
+            // the backup name including the slash
+            String backupPrefix = metadataEntries.length > 6
+                    ? new String(Base64.getDecoder().decode(metadataEntries[6]), StandardCharsets.UTF_8) + "/"
+                    : keyWithEndingSlash.substring(0, keyWithEndingSlash.lastIndexOf('/', keyWithEndingSlash.length() - 2) + 1);
+            contentObjectKey = contentObjectKey(backupPrefix + metadataEntries[5] + "/");
+        }
 
-
-        FileMetadata fileMetadata = new FileMetadata(fileName,
+        return new FileMetadata(fileName,
                 originalFileSha256Base64,
                 keyWithEndingSlash,
                 originalFileSizeInBytes,
                 creationDate,
-                contentVersionId
+                contentVersionId,
+                contentObjectKey,
+                treeHash
         );
-        logger.debug("read metadata: {}", fileMetadata);
-        return fileMetadata;
     }
 
-    private List<CommonPrefix> getAllObjectKeysInBackup(String backupName, boolean includeDeleted) {
-        if (includeDeleted) {
-            ListObjectVersionsRequest req = ListObjectVersionsRequest.builder()
+    private List<CommonPrefix> getAllObjectKeysInBackup(String backupName) {
+        ListObjectsV2Response listObjectsV2Response;
+        String continuationToken = null;
+        List<CommonPrefix> allPrefixes = new ArrayList<>();
+        do {
+            ListObjectsV2Request listObjectsV2Request = ListObjectsV2Request.builder()
                     .bucket(bucketName)
-                    .prefix(backupName + "/")
                     .delimiter("/")
+                    .prefix(backupName + "/")
+                    .maxKeys(1_000)
+                    .continuationToken(continuationToken)
                     .build();
-            ListObjectVersionsIterable iterable = s3Client.listObjectVersionsPaginator(req);
-            return iterable.commonPrefixes().stream().toList();
-        } else {
-            ListObjectsV2Response listObjectsV2Response;
-            String continuationToken = null;
-            List<CommonPrefix> allPrefixes = new ArrayList<>();
-            do {
-                ListObjectsV2Request listObjectsV2Request = ListObjectsV2Request.builder()
-                        .bucket(bucketName)
-                        .delimiter("/")
-                        .prefix(backupName + "/")
-                        .maxKeys(1_000)
-                        .continuationToken(continuationToken)
-                        .build();
-                listObjectsV2Response = s3Client.listObjectsV2(listObjectsV2Request);
-                allPrefixes.addAll(listObjectsV2Response.commonPrefixes());
-                continuationToken = listObjectsV2Response.nextContinuationToken();
-            } while (listObjectsV2Response.isTruncated());
-            logger.info("Total files backed up: {}", allPrefixes.size());
-            return allPrefixes;
+            listObjectsV2Response = s3Client.listObjectsV2(listObjectsV2Request);
+            allPrefixes.addAll(listObjectsV2Response.commonPrefixes());
+            continuationToken = listObjectsV2Response.nextContinuationToken();
+        } while (listObjectsV2Response.isTruncated());
+        logger.info("Total files backed up: {}", allPrefixes.size());
+        return allPrefixes;
+    }
+
+
+    private record DeleteFilesResult(List<DeletedFile> deletedFiles, List<FailedDelete> failedDeletes) {
+    }
+
+    /**
+     * Deletes the backed up files which don't exist anymore, with concurrent DeleteObjects requests of up to
+     * 500 files each. Keys which fail are retried: files which still fail are reported, not thrown.
+     *
+     * @param contentObjectKeysToDelete the content objects which are not referenced anymore: the others are kept
+     */
+    private CompletableFuture<DeleteFilesResult> deleteFiles(List<FileMetadata> filesToDelete, Set<String> contentObjectKeysToDelete) {
+        List<CompletableFuture<DeleteFilesResult>> batches = new ArrayList<>();
+        for (int i = 0; i < filesToDelete.size(); i += DELETE_BATCH_FILES) {
+            List<FileMetadata> batch = filesToDelete.subList(i, Math.min(i + DELETE_BATCH_FILES, filesToDelete.size()));
+            batches.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return deleteBatch(batch, contentObjectKeysToDelete);
+                } catch (Exception e) {
+                    logger.error("error deleting files", e);
+                    throw new RuntimeException(e);
+                }
+            }, deleteExecutor));
         }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            List<DeletedFile> deletedFiles = new ArrayList<>();
+            List<FailedDelete> failedDeletes = new ArrayList<>();
+            for (CompletableFuture<DeleteFilesResult> batch : batches) {
+                deletedFiles.addAll(batch.join().deletedFiles());
+                failedDeletes.addAll(batch.join().failedDeletes());
+            }
+            logger.debug("Finished deleting {} files", deletedFiles.size());
+            runMetrics.increment("filesDeleted", deletedFiles.size());
+            runMetrics.increment("filesDeleteFailed", failedDeletes.size());
+            return new DeleteFilesResult(deletedFiles, failedDeletes);
+        });
     }
 
+    private DeleteFilesResult deleteBatch(List<FileMetadata> files, Set<String> contentObjectKeysToDelete) throws IOException, InterruptedException {
+        Map<String, FileMetadata> keyToFile = new LinkedHashMap<>();
+        for (FileMetadata file : files) {
+            logger.debug("Deleting {} ", file.fileName);
+            if (contentObjectKeysToDelete.contains(file.contentObjectKey())) {
+                keyToFile.put(file.contentObjectKey(), file);
+            }
+            keyToFile.put(metadataObjectKey(file.objectKey()), file);
+        }
+        Map<String, String> failedKeys = deleteObjectsWithRetries(new ArrayList<>(keyToFile.keySet()));
+
+        // a file failed if its content or its metadata couldn't be deleted
+        Map<FileMetadata, String> failedFiles = new LinkedHashMap<>();
+        failedKeys.forEach((key, error) -> failedFiles.putIfAbsent(keyToFile.get(key), key + ": " + error));
+        List<DeletedFile> deletedFiles = new ArrayList<>();
+        List<FailedDelete> failedDeletes = new ArrayList<>();
+        for (FileMetadata file : files) {
+            String error = failedFiles.get(file);
+            if (error == null) {
+                deletedFiles.add(new DeletedFile(file.fileName));
+            } else {
+                failedDeletes.add(new FailedDelete(file.fileName, error));
+            }
+        }
+        return new DeleteFilesResult(deletedFiles, failedDeletes);
+    }
 
-    private List<DeletedFile> deleteFiles(List<FileMetadata> backedUpFiles, Set<String> existingFiles) {
-        List<DeletedFile> result = new ArrayList<>();
-        List<FileMetadata> filesToDelete = backedUpFiles.stream().filter(fileMetadata -> !existingFiles.contains(fileMetadata.fileName)).toList();
-        logger.info("Found {} deleted files", filesToDelete.size());
+    /**
+     * Deletes content objects which no file references anymore and which weren't deleted together with the metadata
+     * of a file, e.g. the content a changed file was moved from. Content objects which still fail to be deleted only
+     * cost storage.
+     */
+    private void deleteContentObjects(Set<String> contentObjectKeys) throws IOException, InterruptedException {
+        List<String> keys = new ArrayList<>(contentObjectKeys);
+        for (int i = 0; i < keys.size(); i += DELETE_BATCH_FILES) {
+            Map<String, String> failedKeys = deleteObjectsWithRetries(keys.subList(i, Math.min(i + DELETE_BATCH_FILES, keys.size())));
+            failedKeys.forEach((key, error) -> logger.warn("could not delete the unreferenced content object {}: {}", key, error));
+        }
+        logger.debug("Finished deleting {} released content objects", keys.size());
+    }
 
-        for (int i = 0; i < filesToDelete.size(); i += 500) {
-            List<ObjectIdentifier> keys = new ArrayList<>();
-            for (int j = i; j < i + 500 && j < filesToDelete.size(); j++) {
-                logger.debug("Deleting {} ", filesToDelete.get(j).fileName);
-                result.add(new DeletedFile(filesToDelete.get(j).fileName));
-                String contentObjectKey = contentObjectKey(filesToDelete.get(j).objectKey());
-                String metadataObjectKey = metadataObjectKey(filesToDelete.get(j).objectKey());
-                keys.add(ObjectIdentifier.builder().key(contentObjectKey).build());
-                keys.add(ObjectIdentifier.builder().key(metadataObjectKey).build());
+    /**
+     * @return the keys which still couldn't be deleted after the last attempt and their error
+     */
+    private Map<String, String> deleteObjectsWithRetries(List<String> keys) throws IOException, InterruptedException {
+        Map<String, String> failedKeys = Map.of();
+        List<String> keysToDelete = keys;
+        for (int attempt = 1; attempt <= DELETE_ATTEMPTS && !keysToDelete.isEmpty(); attempt++) {
+            if (attempt > 1) {
+                logger.debug("retrying to delete {} keys", keysToDelete.size());
+                Thread.sleep(1000L * (attempt - 1));
             }
-            DeleteObjectsRequest deleteObjectRequest = DeleteObjectsRequest.builder()
-                    .bucket(bucketName)
-                    .delete(Delete.builder().objects(keys).build())
-                    .build();
+            failedKeys = deleteObjects(keysToDelete);
+            keysToDelete = new ArrayList<>(failedKeys.keySet());
+        }
+        return failedKeys;
+    }
+
+    /**
+     * @return the keys which couldn't be deleted and their error
+     */
+    private Map<String, String> deleteObjects(List<String> keys) throws IOException {
+        List<ObjectIdentifier> objectIdentifiers = keys.stream().map(key -> ObjectIdentifier.builder().key(key).build()).toList();
+        DeleteObjectsRequest deleteObjectRequest = DeleteObjectsRequest.builder()
+                .bucket(bucketName)
+                // only errors are returned
+                .delete(Delete.builder().objects(objectIdentifiers).quiet(true).build())
+                .build();
+        Map<String, String> result = new LinkedHashMap<>();
+        try (Permit permit = s3RequestsLimiter.acquire();
+             PhaseTimer timer = runMetrics.time("delete")) {
             DeleteObjectsResponse deleteObjectsResponse = s3Client.deleteObjects(deleteObjectRequest);
             logger.debug("deleteObjectResponse {}", deleteObjectsResponse);
+            for (S3Error error : deleteObjectsResponse.errors()) {
+                result.put(error.key(), error.code() + " " + error.message());
+            }
+            permit.completed(0);
+        } catch (SdkException e) {
+            logger.debug("deleting {} keys failed", keys.size(), e);
+            keys.forEach(key -> result.put(key, e.getMessage()));
         }
-        logger.info("Finished deleting {} files", filesToDelete.size());
         return result;
     }
 
@@ -752,6 +1863,7 @@ public class Impl {
         try (Stream<Path> walk = Files.walk(folder)) {
             AtomicLong ignoredFiles = new AtomicLong();
             AtomicLong count = new AtomicLong();
+            AtomicLong bytes = new AtomicLong();
             walk.forEach(path -> {
                 if (path.toFile().isDirectory()) {
                     return;
@@ -761,8 +1873,9 @@ public class Impl {
                     return;
                 }
                 count.getAndIncrement();
+                bytes.addAndGet(path.toFile().length());
             });
-            return new CountFilesResult(count.get(), ignoredFiles.get());
+            return new CountFilesResult(count.get(), bytes.get(), ignoredFiles.get());
         }
     }
 
@@ -792,182 +1905,462 @@ public class Impl {
                                               Path originalFileRelative,
                                               Path tempDirectory,
                                               String backupName,
-                                              Map<String, FileMetadata> fileMap
+                                              Map<String, FileMetadata> fileMap,
+                                              Map<String, FileMetadata> moveSources,
+                                              Set<String> releasedContentObjectKeys,
+                                              BackupCheckpoint checkpoint
     ) throws
             NoSuchAlgorithmException, IOException, ExecutionException, InterruptedException, NoSuchProviderException, InvalidKeyException {
 
         Path originalFileResolved = root.resolve(originalFileRelative);
         logger.debug("start processing {}", originalFileRelative);
-        String originalFileSha256Base64 = Util.sha256Base64ForFile(originalFileResolved);
-        if (!doesFileNeedBackup(root, originalFileRelative, originalFileSha256Base64, fileMap)) {
+        String fileNameHash = encryption.createFileNameHash(originalFileRelative);
+        long originalFileSize = Files.size(originalFileResolved);
+        long lastModifiedMillis = Files.getLastModifiedTime(originalFileResolved).toMillis();
+        FileState fileState = checkpoint.unchangedFileState(fileNameHash, originalFileSize, lastModifiedMillis);
+        // not recorded in the checkpoint: the file gets a tree hash the next time it changes
+        String treeHash = null;
+        if (fileState != null) {
+            logger.debug("file {} not changed since the interrupted backup. Not hashing it again.", originalFileRelative);
+        } else {
+            boolean backedUp = fileMap.containsKey(originalFileRelative.toString());
+            // moved and deduplicated files are found by their SHA256
+            boolean sha256Needed = (!backedUp && !moveSources.isEmpty()) || (contentIndex != null && configFile.isDedupEnabled());
+            FileHashes fileHashes = hashForBackup(originalFileResolved, fileMap.get(originalFileRelative.toString()), sha256Needed);
+            treeHash = fileHashes.treeHash();
+            fileState = new FileState(originalFileSize, lastModifiedMillis, fileHashes.sha256Base64());
+            checkNotModified(originalFileResolved, fileState);
+        }
+        String originalFileSha256Base64 = fileState.sha256Base64();
+        // without SHA256 the file is new or its tree hash changed: it needs a backup and is neither moved nor deduplicated
+        if (originalFileSha256Base64 != null && !doesFileNeedBackup(root, originalFileRelative, originalFileSha256Base64, fileMap)) {
+            runMetrics.increment("filesUnchanged", 1);
             return new UnchangedFile(originalFileRelative.toString());
         }
-        String fileNameHash = createFileNameHash(originalFileRelative);
-        Path encryptedFile = encryptFile(tempDirectory, originalFileResolved.toFile(), fileNameHash);
-
-        encryptedFile.toFile().deleteOnExit();
-
-        long originalFileSize = Files.size(originalFileResolved);
-        String contentVersionId = createContentObject(backupName, fileNameHash, originalFileRelative, originalFileResolved, encryptedFile, originalFileSize);
-        createMetadataObject(backupName, fileNameHash, originalFileRelative, originalFileResolved, originalFileSha256Base64, contentVersionId);
+        FileMetadata moveSource = fileMap.containsKey(originalFileRelative.toString()) || originalFileSha256Base64 == null
+                ? null
+                : moveSources.get(moveKey(originalFileSha256Base64, originalFileSize));
+        if (moveSource != null) {
+            // the content is already backed up: only the metadata is uploaded, referencing the content of the deleted file
+            logger.debug("file {} was moved from {}", originalFileRelative, moveSource.fileName());
+            createMetadataObject(backupName, fileNameHash, originalFileRelative, originalFileSize, originalFileSha256Base64, treeHash,
+                    moveSource.contentVersionId(), moveSource.contentObjectKey());
+            checkpoint.fileCompleted(fileNameHash, fileState);
+            metadataCache(backupName).addFileName(fileNameHash, originalFileRelative.toString());
+            putIntoManifest(fileMap, backedUpFileMetadata(backupName, fileNameHash, originalFileRelative, fileState,
+                    treeHash, moveSource.contentVersionId(), moveSource.contentObjectKey()), releasedContentObjectKeys);
+            runMetrics.increment("filesMoved", 1);
+            return new MovedFile(originalFileRelative.toString(), moveSource.fileName());
+        }
+        String contentHash = null;
+        if (contentIndex != null && configFile.isDedupEnabled()) {
+            contentHash = encryption.createContentHash(originalFileSha256Base64, originalFileSize);
+            ContentObject duplicate = contentIndex.contentObject(contentHash);
+            if (duplicate != null && contentObjectExists(duplicate)) {
+                // the same content is already uploaded, maybe in another backup: only the metadata is uploaded
+                logger.debug("file {} has the same content as {}", originalFileRelative, duplicate.contentObjectKey());
+                createMetadataObject(backupName, fileNameHash, originalFileRelative, originalFileSize, originalFileSha256Base64, treeHash,
+                        duplicate.contentVersionId(), duplicate.contentObjectKey());
+                checkpoint.fileCompleted(fileNameHash, fileState);
+                metadataCache(backupName).addFileName(fileNameHash, originalFileRelative.toString());
+                putIntoManifest(fileMap, backedUpFileMetadata(backupName, fileNameHash, originalFileRelative, fileState,
+                        treeHash, duplicate.contentVersionId(), duplicate.contentObjectKey()), releasedContentObjectKeys);
+                runMetrics.increment("filesDeduplicated", 1);
+                return new DeduplicatedFile(originalFileRelative.toString(), originalFileSha256Base64, originalFileSize);
+            }
+        }
+        UploadedContent uploadedContent;
+        boolean multipartUpload = isMultipartUpload(originalFileSize);
+        if (multipartUpload) {
+            // every multipart file is staged on disk and uploads its parts on its own: only a few at a time
+            multipartFiles.acquire();
+        }
+        try {
+            uploadedContent = encryptAndCreateContentObject(backupName, fileNameHash, originalFileRelative, originalFileResolved,
+                    fileState, treeHash, tempDirectory, checkpoint);
+        } finally {
+            if (multipartUpload) {
+                multipartFiles.release();
+            }
+        }
+        String contentVersionId = uploadedContent.contentVersionId();
+        fileState = uploadedContent.fileState();
+        originalFileSha256Base64 = fileState.sha256Base64();
+        createMetadataObject(backupName, fileNameHash, originalFileRelative, originalFileSize, originalFileSha256Base64, treeHash,
+                contentVersionId, null);
+        checkpoint.fileCompleted(fileNameHash, fileState);
+        metadataCache(backupName).addFileName(fileNameHash, originalFileRelative.toString());
+        if (contentHash != null) {
+            contentIndex.addContentObject(contentHash, new ContentObject(contentObjectKey(backupName + "/" + fileNameHash + "/"), contentVersionId));
+        }
+        putIntoManifest(fileMap, backedUpFileMetadata(backupName, fileNameHash, originalFileRelative, fileState,
+                treeHash, contentVersionId, contentObjectKey(backupName + "/" + fileNameHash + "/")), releasedContentObjectKeys);
 
         logger.debug("finished file {}", originalFileRelative);
+        runMetrics.increment("filesBackedUp", 1);
         return new ChangedFile(originalFileRelative.toString(), originalFileSha256Base64, originalFileSize);
 
     }
 
-    private Path encryptFile(Path tempDirectory, File originalFile, String fileNameHash) throws IOException {
-        logger.debug("encrypt file {}", originalFile);
-        Map<String, String> context = Collections.singletonMap("nameHash", fileNameHash);
-        CryptoInputStream<JceMasterKey> encryptingStream = awsCrypto
-                .createEncryptingStream(masterKey, new FileInputStream(originalFile), context);
-        Path encryptedFile = tempDirectory.resolve(fileNameHash);
-        FileOutputStream out = new FileOutputStream(encryptedFile.toFile());
-        IoUtils.copy(encryptingStream, out);
-        encryptingStream.close();
-        out.close();
-        return encryptedFile;
+    /**
+     * @param fileState with the SHA256 of the uploaded content
+     */
+    private record UploadedContent(String contentVersionId, FileState fileState) {
     }
 
-    private void decryptFile(Path decryptedFile, File encryptedFile) throws IOException {
+    /**
+     * Encrypts the file, unless the ciphertext of a resumable multipart upload is staged already, and uploads it.
+     * A file of which only the tree hash is known gets its SHA256 from the encrypted bytes.
+     */
+    private UploadedContent encryptAndCreateContentObject(String backupName,
+                                                          String fileNameHash,
+                                                          Path originalFileRelative,
+                                                          Path originalFileResolved,
+                                                          FileState fileState,
+                                                          @Nullable String treeHash,
+                                                          Path tempDirectory,
+                                                          BackupCheckpoint checkpoint) throws
+            IOException, ExecutionException, InterruptedException, NoSuchAlgorithmException {
+        Path encryptedFile;
+        MultipartUploadState resumableUpload = null;
+        if (isMultipartUpload(fileState.size())) {
+            // staged in the checkpoint: only the same ciphertext allows to resume the upload after an interruption
+            encryptedFile = checkpoint.stagingFile(fileNameHash);
+            if (fileState.sha256Base64() != null) {
+                resumableUpload = checkpoint.resumableMultipartUpload(fileNameHash, fileState.sha256Base64());
+            }
+        } else {
+            encryptedFile = tempDirectory.resolve(fileNameHash);
+            encryptedFile.toFile().deleteOnExit();
+        }
+        if (resumableUpload == null) {
+            logger.debug("encrypt file {}", originalFileResolved);
+            EncryptFileEvent encryptFileEvent = new EncryptFileEvent();
+            encryptFileEvent.begin();
+            // the file is read again: it must still have the content which was hashed
+            String hashedBefore = fileState.sha256Base64() != null ? fileState.sha256Base64() : Objects.requireNonNull(treeHash);
+            ContentDigest encryptedContentDigest = ContentDigest.like(hashedBefore);
+            ContentDigest sha256Digest = fileState.sha256Base64() != null ? null : ContentDigest.sha256();
+            try (Permit permit = encryptionLimiter.acquire();
+                 PhaseTimer timer = runMetrics.time("encrypt")) {
+                encryption.encryptFile(originalFileResolved, encryptedFile, fileNameHash, progressReporter::encrypted,
+                        sha256Digest == null ? encryptedContentDigest : ContentDigest.both(encryptedContentDigest, sha256Digest));
+                permit.completed(fileState.size());
+                timer.bytes(fileState.size());
+            }
+            encryptFileEvent.file = originalFileRelative.toString();
+            encryptFileEvent.bytes = fileState.size();
+            encryptFileEvent.commit();
+            checkNotModified(originalFileResolved, fileState);
+            if (!encryptedContentDigest.hash().equals(hashedBefore)) {
+                throw new FileModifiedException(originalFileRelative + " changed after it was hashed");
+            }
+            if (sha256Digest != null) {
+                fileState = new FileState(fileState.size(), fileState.lastModifiedMillis(), sha256Digest.hash());
+            }
+        }
 
-        CryptoInputStream<JceMasterKey> encryptingStream = awsCrypto
-                .createDecryptingStream(masterKey, new FileInputStream(encryptedFile));
+        String contentVersionId = createContentObject(backupName, fileNameHash, originalFileRelative, encryptedFile, fileState.size(),
+                fileState, resumableUpload, checkpoint);
+        return new UploadedContent(contentVersionId, fileState);
+    }
 
-        FileOutputStream out = new FileOutputStream(decryptedFile.toFile());
-        IoUtils.copy(encryptingStream, out);
-        encryptingStream.close();
-        out.close();
+    /**
+     * A file which changed while it was backed up: the hash and the uploaded content might not belong together.
+     */
+    static class FileModifiedException extends IOException {
+        FileModifiedException(String message) {
+            super(message);
+        }
     }
 
-    private String createFileNameHash(Path relativeFileName) {
+    /**
+     * Throws if the size or modification time of the file differs from the state which was hashed.
+     */
+    private static void checkNotModified(Path file, FileState fileState) throws IOException {
+        long size = Files.size(file);
+        long lastModifiedMillis = Files.getLastModifiedTime(file).toMillis();
+        if (size != fileState.size() || lastModifiedMillis != fileState.lastModifiedMillis()) {
+            throw new FileModifiedException(file + " changed while it was backed up");
+        }
+    }
 
-        /**
-         * We are using here BouncyCastle directly to calculate AESCMAC hash instead via
-         * JCE because this works in native images.
-         */
-        CMac cMac = new CMac(new AESEngine());
-        cMac.init(new KeyParameter(secretKeySpec.getEncoded()));
+    /**
+     * Backs up the file and retries it, when it changed while it was read. A file which keeps changing is skipped:
+     * its previous version stays the latest one in the backup.
+     *
+     * @param retryBudget the retries left for all files of the backup, so that a busy folder isn't retried endlessly
+     */
+    private BackedUpFile encryptAndUploadModifiedFile(Path root,
+                                                      Path originalFileRelative,
+                                                      Path tempDirectory,
+                                                      String backupName,
+                                                      Map<String, FileMetadata> fileMap,
+                                                      Map<String, FileMetadata> moveSources,
+                                                      Set<String> releasedContentObjectKeys,
+                                                      BackupCheckpoint checkpoint,
+                                                      AtomicInteger retryBudget) throws Exception {
+        int maxRetries = configFile.getModifiedFileRetries();
+        for (int retry = 0; ; retry++) {
+            try {
+                return encryptAndUploadFile(root, originalFileRelative, tempDirectory, backupName, fileMap, moveSources,
+                        releasedContentObjectKeys, checkpoint);
+            } catch (FileModifiedException e) {
+                if (retry >= maxRetries || retryBudget.getAndDecrement() <= 0) {
+                    logger.warn("skipping {}: {} ... it is backed up with the next backup. Files which are always " +
+                            "written to should be backed up from a snapshot", originalFileRelative, e.getMessage());
+                    runMetrics.increment("filesSkipped", 1);
+                    return new SkippedFile(originalFileRelative.toString(), e.getMessage());
+                }
+                logger.debug("{} ... retrying it", e.getMessage());
+                runMetrics.increment("modifiedFileRetries", 1);
+                // gives the writer time to finish
+                Thread.sleep(modifiedFileRetryDelay(retry).toMillis());
+            }
+        }
+    }
 
-        byte[] filenameBytes = relativeFileName.toString().getBytes(StandardCharsets.UTF_8);
-        cMac.update(filenameBytes, 0, filenameBytes.length);
-        byte[] keyBytes = new byte[cMac.getMacSize()];
-        cMac.doFinal(keyBytes, 0);
-        return Base64.getUrlEncoder().encodeToString(keyBytes);
+    /**
+     * The pause before the given retry of a modified file: doubles with every retry, up to a maximum.
+     */
+    static Duration modifiedFileRetryDelay(int retry) {
+        Duration delay = MODIFIED_FILE_RETRY_DELAY.multipliedBy(1L << Math.min(retry, 10));
+        return Collections.min(List.of(delay, MAX_MODIFIED_FILE_RETRY_DELAY));
     }
 
+    /**
+     * Puts the backed up file into the manifest and records its reference to the content object in the content index.
+     * The reference to the content object the file referenced before is released: it is deleted after the uploads
+     * if nothing references it anymore.
+     */
+    private void putIntoManifest(Map<String, FileMetadata> manifest,
+                                 FileMetadata fileMetadata,
+                                 Set<String> releasedContentObjectKeys) throws IOException {
+        FileMetadata previous = manifest.put(fileMetadata.fileName(), fileMetadata);
+        if (contentIndex != null) {
+            contentIndex.addReference(fileMetadata.contentObjectKey(), fileMetadata.objectKey());
+        }
+        if (previous != null && !previous.contentObjectKey().equals(fileMetadata.contentObjectKey())) {
+            if (contentIndex != null) {
+                contentIndex.removeReference(previous.contentObjectKey(), previous.objectKey());
+            }
+            releasedContentObjectKeys.add(previous.contentObjectKey());
+        }
+    }
+
+    /**
+     * The metadata of a file which was just backed up, as it would be read from the bucket.
+     */
+    private static FileMetadata backedUpFileMetadata(String backupName,
+                                                     String fileNameHash,
+                                                     Path originalFileRelative,
+                                                     FileState fileState,
+                                                     @Nullable String treeHash,
+                                                     String contentVersionId,
+                                                     String contentObjectKey) {
+        return new FileMetadata(originalFileRelative.toString(), fileState.sha256Base64(), backupName + "/" + fileNameHash + "/",
+                fileState.size(), Instant.now(), contentVersionId, contentObjectKey, treeHash);
+    }
+
+    /**
+     * Whether the content object version referenced by the content index still exists, e.g. it wasn't deleted
+     * with its backup.
+     */
+    private boolean contentObjectExists(ContentObject contentObject) throws IOException {
+        HeadObjectRequest headObjectRequest = HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(contentObject.contentObjectKey())
+                .versionId(contentObject.contentVersionId())
+                .build();
+        try (Permit permit = s3RequestsLimiter.acquire()) {
+            s3Client.headObject(headObjectRequest);
+            permit.completed(0);
+            return true;
+        } catch (NoSuchKeyException e) {
+            logger.debug("content object {} doesn't exist anymore", contentObject);
+            return false;
+        }
+    }
 
     private void createMetadataObject(String backupName,
                                       String fileNameHash,
                                       Path originalFileRelative,
-                                      Path originalFileResolved,
+                                      long originalFileSizeBytes,
                                       String originalFileSha256Base64,
-                                      String contentVersionId) throws IOException {
+                                      @Nullable String treeHash,
+                                      String contentVersionId,
+                                      @Nullable String referencedContentObjectKey) throws IOException {
         PutObjectRequest putObjectRequest = PutObjectRequest.builder()
                 .bucket(bucketName)
                 .key(backupName + "/" + fileNameHash + "/metadata")
                 .build();
-        long originalFileSizeBytes = Files.size(originalFileResolved);
-        // comma separated list
-        String metadata = METADATA_VERSION_1 +
-                "," + Base64.getEncoder().encodeToString(originalFileRelative.toString().getBytes(StandardCharsets.UTF_8)) +
-                "," + originalFileSha256Base64 +
-                "," + originalFileSizeBytes +
-                "," + contentVersionId;
-
+        String metadata;
+        if (referencedContentObjectKey == null) {
+            metadata = encodeMetadata(originalFileRelative, originalFileSha256Base64, originalFileSizeBytes, contentVersionId, treeHash);
+        } else {
+            String contentKeyWithEndingSlash = keyWithEndingSlash(referencedContentObjectKey);
+            String contentBackupName = contentKeyWithEndingSlash.substring(0, contentKeyWithEndingSlash.lastIndexOf('/', contentKeyWithEndingSlash.length() - 2));
+            metadata = encodeMetadata(originalFileRelative, originalFileSha256Base64, originalFileSizeBytes, contentVersionId,
+                    nameHash(contentBackupName, contentKeyWithEndingSlash),
+                    contentBackupName.equals(backupName) && treeHash == null ? null : contentBackupName, treeHash);
+        }
 
-        CryptoResult<byte[], JceMasterKey> encryptResult = awsCrypto.encryptData(masterKey, metadata.getBytes(StandardCharsets.UTF_8));
-        byte[] encryptedFileName = encryptResult.getResult();
-        RequestBody requestBody = RequestBody.fromBytes(encryptedFileName);
-        PutObjectResponse putObjectResponse = s3Client.putObject(putObjectRequest, requestBody);
-        logger.debug("uploaded metadata object for {}: {}", originalFileRelative, putObjectResponse);
+        byte[] encryptedMetadata = encryption.encrypt(metadata.getBytes(StandardCharsets.UTF_8));
+        RequestBody requestBody = RequestBody.fromBytes(encryptedMetadata);
+        try (Permit permit = s3RequestsLimiter.acquire();
+             PhaseTimer timer = runMetrics.time("uploadMetadata")) {
+            PutObjectResponse putObjectResponse = s3Client.putObject(putObjectRequest, requestBody);
+            permit.completed(encryptedMetadata.length);
+            timer.bytes(encryptedMetadata.length);
+            logger.debug("uploaded metadata object for {}: {}", originalFileRelative, putObjectResponse);
+        }
     }
 
     private String createContentObject(String backupName,
                                        String fileNameHash,
                                        Path originalFileRelative,
-                                       Path originalFileResolved,
                                        Path encryptedFile,
-                                       long originalFileSizeByte) throws IOException, ExecutionException, InterruptedException, NoSuchAlgorithmException {
+                                       long originalFileSizeByte,
+                                       FileState fileState,
+                                       @Nullable MultipartUploadState resumableUpload,
+                                       BackupCheckpoint checkpoint) throws IOException, ExecutionException, InterruptedException, NoSuchAlgorithmException {
         String objectKey = backupName + "/" + fileNameHash + "/content";
-        if (originalFileSizeByte >= configFile.getMultiPartUploadLimitInBytes()) {
+        if (crtTransfer != null) {
+            logger.debug("uploading file {}", originalFileRelative);
+            try (Permit permit = s3RequestsLimiter.acquire();
+                 PhaseTimer timer = runMetrics.time("upload")) {
+                String versionId = crtTransfer.uploadFile(objectKey, encryptedFile);
+                progressReporter.transferred(Files.size(encryptedFile));
+                permit.completed(Files.size(encryptedFile));
+                timer.bytes(Files.size(encryptedFile));
+                return versionId;
+            }
+        }
+        if (isMultipartUpload(originalFileSizeByte)) {
             logger.debug("file {} is bigger than {} with {} ... using multipart upload",
                     originalFileRelative,
                     bytesToHumanReadableFormat(configFile.getMultiPartUploadLimitInBytes()),
                     bytesToHumanReadableFormat(originalFileSizeByte));
-            return multipartUpload(objectKey, originalFileRelative, encryptedFile);
+            return multipartUpload(objectKey, originalFileRelative, encryptedFile, fileNameHash, fileState, resumableUpload, checkpoint);
         } else {
             return putObject(originalFileRelative, encryptedFile, objectKey);
         }
 
     }
 
+    private boolean isMultipartUpload(long originalFileSizeByte) {
+        return crtTransfer == null && originalFileSizeByte >= configFile.getMultiPartUploadLimitInBytes();
+    }
+
     private String putObject(Path originalFileRelative, Path encryptedFile, String objectKey) throws
             IOException, NoSuchAlgorithmException {
-        String sha256 = Util.sha256Base64ForFile(encryptedFile);
-        logger.info("uploading file {}", originalFileRelative);
+        String sha256 = sha256Base64ForFile(encryptedFile);
+        logger.debug("uploading file {}", originalFileRelative);
         PutObjectRequest putObjectRequest = PutObjectRequest.builder()
                 .bucket(bucketName)
                 .key(objectKey)
                 .checksumAlgorithm(ChecksumAlgorithm.SHA256)
                 .checksumSHA256(sha256)
                 .build();
-        PutObjectResponse putObjectResponse = s3Client.putObject(putObjectRequest, encryptedFile);
-        logger.debug("uploaded content object for {} response {} ", originalFileRelative, putObjectResponse);
-        return putObjectResponse.versionId();
+        PutObjectEvent putObjectEvent = new PutObjectEvent();
+        putObjectEvent.begin();
+        try (Permit permit = s3RequestsLimiter.acquire();
+             PhaseTimer timer = runMetrics.time("upload")) {
+            PutObjectResponse putObjectResponse = s3Client.putObject(putObjectRequest, encryptedFile);
+            progressReporter.transferred(Files.size(encryptedFile));
+            permit.completed(Files.size(encryptedFile));
+            timer.bytes(Files.size(encryptedFile));
+            putObjectEvent.objectKey = objectKey;
+            putObjectEvent.bytes = Files.size(encryptedFile);
+            putObjectEvent.commit();
+            logger.debug("uploaded content object for {} response {} ", originalFileRelative, putObjectResponse);
+            return putObjectResponse.versionId();
+        }
     }
 
     private String multipartUpload(String objectKey,
                                    Path originalFileRelative,
-                                   Path encryptedFile
+                                   Path encryptedFile,
+                                   String fileNameHash,
+                                   FileState fileState,
+                                   @Nullable MultipartUploadState resumableUpload,
+                                   BackupCheckpoint checkpoint
     ) throws
             IOException, ExecutionException, InterruptedException, NoSuchAlgorithmException {
         long encryptedFileSize = Files.size(encryptedFile);
         int multiPartUploadLimitInBytes = configFile.getMultiPartUploadLimitInBytes();
         int partCount = (int) Math.ceil((double) encryptedFileSize / multiPartUploadLimitInBytes);
-        logger.info("start multipart upload for {}. Expected to upload {} parts", originalFileRelative, partCount);
-        CreateMultipartUploadRequest createMultipartUploadRequest = CreateMultipartUploadRequest.builder()
-                .bucket(bucketName)
-                .key(objectKey)
-                .checksumAlgorithm(ChecksumAlgorithm.SHA256)
-                .build();
+        String uploadId;
+        Map<Integer, Part> uploadedParts = null;
+        if (resumableUpload != null) {
+            uploadedParts = listUploadedParts(objectKey, resumableUpload.uploadId());
+        }
+        if (uploadedParts != null) {
+            uploadId = resumableUpload.uploadId();
+            logger.info("resume multipart upload for {}. {} of {} parts already uploaded", originalFileRelative, uploadedParts.size(), partCount);
+        } else {
+            uploadedParts = Map.of();
+            logger.info("start multipart upload for {}. Expected to upload {} parts", originalFileRelative, partCount);
+            CreateMultipartUploadRequest createMultipartUploadRequest = CreateMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(objectKey)
+                    .checksumAlgorithm(ChecksumAlgorithm.SHA256)
+                    .build();
 
-        CreateMultipartUploadResponse response = s3Client.createMultipartUpload(createMultipartUploadRequest);
-        String uploadId = response.uploadId();
+            CreateMultipartUploadResponse response = s3Client.createMultipartUpload(createMultipartUploadRequest);
+            uploadId = response.uploadId();
+            checkpoint.multipartUploadStarted(fileNameHash, fileState, uploadId);
+        }
 
-        ByteBuffer buffer = ByteBuffer.allocate(multiPartUploadLimitInBytes);
-        int partNumber = 0;
         List<CompletedPart> completedParts = Collections.synchronizedList(new ArrayList<>());
         List<CompletableFuture<?>> completableFutures = new ArrayList<>();
-        try (FileInputStream fileInputStream = new FileInputStream(encryptedFile.toFile());
-             FileChannel fileChannel = fileInputStream.getChannel()) {
-
-            int read;
-            while ((read = fileChannel.read(buffer)) > 0) {
-                logger.debug("body read {} bytes for encrypted file of {}", read, originalFileRelative);
-                buffer.flip();
+        try (FileChannel fileChannel = FileChannel.open(encryptedFile, StandardOpenOption.READ)) {
+            for (int partNumber = 1; partNumber <= partCount; partNumber++) {
+                long partOffset = (long) (partNumber - 1) * multiPartUploadLimitInBytes;
+                long partSize = Math.min(multiPartUploadLimitInBytes, encryptedFileSize - partOffset);
+                int finalPartNumber = partNumber;
+                String partSha256 = Util.sha256Base64(fileChannel, partOffset, partSize);
+                Part uploadedPart = uploadedParts.get(finalPartNumber);
+                if (uploadedPart != null && partSha256.equals(uploadedPartChecksum(uploadedPart, resumableUpload))) {
+                    logger.debug("part {}/{} for file {} already uploaded", finalPartNumber, partCount, originalFileRelative);
+                    completedParts.add(CompletedPart.builder().partNumber(finalPartNumber).checksumSHA256(partSha256).eTag(uploadedPart.eTag()).build());
+                    continue;
+                }
                 UploadPartRequest uploadPartRequest = UploadPartRequest.builder()
                         .bucket(bucketName)
                         .key(objectKey)
                         .uploadId(uploadId)
-                        .partNumber(++partNumber)
+                        .partNumber(finalPartNumber)
                         .checksumAlgorithm(ChecksumAlgorithm.SHA256)
-                        .checksumSHA256(Util.sha256Base64(buffer))
+                        .checksumSHA256(partSha256)
                         .build();
 
-                RequestBody requestBody = RequestBody.fromByteBuffer(buffer);
-                buffer.clear();
-                logger.debug("loading part {}/{} for file {} into memory finished", partNumber, partCount, originalFileRelative);
-                int finalPartNumber = partNumber;
+                // the part is streamed from the staged file, also for retries: no part is held in memory
+                RequestBody requestBody = RequestBody.fromContentProvider(
+                        () -> Util.rangeInputStream(encryptedFile, partOffset, partSize), partSize, "application/octet-stream");
+                // acquired before submitting the part: the parts of a file don't queue up behind the limit
+                Permit permit = s3RequestsLimiter.acquire();
                 completableFutures.add(CompletableFuture.runAsync(() -> {
-                    try {
+                    try (permit; PhaseTimer timer = runMetrics.time("upload")) {
                         logger.debug("start uploading part {}/{} for file {}", finalPartNumber, partCount, originalFileRelative);
+                        UploadPartEvent uploadPartEvent = new UploadPartEvent();
+                        uploadPartEvent.begin();
                         UploadPartResponse uploadPartResponse = s3Client.uploadPart(uploadPartRequest,
                                 requestBody);
+                        uploadPartEvent.objectKey = objectKey;
+                        uploadPartEvent.partNumber = finalPartNumber;
+                        uploadPartEvent.bytes = partSize;
+                        uploadPartEvent.commit();
+                        progressReporter.transferred(partSize);
+                        permit.completed(partSize);
+                        timer.bytes(partSize);
                         completedParts.add(CompletedPart.builder().partNumber(finalPartNumber).checksumSHA256(uploadPartResponse.checksumSHA256()).eTag(uploadPartResponse.eTag()).build());
+                        checkpoint.partUploaded(fileNameHash, finalPartNumber, partSha256);
                         logger.debug("uploaded part {}/{} for file {}", finalPartNumber, partCount, originalFileRelative);
                     } catch (Exception e) {
+                        // the upload is kept: the next backup resumes it
                         logger.error("error uploading part ", e);
+                        throw new RuntimeException(e);
                     }
                 }, multipartUploadExecutor));
             }
@@ -999,10 +2392,108 @@ public class Impl {
     }
 
 
+    /**
+     * @return null if the upload doesn't exist anymore
+     */
+    private @Nullable Map<Integer, Part> listUploadedParts(String objectKey, String uploadId) {
+        ListPartsRequest listPartsRequest = ListPartsRequest.builder()
+                .bucket(bucketName)
+                .key(objectKey)
+                .uploadId(uploadId)
+                .build();
+        Map<Integer, Part> result = new LinkedHashMap<>();
+        try {
+            for (Part part : s3Client.listPartsPaginator(listPartsRequest).parts()) {
+                result.put(part.partNumber(), part);
+            }
+        } catch (NoSuchUploadException e) {
+            logger.info("multipart upload {} of {} doesn't exist anymore", uploadId, objectKey);
+            return null;
+        }
+        return result;
+    }
+
+    private static @Nullable String uploadedPartChecksum(Part uploadedPart, MultipartUploadState resumableUpload) {
+        if (uploadedPart.checksumSHA256() != null) {
+            return uploadedPart.checksumSHA256();
+        }
+        return resumableUpload.partChecksums().get(uploadedPart.partNumber());
+    }
+
+    private String sha256Base64ForFile(Path file) throws IOException, NoSuchAlgorithmException {
+        try (Permit permit = diskReadsLimiter.acquire();
+             PhaseTimer timer = runMetrics.time("hash")) {
+            String sha256 = Util.sha256Base64ForFile(file, progressReporter::hashed);
+            permit.completed(Files.size(file));
+            timer.bytes(Files.size(file));
+            return sha256;
+        }
+    }
+
+    /**
+     * @param sha256Base64 null if it is calculated while the file is encrypted
+     * @param treeHash     null if the file isn't hashed with a {@link TreeHash}
+     */
+    private record FileHashes(@Nullable String sha256Base64, @Nullable String treeHash) {
+    }
+
+    /**
+     * The SHA256 of a file to back up and, for large files if configured, its {@link TreeHash}. A file which already
+     * has a tree hash keeps its segment size. If the tree hash is unchanged, the file is unchanged: its SHA256 isn't
+     * calculated again, which is the expensive part of hashing a large file.
+     * <p>
+     * A new file or a file with a changed tree hash is uploaded anyway: unless the SHA256 is needed before,
+     * it is null and calculated while the file is encrypted, instead of reading the file once more.
+     */
+    private FileHashes hashForBackup(Path file,
+                                     @Nullable FileMetadata backedUpFile,
+                                     boolean sha256Needed) throws IOException, NoSuchAlgorithmException {
+        TreeHashConfig treeHashConfig = configFile.getTreeHashConfig();
+        String treeHash = null;
+        if (backedUpFile != null && backedUpFile.treeHash() != null) {
+            treeHash = treeHashForFile(file, TreeHash.segmentSize(backedUpFile.treeHash()));
+            if (treeHash.equals(backedUpFile.treeHash())) {
+                return new FileHashes(backedUpFile.originalFileSha256Base64(), treeHash);
+            }
+        } else if (treeHashConfig != null && Files.size(file) >= treeHashConfig.minFileSizeInBytes()) {
+            treeHash = treeHashForFile(file, treeHashConfig.segmentSizeInBytes());
+        }
+        // a backed up file without tree hash is only known to be unchanged by its SHA256
+        boolean changedOrNew = treeHash != null && (backedUpFile == null || backedUpFile.treeHash() != null);
+        if (changedOrNew && !sha256Needed) {
+            return new FileHashes(null, treeHash);
+        }
+        return new FileHashes(sha256Base64ForFile(file), treeHash);
+    }
+
+    /**
+     * The hash of the file of the same type as the expected hash, e.g. to verify a restored file.
+     */
+    private String hashLike(Path file, String expectedHash) throws IOException, NoSuchAlgorithmException {
+        if (TreeHash.isTreeHash(expectedHash)) {
+            return treeHashForFile(file, TreeHash.segmentSize(expectedHash));
+        }
+        return sha256Base64ForFile(file);
+    }
+
+    private String treeHashForFile(Path file, int segmentSize) throws IOException, NoSuchAlgorithmException {
+        try (Permit permit = diskReadsLimiter.acquire();
+             PhaseTimer timer = runMetrics.time("hash")) {
+            String treeHash = TreeHash.treeHashForFile(file, segmentSize, treeHashExecutor, progressReporter::hashed);
+            permit.completed(Files.size(file));
+            timer.bytes(Files.size(file));
+            return treeHash;
+        }
+    }
+
     static boolean shouldIgnoreFile(String file) {
         return filePatternsToIgnore.stream().anyMatch(pattern -> pattern.matcher(file).matches());
     }
 
+    private static String moveKey(String originalFileSha256Base64, long originalFileSizeInBytes) {
+        return originalFileSha256Base64 + "," + originalFileSizeInBytes;
+    }
+
     private static String contentObjectKey(String objectKeyEndingWithSlash) {
         return objectKeyEndingWithSlash + "content";
     }
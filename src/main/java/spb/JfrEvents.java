@@ -0,0 +1,98 @@
+package spb;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events of the expensive operations, recorded with {@code -XX:StartFlightRecording}
+ * and shown in JDK Mission Control under the category "spb".
+ * <p>
+ * Events are only committed while a recording is running: otherwise they cost close to nothing.
+ */
+final class JfrEvents {
+
+    private JfrEvents() {
+    }
+
+    @Name("spb.Walk")
+    @Label("Walk")
+    @Category("spb")
+    @Description("Walking the folder to backup")
+    static class WalkEvent extends Event {
+        @Label("Folder")
+        String folder;
+        @Label("Files")
+        long files;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("spb.ReadMetadata")
+    @Label("Read Metadata")
+    @Category("spb")
+    @Description("Downloading and decrypting a metadata object")
+    static class ReadMetadataEvent extends Event {
+        @Label("Object Key")
+        String objectKey;
+        @Label("Version Id")
+        String versionId;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("spb.EncryptFile")
+    @Label("Encrypt File")
+    @Category("spb")
+    @Description("Encrypting a file before uploading it")
+    static class EncryptFileEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("spb.PutObject")
+    @Label("Put Object")
+    @Category("spb")
+    @Description("Uploading a content object with a single request")
+    static class PutObjectEvent extends Event {
+        @Label("Object Key")
+        String objectKey;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("spb.UploadPart")
+    @Label("Upload Part")
+    @Category("spb")
+    @Description("Uploading one part of a multipart upload")
+    static class UploadPartEvent extends Event {
+        @Label("Object Key")
+        String objectKey;
+        @Label("Part Number")
+        int partNumber;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("spb.RestoreFile")
+    @Label("Restore File")
+    @Category("spb")
+    @Description("Downloading, decrypting and verifying a file")
+    static class RestoreFileEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
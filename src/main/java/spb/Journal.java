@@ -0,0 +1,87 @@
+package spb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.function.Consumer;
+
+/**
+ * A local append-only file with one entry per line, which is read completely when it is opened.
+ * <p>
+ * Every entry is appended and flushed right away, so that an interrupted run loses at most the last entry.
+ * That entry can be incomplete: a last line without line break is removed without reading it. The reader of
+ * the entries can reject other invalid entries by throwing a {@link RuntimeException}, they are ignored.
+ * The file is only readable by the owner.
+ */
+public class Journal implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger("spb");
+
+    private final BufferedWriter writer;
+    private final boolean created;
+
+    private Journal(Path file, String name, Consumer<String> entryReader) throws IOException {
+        Files.createDirectories(file.getParent());
+        created = !Files.exists(file);
+        byte[] existingBytes = created ? new byte[0] : Files.readAllBytes(file);
+        int completeLength = existingBytes.length;
+        while (completeLength > 0 && existingBytes[completeLength - 1] != '\n') {
+            completeLength--;
+        }
+        if (completeLength < existingBytes.length) {
+            // a prefix of an entry can still look valid, e.g. a shorter file name or checksum
+            logger.debug("removing incomplete last {} entry {}", name,
+                    new String(existingBytes, completeLength, existingBytes.length - completeLength, StandardCharsets.UTF_8));
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(completeLength);
+            }
+        }
+        for (String entry : new String(existingBytes, 0, completeLength, StandardCharsets.UTF_8).lines().toList()) {
+            try {
+                entryReader.accept(entry);
+            } catch (RuntimeException e) {
+                logger.debug("ignoring invalid {} entry {}", name, entry);
+            }
+        }
+        if (created && FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Opens the journal and passes every existing entry to the entry reader.
+     *
+     * @param name used in log messages, e.g. "checkpoint"
+     */
+    public static Journal open(Path file, String name, Consumer<String> entryReader) throws IOException {
+        return new Journal(file, name, entryReader);
+    }
+
+    /**
+     * Whether the file didn't exist before.
+     */
+    public boolean isCreated() {
+        return created;
+    }
+
+    public synchronized void append(String entry) throws IOException {
+        writer.write(entry);
+        writer.newLine();
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
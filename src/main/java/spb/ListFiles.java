@@ -22,6 +22,11 @@ public class ListFiles implements Callable<Integer> {
             paramLabel = "file-pattern", required = false)
     private String filePattern;
 
+    @CommandLine.Option(names = {"--file"}, description = "The exact name of a file, which is looked up directly " +
+            "instead of searching all files. Not allowed in combination with --file-pattern or --historical",
+            paramLabel = "file", required = false)
+    private String file;
+
     @CommandLine.Option(names = {"--backup"}, description = "Restrict the search to this backup",
             paramLabel = "backup", required = false)
     private String backupName;
@@ -32,6 +37,13 @@ public class ListFiles implements Callable<Integer> {
 
     @Override
     public Integer call() throws Exception {
+        if (file != null) {
+            if (filePattern != null || historical) {
+                logger.error("--file can't be combined with --file-pattern or --historical");
+                return 1;
+            }
+            return listSingleFile();
+        }
         Pattern pattern = null;
         if (filePattern == null) {
             logger.info("no pattern specified ... listing all files");
@@ -43,7 +55,7 @@ public class ListFiles implements Callable<Integer> {
 
         if (historical) {
             logger.info("listing files including history");
-            Map<String, Map<String, List<Impl.HistoricalFile>>> allBackedUpFiles = impl.allBackedUpFilesIncludingHistory();
+            Map<String, Map<String, List<Impl.HistoricalFile>>> allBackedUpFiles = impl.allBackedUpFilesIncludingHistory(backupName, pattern);
             logger.info("Found {} backups", allBackedUpFiles.size());
             logger.info(DIVIDER);
             int matchedCount = 0;
@@ -71,7 +83,7 @@ public class ListFiles implements Callable<Integer> {
             }
             logger.info(DIVIDER);
         } else {
-            Map<String, List<FileMetadata>> allBackedUpFiles = impl.allBackedUpFiles();
+            Map<String, List<FileMetadata>> allBackedUpFiles = impl.allBackedUpFiles(backupName, pattern);
             logger.info("Found {} backups", allBackedUpFiles.size());
             for (String backupName : allBackedUpFiles.keySet()) {
                 logger.info(DIVIDER);
@@ -106,6 +118,27 @@ public class ListFiles implements Callable<Integer> {
         return 0;
     }
 
+    private int listSingleFile() throws Exception {
+        Impl impl = new Impl();
+        List<String> backupNames = backupName != null ? List.of(backupName) : impl.backupNames();
+        int matchedCount = 0;
+        for (String name : backupNames) {
+            FileMetadata fileMetadata = impl.backedUpFile(name, file);
+            if (fileMetadata != null) {
+                logger.info("backup: " + name);
+                logger.info("file: " + fileMetadata.fileName());
+                logger.info("size: " + bytesToHumanReadableFormat(fileMetadata.originalFileSizeInBytes()));
+                logger.info("creation date: " + fileMetadata.creationDate());
+                matchedCount++;
+            }
+        }
+        logger.info(DIVIDER);
+        logger.info("found file '{}' in {} of {} backups", file, matchedCount, backupNames.size());
+        logger.info(DIVIDER);
+        impl.shutdown();
+        return 0;
+    }
+
     private void printAllVersions(String file, List<Impl.HistoricalFile> allFileVersions) {
         logger.info("All {} versions of file: {}", allFileVersions.size(), file);
         for (Impl.HistoricalFile historicFile : allFileVersions) {
@@ -0,0 +1,81 @@
+package spb;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A local cache of decrypted metadata of one backup, so that listing the history doesn't download and
+ * decrypt the same metadata objects again.
+ * <p>
+ * Only immutable data is cached: the file name belonging to a name hash and the content of a metadata object
+ * version. The cache is a {@link Journal} with these entries:
+ * <pre>
+ * name,nameHash,base64(fileName)
+ * version,nameHash,versionId,metadata
+ * </pre>
+ * The cache contains the file names in plain text: the journal is only readable by the owner.
+ */
+public class MetadataCache implements AutoCloseable {
+
+    private final Map<String, String> fileNames = new ConcurrentHashMap<>();
+    private final Map<String, String> metadataVersions = new ConcurrentHashMap<>();
+    private final Journal journal;
+
+    private MetadataCache(Path file) throws IOException {
+        journal = Journal.open(file, "metadata cache", this::readEntry);
+    }
+
+    public static MetadataCache open(Path file) throws IOException {
+        return new MetadataCache(file);
+    }
+
+    private void readEntry(String entry) {
+        if (entry.startsWith("name,")) {
+            String[] parts = entry.split(",", 3);
+            fileNames.put(parts[1], new String(Base64.getDecoder().decode(parts[2]), StandardCharsets.UTF_8));
+        } else if (entry.startsWith("version,")) {
+            String[] parts = entry.split(",", 4);
+            metadataVersions.put(versionKey(parts[1], parts[2]), parts[3]);
+        } else {
+            throw new IllegalArgumentException("unknown entry");
+        }
+    }
+
+    public @Nullable String fileName(String nameHash) {
+        return fileNames.get(nameHash);
+    }
+
+    public void addFileName(String nameHash, String fileName) throws IOException {
+        if (fileNames.putIfAbsent(nameHash, fileName) == null) {
+            journal.append("name," + nameHash + "," + Base64.getEncoder().encodeToString(fileName.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * The decrypted content of the metadata object version.
+     */
+    public @Nullable String metadata(String nameHash, String versionId) {
+        return metadataVersions.get(versionKey(nameHash, versionId));
+    }
+
+    public void addMetadata(String nameHash, String versionId, String metadata) throws IOException {
+        if (metadataVersions.putIfAbsent(versionKey(nameHash, versionId), metadata) == null) {
+            journal.append("version," + nameHash + "," + versionId + "," + metadata);
+        }
+    }
+
+    private static String versionKey(String nameHash, String versionId) {
+        return nameHash + "/" + versionId;
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+}
@@ -0,0 +1,11 @@
+package spb;
+
+/**
+ * @param target a file which is replaced after every run or a http(s) URL the metrics are sent to
+ */
+public record MetricsExportConfig(MetricsExportFormat format, String target) {
+
+    public boolean isUrl() {
+        return target.startsWith("http://") || target.startsWith("https://");
+    }
+}
@@ -0,0 +1,16 @@
+package spb;
+
+/**
+ * The format in which the metrics of every run are exported.
+ */
+public enum MetricsExportFormat {
+    /**
+     * The Prometheus text exposition format, e.g. for the textfile collector of the node exporter
+     * or a Pushgateway.
+     */
+    PROMETHEUS,
+    /**
+     * OTLP/HTTP with JSON encoding, e.g. for an OpenTelemetry Collector.
+     */
+    OTLP
+}
@@ -0,0 +1,215 @@
+package spb;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exports the metrics of a run (the same data as the JSON report) as gauges in the Prometheus text format
+ * or as OTLP/HTTP JSON, to a file or to an endpoint, so that the performance of backups can be graphed over time.
+ * <p>
+ * Every sample is labeled with the command of the run, e.g. {@code spb_phase_busy_seconds{command="backup",phase="upload"}}.
+ */
+public class MetricsExporter {
+
+    private static final Duration HTTP_TIMEOUT = Duration.ofSeconds(30);
+    // the latency keys of the report and their quantile label
+    private static final List<List<String>> QUANTILES = List.of(
+            List.of("p50", "0.5"), List.of("p95", "0.95"), List.of("p99", "0.99"), List.of("max", "1"));
+
+    record Sample(String name, String help, Map<String, String> labels, double value) {
+    }
+
+    private MetricsExporter() {
+    }
+
+    /**
+     * @param report the run metrics as created by {@link RunMetrics#toMap()} with the additional sections of the report
+     */
+    public static void export(MetricsExportConfig config, Map<String, Object> report) throws IOException, InterruptedException {
+        List<Sample> samples = samples(report);
+        String body;
+        String contentType;
+        if (config.format() == MetricsExportFormat.PROMETHEUS) {
+            body = toPrometheusText(samples);
+            contentType = "text/plain; version=0.0.4";
+        } else {
+            body = toOtlpJson(samples, Instant.now());
+            contentType = "application/json";
+        }
+        if (config.isUrl()) {
+            send(URI.create(config.target()), body, contentType);
+        } else {
+            writeFile(Path.of(config.target()), body);
+        }
+    }
+
+    private static void send(URI uri, String body, String contentType) throws IOException, InterruptedException {
+        HttpClient httpClient = HttpClient.newBuilder().connectTimeout(HTTP_TIMEOUT).build();
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(HTTP_TIMEOUT)
+                .header("Content-Type", contentType)
+                .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+                .build();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("metrics export to " + uri + " failed with status " + response.statusCode() + ": " + response.body());
+        }
+    }
+
+    private static void writeFile(Path file, String body) throws IOException {
+        Path folder = file.toAbsolutePath().getParent();
+        Files.createDirectories(folder);
+        // replaced atomically: collectors reading the file never see a partially written file
+        Path tempFile = Files.createTempFile(folder, file.getFileName().toString(), ".tmp");
+        try {
+            Files.writeString(tempFile, body, StandardCharsets.UTF_8);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<Sample> samples(Map<String, Object> report) {
+        String command = report.get("command") != null ? report.get("command").toString() : "run";
+        List<Sample> result = new ArrayList<>();
+        result.add(new Sample("spb_run_start_timestamp_seconds", "Start of the run",
+                labels(command), Instant.parse(report.get("start").toString()).getEpochSecond()));
+        result.add(new Sample("spb_run_duration_seconds", "Duration of the run",
+                labels(command), number(report.get("durationMillis")) / 1000));
+
+        sections(report, "phases").forEach((phase, values) -> {
+            Map<String, String> labels = labels(command, "phase", phase);
+            result.add(new Sample("spb_phase_count", "Operations of the phase", labels, number(values.get("count"))));
+            result.add(new Sample("spb_phase_busy_seconds", "Time spent in the phase summed over all threads", labels, number(values.get("busyMillis")) / 1000));
+            result.add(new Sample("spb_phase_wall_seconds", "Time from the first start to the last end of the phase", labels, number(values.get("wallMillis")) / 1000));
+            result.add(new Sample("spb_phase_bytes", "Bytes processed in the phase", labels, number(values.get("bytes"))));
+        });
+        Map<String, Object> counters = (Map<String, Object>) report.getOrDefault("counters", Map.of());
+        counters.forEach((counter, value) ->
+                result.add(new Sample("spb_counter", "Counters of the run, e.g. the files backed up", labels(command, "counter", counter), number(value))));
+        sections(report, "s3Operations").forEach((operation, values) -> {
+            Map<String, String> labels = labels(command, "operation", operation);
+            result.add(new Sample("spb_s3_requests", "S3 requests", labels, number(values.get("count"))));
+            result.add(new Sample("spb_s3_failed_requests", "Failed S3 requests", labels, number(values.get("failed"))));
+            result.add(new Sample("spb_s3_retries", "Retries of S3 requests", labels, number(values.get("retries"))));
+            Map<String, Object> latency = (Map<String, Object>) values.get("latencyMillis");
+            for (List<String> quantile : QUANTILES) {
+                result.add(new Sample("spb_s3_latency_seconds", "Latency of S3 requests including retries",
+                        labels(command, "operation", operation, "quantile", quantile.get(1)), number(latency.get(quantile.get(0))) / 1000));
+            }
+        });
+        sections(report, "threadPools").forEach((pool, values) -> {
+            Map<String, String> labels = labels(command, "pool", pool);
+            result.add(new Sample("spb_thread_pool_utilization", "Busy time of the threads relative to their lifetime", labels, number(values.get("utilization"))));
+            result.add(new Sample("spb_thread_pool_max_active", "Maximum of concurrently busy threads", labels, number(values.get("maxActive"))));
+        });
+        sections(report, "concurrencyLimits").forEach((limiter, values) -> {
+            Map<String, String> labels = labels(command, "limiter", limiter);
+            result.add(new Sample("spb_concurrency_limit", "Concurrency limit at the end of the run", labels, number(values.get("limit"))));
+            result.add(new Sample("spb_concurrency_max_limit", "Highest concurrency limit during the run", labels, number(values.get("maxLimit"))));
+        });
+        Map<String, Object> connectionPool = (Map<String, Object>) report.get("connectionPool");
+        if (connectionPool != null) {
+            result.add(new Sample("spb_connection_pool_max_leased", "Maximum of concurrently leased HTTP connections",
+                    labels(command), number(connectionPool.get("maxLeased"))));
+            result.add(new Sample("spb_connection_pool_max_acquire_seconds", "Longest wait for an HTTP connection",
+                    labels(command), number(connectionPool.get("maxAcquireMillis")) / 1000));
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Map<String, Object>> sections(Map<String, Object> report, String key) {
+        return (Map<String, Map<String, Object>>) report.getOrDefault(key, Map.of());
+    }
+
+    private static Map<String, String> labels(String command, String... namesAndValues) {
+        Map<String, String> result = new LinkedHashMap<>();
+        result.put("command", command);
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            result.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return result;
+    }
+
+    private static double number(Object value) {
+        return value instanceof Number number ? number.doubleValue() : 0;
+    }
+
+    static String toPrometheusText(List<Sample> samples) {
+        // all samples of a metric have to follow its HELP and TYPE lines
+        Map<String, List<Sample>> byName = new LinkedHashMap<>();
+        samples.forEach(sample -> byName.computeIfAbsent(sample.name(), name -> new ArrayList<>()).add(sample));
+        StringBuilder result = new StringBuilder();
+        byName.forEach((name, samplesOfName) -> {
+            result.append("# HELP ").append(name).append(' ').append(samplesOfName.get(0).help()).append('\n');
+            result.append("# TYPE ").append(name).append(" gauge\n");
+            for (Sample sample : samplesOfName) {
+                result.append(name).append('{');
+                boolean first = true;
+                for (Map.Entry<String, String> label : sample.labels().entrySet()) {
+                    if (!first) {
+                        result.append(',');
+                    }
+                    first = false;
+                    result.append(label.getKey()).append("=\"").append(escapeLabelValue(label.getValue())).append('"');
+                }
+                result.append("} ").append(formatValue(sample.value())).append('\n');
+            }
+        });
+        return result.toString();
+    }
+
+    private static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String formatValue(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    static String toOtlpJson(List<Sample> samples, Instant time) {
+        String timeUnixNano = Long.toString(time.getEpochSecond() * 1_000_000_000L + time.getNano());
+        Map<String, List<Map<String, Object>>> dataPointsByName = new LinkedHashMap<>();
+        Map<String, String> helpByName = new LinkedHashMap<>();
+        for (Sample sample : samples) {
+            List<Map<String, Object>> attributes = new ArrayList<>();
+            sample.labels().forEach((key, value) -> attributes.add(Map.of("key", key, "value", Map.of("stringValue", value))));
+            Map<String, Object> dataPoint = new LinkedHashMap<>();
+            dataPoint.put("attributes", attributes);
+            dataPoint.put("timeUnixNano", timeUnixNano);
+            dataPoint.put("asDouble", sample.value());
+            dataPointsByName.computeIfAbsent(sample.name(), name -> new ArrayList<>()).add(dataPoint);
+            helpByName.putIfAbsent(sample.name(), sample.help());
+        }
+        List<Map<String, Object>> metrics = new ArrayList<>();
+        dataPointsByName.forEach((name, dataPoints) -> {
+            Map<String, Object> metric = new LinkedHashMap<>();
+            metric.put("name", name);
+            metric.put("description", helpByName.get(name));
+            metric.put("gauge", Map.of("dataPoints", dataPoints));
+            metrics.add(metric);
+        });
+        Map<String, Object> scopeMetrics = new LinkedHashMap<>();
+        scopeMetrics.put("scope", Map.of("name", "spb"));
+        scopeMetrics.put("metrics", metrics);
+        Map<String, Object> resourceMetrics = new LinkedHashMap<>();
+        resourceMetrics.put("resource", Map.of("attributes", List.of(Map.of("key", "service.name", "value", Map.of("stringValue", "spb")))));
+        resourceMetrics.put("scopeMetrics", List.of(scopeMetrics));
+        return RunMetrics.toJson(Map.of("resourceMetrics", List.of(resourceMetrics)));
+    }
+}
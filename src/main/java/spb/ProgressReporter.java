@@ -0,0 +1,204 @@
+package spb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+import static spb.Util.bytesToHumanReadableFormat;
+
+/**
+ * Reports the progress of a backup or restore: files and bytes done, the current transfer rate,
+ * the estimated remaining time and the operations in flight.
+ * <p>
+ * On a terminal the progress is redrawn every second on a single line. Otherwise, e.g. when running
+ * from cron, it is logged every 30 seconds at debug level, which goes only to the log file.
+ * <p>
+ * The remaining time is based on a moving average of the processed bytes per second, because the
+ * rate changes a lot between small files, unchanged files (only hashed) and large uploads.
+ */
+public class ProgressReporter implements AutoCloseable {
+
+    private static final Duration TERMINAL_INTERVAL = Duration.ofSeconds(1);
+    private static final Duration LOG_INTERVAL = Duration.ofSeconds(30);
+    // weight of the latest interval in the moving averages
+    private static final double SMOOTHING = 0.1;
+    private static final String CLEAR_LINE = "\033[2K\r";
+
+    private static final Logger logger = LoggerFactory.getLogger("spb");
+
+    private static final ProgressReporter DISABLED = new ProgressReporter("", 0, 0, () -> 0);
+
+    private final String operation;
+    private final long totalFiles;
+    private final long totalBytes;
+    private final IntSupplier requestsInFlight;
+
+    private final AtomicLong filesDone = new AtomicLong();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private final AtomicLong hashedBytes = new AtomicLong();
+    private final AtomicLong encryptedBytes = new AtomicLong();
+    private final AtomicLong transferredBytes = new AtomicLong();
+    private final AtomicInteger filesInFlight = new AtomicInteger();
+
+    private long lastUpdateNanos = System.nanoTime();
+    private long lastBytesDone;
+    private long lastTransferredBytes;
+    private double bytesDonePerSecond = -1;
+    private double transferredBytesPerSecond = -1;
+
+    private ScheduledExecutorService scheduler;
+    private PrintStream terminal;
+
+    ProgressReporter(String operation, long totalFiles, long totalBytes, IntSupplier requestsInFlight) {
+        this.operation = operation;
+        this.totalFiles = totalFiles;
+        this.totalBytes = totalBytes;
+        this.requestsInFlight = requestsInFlight;
+    }
+
+    /**
+     * A reporter which counts but never reports anything.
+     */
+    public static ProgressReporter disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Starts reporting the progress until the reporter is closed.
+     *
+     * @param requestsInFlight the currently running S3 requests
+     */
+    public static ProgressReporter start(String operation, long totalFiles, long totalBytes, IntSupplier requestsInFlight) {
+        ProgressReporter progressReporter = new ProgressReporter(operation, totalFiles, totalBytes, requestsInFlight);
+        boolean isTerminal = System.console() != null;
+        progressReporter.terminal = isTerminal ? System.out : null;
+        Duration interval = isTerminal ? TERMINAL_INTERVAL : LOG_INTERVAL;
+        progressReporter.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progressReporter.scheduler.scheduleAtFixedRate(progressReporter::report,
+                interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        return progressReporter;
+    }
+
+    public void fileStarted() {
+        filesInFlight.incrementAndGet();
+    }
+
+    /**
+     * @param originalFileSize the size of the original file, which counts towards the bytes done
+     */
+    public void fileFinished(long originalFileSize) {
+        filesInFlight.decrementAndGet();
+        filesDone.incrementAndGet();
+        bytesDone.addAndGet(originalFileSize);
+    }
+
+    public void hashed(long bytes) {
+        hashedBytes.addAndGet(bytes);
+    }
+
+    public void encrypted(long bytes) {
+        encryptedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Uploaded or downloaded bytes.
+     */
+    public void transferred(long bytes) {
+        transferredBytes.addAndGet(bytes);
+    }
+
+    private void report() {
+        try {
+            String line = progressLine(System.nanoTime());
+            if (terminal != null) {
+                // the cursor is moved back to the start, so that log lines overwrite the progress line
+                terminal.print(CLEAR_LINE + line + "\r");
+                terminal.flush();
+            } else {
+                logger.debug(line);
+            }
+        } catch (RuntimeException e) {
+            // a failing report must not stop the scheduled reporting
+            logger.debug("progress report failed", e);
+        }
+    }
+
+    synchronized String progressLine(long nowNanos) {
+        long currentBytesDone = bytesDone.get();
+        long currentTransferredBytes = transferredBytes.get();
+        double elapsedSeconds = (double) (nowNanos - lastUpdateNanos) / TimeUnit.SECONDS.toNanos(1);
+        if (elapsedSeconds > 0) {
+            bytesDonePerSecond = movingAverage(bytesDonePerSecond, (currentBytesDone - lastBytesDone) / elapsedSeconds);
+            transferredBytesPerSecond = movingAverage(transferredBytesPerSecond, (currentTransferredBytes - lastTransferredBytes) / elapsedSeconds);
+            lastUpdateNanos = nowNanos;
+            lastBytesDone = currentBytesDone;
+            lastTransferredBytes = currentTransferredBytes;
+        }
+
+        StringBuilder result = new StringBuilder();
+        result.append(operation).append(": ")
+                .append(filesDone.get()).append("/").append(totalFiles).append(" files, ")
+                .append(bytesToHumanReadableFormat(currentBytesDone)).append("/").append(bytesToHumanReadableFormat(totalBytes))
+                .append(" (").append(percent(currentBytesDone, totalBytes)).append("%)")
+                .append(" | hashed ").append(bytesToHumanReadableFormat(hashedBytes.get()))
+                .append(", encrypted ").append(bytesToHumanReadableFormat(encryptedBytes.get()))
+                .append(", transferred ").append(bytesToHumanReadableFormat(currentTransferredBytes))
+                .append(" | ").append(String.format(Locale.ROOT, "%.1f", Math.max(0, transferredBytesPerSecond) / (1024 * 1024))).append(" MB/s")
+                .append(" | ETA ").append(eta(currentBytesDone))
+                .append(" | in flight: ").append(filesInFlight.get()).append(" files, ")
+                .append(requestsInFlight.getAsInt()).append(" S3 requests");
+        return result.toString();
+    }
+
+    private static double movingAverage(double average, double value) {
+        return average < 0 ? value : SMOOTHING * value + (1 - SMOOTHING) * average;
+    }
+
+    private static long percent(long done, long total) {
+        return total == 0 ? 100 : Math.min(100, done * 100 / total);
+    }
+
+    private String eta(long currentBytesDone) {
+        long remainingBytes = Math.max(0, totalBytes - currentBytesDone);
+        if (remainingBytes == 0) {
+            return "-";
+        }
+        if (bytesDonePerSecond <= 0) {
+            return "unknown";
+        }
+        Duration remaining = Duration.ofSeconds(Math.round(remainingBytes / bytesDonePerSecond));
+        return String.format("%d:%02d:%02d", remaining.toHours(), remaining.toMinutesPart(), remaining.toSecondsPart());
+    }
+
+    /**
+     * Stops reporting and reports the final state once more.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+        String line = progressLine(System.nanoTime());
+        if (terminal != null) {
+            terminal.println(CLEAR_LINE + line);
+            terminal.flush();
+        } else {
+            logger.debug(line);
+        }
+    }
+}
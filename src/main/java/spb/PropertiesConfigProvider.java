@@ -2,17 +2,24 @@ package spb;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.retry.RetryMode;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Comparator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeSet;
 
 public class PropertiesConfigProvider implements ConfigProvider {
 
@@ -20,11 +27,67 @@ public class PropertiesConfigProvider implements ConfigProvider {
     private static final String SPB_CONFIG_FILE = "spb.config";
     private static final String CONFIG_BUCKET_NAME = "bucket.name";
     private static final String CONFIG_SECRET_KEY = "secret.key";
+    private static final String CONFIG_S3_ENDPOINT = "s3.endpoint";
+    private static final String CONFIG_S3_REGION = "s3.region";
+    private static final String CONFIG_S3_TRANSFER_BACKEND = "s3.transfer-backend";
+    private static final String CONFIG_S3_TARGET_THROUGHPUT_GBPS = "s3.target-throughput-gbps";
+    private static final double DEFAULT_S3_TARGET_THROUGHPUT_GBPS = 10.0;
+    private static final String CONFIG_S3_HTTP_MAX_CONNECTIONS = "s3.http.max-connections";
+    private static final String CONFIG_S3_HTTP_CONNECTION_TTL_SECONDS = "s3.http.connection-ttl-seconds";
+    private static final String CONFIG_S3_HTTP_TCP_KEEP_ALIVE = "s3.http.tcp-keep-alive";
+    private static final String CONFIG_S3_HTTP_SOCKET_TIMEOUT_SECONDS = "s3.http.socket-timeout-seconds";
+    private static final String CONFIG_S3_HTTP_CONNECTION_ACQUISITION_TIMEOUT_SECONDS = "s3.http.connection-acquisition-timeout-seconds";
+    private static final String CONFIG_S3_RETRY_MODE = "s3.retry-mode";
+    private static final String CONFIG_BANDWIDTH_UPLOAD_MBIT = "bandwidth.upload-mbit";
+    private static final String CONFIG_BANDWIDTH_DOWNLOAD_MBIT = "bandwidth.download-mbit";
+    private static final String CONFIG_BANDWIDTH_ADAPTIVE = "bandwidth.adaptive";
+    private static final String CONFIG_BANDWIDTH_SCHEDULE_PREFIX = "bandwidth.schedule.";
+    private static final String CONFIG_CONCURRENCY_ADAPTIVE = "concurrency.adaptive";
+    private static final String CONFIG_CONCURRENCY_MAX = "concurrency.max";
+    private static final String CONFIG_METRICS_REPORT = "metrics.report";
+    private static final String CONFIG_METRICS_REPORT_FOLDER = "metrics.report-folder";
+    private static final String CONFIG_METRICS_EXPORT_FORMAT = "metrics.export.format";
+    private static final String CONFIG_METRICS_EXPORT_TARGET = "metrics.export.target";
+    private static final String CONFIG_CHECKPOINT_FOLDER = "checkpoint.folder";
+    private static final String CONFIG_CACHE_FOLDER = "cache.folder";
+    private static final String CONFIG_DEDUP_ENABLED = "dedup.enabled";
+    private static final String CONFIG_TREE_HASH_ENABLED = "tree-hash.enabled";
+    private static final String CONFIG_TREE_HASH_MIN_FILE_SIZE = "tree-hash.min-file-size";
+    private static final String CONFIG_TREE_HASH_SEGMENT_SIZE = "tree-hash.segment-size";
+    private static final long DEFAULT_TREE_HASH_MIN_FILE_SIZE = 1024 * 1024 * 1024L;
+    private static final long DEFAULT_TREE_HASH_SEGMENT_SIZE = 64 * 1024 * 1024L;
+    private static final String CONFIG_MODIFIED_FILE_RETRIES = "consistency.modified-file-retries";
+    private static final int MAX_MODIFIED_FILE_RETRIES = 10;
+    private static final String CONFIG_CRYPTO_SHA256_PROVIDER = "crypto.sha256-provider";
+    private static final String CONFIG_CRYPTO_AES_GCM_PROVIDER = "crypto.aes-gcm-provider";
+    private static final String CONFIG_DATA_KEY_CACHE_ENABLED = "data-key-cache.enabled";
+    private static final String CONFIG_DATA_KEY_CACHE_MAX_AGE_SECONDS = "data-key-cache.max-age-seconds";
+    private static final String CONFIG_DATA_KEY_CACHE_MAX_MESSAGES = "data-key-cache.max-messages";
+    private static final String CONFIG_DATA_KEY_CACHE_MAX_BYTES = "data-key-cache.max-bytes";
+    private static final long DEFAULT_DATA_KEY_CACHE_MAX_AGE_SECONDS = 300;
+    private static final long DEFAULT_DATA_KEY_CACHE_MAX_MESSAGES = 10_000;
+    private static final long DEFAULT_DATA_KEY_CACHE_MAX_BYTES = 10L * 1024 * 1024 * 1024;
     private final Logger logger = LoggerFactory.getLogger("spb");
 
     private byte[] rawSecretKeyBytes;
     private String bucketName;
     private List<FolderToBackupConfig> foldersBackupConfig;
+    private DataKeyCacheConfig dataKeyCacheConfig;
+    private URI s3EndpointOverride;
+    private String s3Region;
+    private S3TransferBackend s3TransferBackend = S3TransferBackend.SYNC;
+    private double s3TargetThroughputInGbps = DEFAULT_S3_TARGET_THROUGHPUT_GBPS;
+    private HttpClientConfig httpClientConfig = HttpClientConfig.DEFAULT;
+    private Path checkpointFolder;
+    private Path cacheFolder;
+    private boolean dedupEnabled;
+    private TreeHashConfig treeHashConfig;
+    private int modifiedFileRetries = 3;
+    private CryptoConfig cryptoConfig = CryptoConfig.DEFAULT;
+    private Path metricsReportFolder;
+    private MetricsExportConfig metricsExportConfig;
+    private BandwidthConfig bandwidthConfig = BandwidthConfig.UNLIMITED;
+    private ConcurrencyConfig concurrencyConfig = ConcurrencyConfig.defaultFor(HttpClientConfig.DEFAULT);
 
     public PropertiesConfigProvider() throws IOException {
         readConfigFile();
@@ -48,6 +111,17 @@ public class PropertiesConfigProvider implements ConfigProvider {
             throw new RuntimeException("Invalid config");
         }
         logger.info("Using S3 bucket '{}'", bucketName);
+        String s3Endpoint = properties.getProperty(CONFIG_S3_ENDPOINT);
+        if (s3Endpoint != null && s3Endpoint.length() > 0) {
+            try {
+                s3EndpointOverride = URI.create(s3Endpoint.trim());
+            } catch (IllegalArgumentException e) {
+                logger.error("Invalid config: {} expected to be an URI", CONFIG_S3_ENDPOINT);
+                throw new RuntimeException("Invalid config");
+            }
+            logger.info("Using S3 endpoint '{}'", s3EndpointOverride);
+        }
+        readS3ClientConfig(properties);
         String secretKey = properties.getProperty(CONFIG_SECRET_KEY);
         if (secretKey == null || secretKey.length() == 0) {
             logger.error("Invalid config: {} expected to specify the secret key", CONFIG_SECRET_KEY);
@@ -65,6 +139,246 @@ public class PropertiesConfigProvider implements ConfigProvider {
         }
         foldersBackupConfig = readFilesToBackupConfig(properties);
         logger.info("{} backup folders", foldersBackupConfig.size());
+        dataKeyCacheConfig = readDataKeyCacheConfig(properties);
+        bandwidthConfig = readBandwidthConfig(properties);
+        concurrencyConfig = readConcurrencyConfig(properties);
+        metricsReportFolder = readMetricsReportFolder(properties);
+        metricsExportConfig = readMetricsExportConfig(properties);
+        String checkpointFolderValue = properties.getProperty(CONFIG_CHECKPOINT_FOLDER);
+        if (checkpointFolderValue != null && checkpointFolderValue.length() > 0) {
+            checkpointFolder = Path.of(checkpointFolderValue.trim());
+        }
+        String cacheFolderValue = properties.getProperty(CONFIG_CACHE_FOLDER);
+        if (cacheFolderValue != null && cacheFolderValue.length() > 0) {
+            cacheFolder = Path.of(cacheFolderValue.trim());
+        }
+        String dedupEnabledValue = properties.getProperty(CONFIG_DEDUP_ENABLED);
+        dedupEnabled = dedupEnabledValue != null && Boolean.parseBoolean(dedupEnabledValue.trim());
+        treeHashConfig = readTreeHashConfig(properties);
+        String modifiedFileRetriesValue = properties.getProperty(CONFIG_MODIFIED_FILE_RETRIES);
+        if (modifiedFileRetriesValue != null && modifiedFileRetriesValue.length() > 0) {
+            try {
+                modifiedFileRetries = Integer.parseInt(modifiedFileRetriesValue.trim());
+            } catch (NumberFormatException e) {
+                modifiedFileRetries = -1;
+            }
+            if (modifiedFileRetries < 0 || modifiedFileRetries > MAX_MODIFIED_FILE_RETRIES) {
+                logger.error("Invalid config: {} expected to be between 0 and {} but was '{}'", CONFIG_MODIFIED_FILE_RETRIES,
+                        MAX_MODIFIED_FILE_RETRIES, modifiedFileRetriesValue);
+                throw new RuntimeException("Invalid config");
+            }
+        }
+        cryptoConfig = new CryptoConfig(readCryptoProvider(properties, CONFIG_CRYPTO_SHA256_PROVIDER),
+                readCryptoProvider(properties, CONFIG_CRYPTO_AES_GCM_PROVIDER));
+    }
+
+    private TreeHashConfig readTreeHashConfig(Properties properties) {
+        if (!Boolean.parseBoolean(properties.getProperty(CONFIG_TREE_HASH_ENABLED))) {
+            return null;
+        }
+        long segmentSize = readPositiveLong(properties, CONFIG_TREE_HASH_SEGMENT_SIZE, DEFAULT_TREE_HASH_SEGMENT_SIZE);
+        if (segmentSize > Integer.MAX_VALUE) {
+            logger.error("Invalid config: {} expected to be at most {} but was {}", CONFIG_TREE_HASH_SEGMENT_SIZE, Integer.MAX_VALUE, segmentSize);
+            throw new RuntimeException("Invalid config");
+        }
+        return new TreeHashConfig(readPositiveLong(properties, CONFIG_TREE_HASH_MIN_FILE_SIZE, DEFAULT_TREE_HASH_MIN_FILE_SIZE), (int) segmentSize);
+    }
+
+    private CryptoProvider readCryptoProvider(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null || value.length() == 0) {
+            return CryptoProvider.AUTO;
+        }
+        try {
+            return CryptoProvider.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid config: {} expected to be 'auto', 'jdk' or 'bouncycastle' but was '{}'", key, value);
+            throw new RuntimeException("Invalid config");
+        }
+    }
+
+    private void readS3ClientConfig(Properties properties) {
+        String region = properties.getProperty(CONFIG_S3_REGION);
+        if (region != null && region.length() > 0) {
+            s3Region = region.trim();
+        }
+        String transferBackend = properties.getProperty(CONFIG_S3_TRANSFER_BACKEND);
+        if (transferBackend != null && transferBackend.length() > 0) {
+            try {
+                s3TransferBackend = S3TransferBackend.valueOf(transferBackend.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.error("Invalid config: {} expected to be 'sync' or 'crt' but was '{}'", CONFIG_S3_TRANSFER_BACKEND, transferBackend);
+                throw new RuntimeException("Invalid config");
+            }
+            logger.info("Using S3 transfer backend {}", s3TransferBackend);
+        }
+        String targetThroughput = properties.getProperty(CONFIG_S3_TARGET_THROUGHPUT_GBPS);
+        if (targetThroughput != null && targetThroughput.length() > 0) {
+            try {
+                s3TargetThroughputInGbps = Double.parseDouble(targetThroughput.trim());
+            } catch (NumberFormatException e) {
+                logger.error("Invalid config: {} expected to be a number but was '{}'", CONFIG_S3_TARGET_THROUGHPUT_GBPS, targetThroughput);
+                throw new RuntimeException("Invalid config");
+            }
+        }
+        httpClientConfig = readHttpClientConfig(properties);
+    }
+
+    private Path readMetricsReportFolder(Properties properties) {
+        String enabled = properties.getProperty(CONFIG_METRICS_REPORT);
+        if (enabled != null && enabled.length() > 0 && !Boolean.parseBoolean(enabled.trim())) {
+            return null;
+        }
+        String folder = properties.getProperty(CONFIG_METRICS_REPORT_FOLDER);
+        if (folder != null && folder.length() > 0) {
+            return Path.of(folder.trim());
+        }
+        return Path.of(System.getProperty("user.home"), ".spb", "reports");
+    }
+
+    private MetricsExportConfig readMetricsExportConfig(Properties properties) {
+        String target = properties.getProperty(CONFIG_METRICS_EXPORT_TARGET);
+        if (target == null || target.length() == 0) {
+            return null;
+        }
+        String format = properties.getProperty(CONFIG_METRICS_EXPORT_FORMAT, "prometheus");
+        MetricsExportFormat metricsExportFormat;
+        try {
+            metricsExportFormat = MetricsExportFormat.valueOf(format.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid config: {} expected to be 'prometheus' or 'otlp' but was '{}'", CONFIG_METRICS_EXPORT_FORMAT, format);
+            throw new RuntimeException("Invalid config");
+        }
+        logger.info("Exporting metrics as {} to {}", metricsExportFormat, target.trim());
+        return new MetricsExportConfig(metricsExportFormat, target.trim());
+    }
+
+    private ConcurrencyConfig readConcurrencyConfig(Properties properties) {
+        String adaptive = properties.getProperty(CONFIG_CONCURRENCY_ADAPTIVE);
+        ConcurrencyConfig defaults = ConcurrencyConfig.defaultFor(httpClientConfig);
+        return new ConcurrencyConfig(
+                adaptive != null && adaptive.length() > 0 ? Boolean.parseBoolean(adaptive.trim()) : defaults.adaptive(),
+                (int) readPositiveLong(properties, CONFIG_CONCURRENCY_MAX, defaults.maxConcurrency()));
+    }
+
+    private BandwidthConfig readBandwidthConfig(Properties properties) {
+        Long uploadBytesPerSecond = readMbitAsBytesPerSecond(properties, CONFIG_BANDWIDTH_UPLOAD_MBIT);
+        Long downloadBytesPerSecond = readMbitAsBytesPerSecond(properties, CONFIG_BANDWIDTH_DOWNLOAD_MBIT);
+        return new BandwidthConfig(
+                uploadBytesPerSecond != null ? uploadBytesPerSecond : 0,
+                downloadBytesPerSecond != null ? downloadBytesPerSecond : 0,
+                readBandwidthSchedules(properties),
+                Boolean.parseBoolean(properties.getProperty(CONFIG_BANDWIDTH_ADAPTIVE)));
+    }
+
+    private List<BandwidthSchedule> readBandwidthSchedules(Properties properties) {
+        // ordered by the schedule number: the first matching schedule applies
+        Set<String> schedulePropertyPrefixes = new TreeSet<>(Comparator.comparingLong(
+                prefix -> Long.parseLong(prefix.substring(CONFIG_BANDWIDTH_SCHEDULE_PREFIX.length()))));
+        for (Object o : properties.keySet()) {
+            String key = (String) o;
+            if (key.matches("bandwidth\\.schedule\\.\\d+\\..+")) {
+                schedulePropertyPrefixes.add(key.substring(0, key.indexOf(".", CONFIG_BANDWIDTH_SCHEDULE_PREFIX.length())));
+            }
+        }
+        List<BandwidthSchedule> result = new ArrayList<>();
+        for (String prefix : schedulePropertyPrefixes) {
+            String time = properties.getProperty(prefix + ".time");
+            String[] fromTo = time != null ? time.trim().split("-") : new String[0];
+            LocalTime from;
+            LocalTime to;
+            try {
+                from = LocalTime.parse(fromTo[0].trim());
+                to = LocalTime.parse(fromTo[1].trim());
+            } catch (RuntimeException e) {
+                logger.error("Invalid config: {}.time expected to be a time range like 08:00-18:00 but was '{}'", prefix, time);
+                throw new RuntimeException("Invalid config");
+            }
+            result.add(new BandwidthSchedule(from, to,
+                    readMbitAsBytesPerSecond(properties, prefix + ".upload-mbit"),
+                    readMbitAsBytesPerSecond(properties, prefix + ".download-mbit")));
+        }
+        return result;
+    }
+
+    /**
+     * @return null if not configured, 0 means unlimited
+     */
+    private Long readMbitAsBytesPerSecond(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null || value.length() == 0) {
+            return null;
+        }
+        double mbit;
+        try {
+            mbit = Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            logger.error("Invalid config: {} expected to be a number but was '{}'", key, value);
+            throw new RuntimeException("Invalid config");
+        }
+        if (mbit < 0) {
+            logger.error("Invalid config: {} expected to be 0 (unlimited) or positive but was {}", key, value);
+            throw new RuntimeException("Invalid config");
+        }
+        return (long) (mbit * 1_000_000 / 8);
+    }
+
+    private HttpClientConfig readHttpClientConfig(Properties properties) {
+        HttpClientConfig defaults = HttpClientConfig.DEFAULT;
+        RetryMode retryMode = defaults.retryMode();
+        String retryModeValue = properties.getProperty(CONFIG_S3_RETRY_MODE);
+        if (retryModeValue != null && retryModeValue.length() > 0) {
+            try {
+                retryMode = RetryMode.valueOf(retryModeValue.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.error("Invalid config: {} expected to be 'legacy', 'standard' or 'adaptive' but was '{}'", CONFIG_S3_RETRY_MODE, retryModeValue);
+                throw new RuntimeException("Invalid config");
+            }
+        }
+        String tcpKeepAlive = properties.getProperty(CONFIG_S3_HTTP_TCP_KEEP_ALIVE);
+        return new HttpClientConfig(
+                (int) readPositiveLong(properties, CONFIG_S3_HTTP_MAX_CONNECTIONS, defaults.maxConnections()),
+                readSeconds(properties, CONFIG_S3_HTTP_CONNECTION_TTL_SECONDS, defaults.connectionTimeToLive()),
+                tcpKeepAlive != null && tcpKeepAlive.length() > 0 ? Boolean.parseBoolean(tcpKeepAlive.trim()) : defaults.tcpKeepAlive(),
+                readSeconds(properties, CONFIG_S3_HTTP_SOCKET_TIMEOUT_SECONDS, defaults.socketTimeout()),
+                readSeconds(properties, CONFIG_S3_HTTP_CONNECTION_ACQUISITION_TIMEOUT_SECONDS, defaults.connectionAcquisitionTimeout()),
+                retryMode);
+    }
+
+    private Duration readSeconds(Properties properties, String key, Duration defaultValue) {
+        if (properties.getProperty(key) == null || properties.getProperty(key).length() == 0) {
+            return defaultValue;
+        }
+        return Duration.ofSeconds(readPositiveLong(properties, key, 0));
+    }
+
+    private DataKeyCacheConfig readDataKeyCacheConfig(Properties properties) {
+        if (!Boolean.parseBoolean(properties.getProperty(CONFIG_DATA_KEY_CACHE_ENABLED))) {
+            return null;
+        }
+        return new DataKeyCacheConfig(
+                readPositiveLong(properties, CONFIG_DATA_KEY_CACHE_MAX_AGE_SECONDS, DEFAULT_DATA_KEY_CACHE_MAX_AGE_SECONDS),
+                readPositiveLong(properties, CONFIG_DATA_KEY_CACHE_MAX_MESSAGES, DEFAULT_DATA_KEY_CACHE_MAX_MESSAGES),
+                readPositiveLong(properties, CONFIG_DATA_KEY_CACHE_MAX_BYTES, DEFAULT_DATA_KEY_CACHE_MAX_BYTES));
+    }
+
+    private long readPositiveLong(Properties properties, String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.length() == 0) {
+            return defaultValue;
+        }
+        long result;
+        try {
+            result = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.error("Invalid config: {} expected to be a number but was '{}'", key, value);
+            throw new RuntimeException("Invalid config");
+        }
+        if (result <= 0) {
+            logger.error("Invalid config: {} expected to be positive but was {}", key, result);
+            throw new RuntimeException("Invalid config");
+        }
+        return result;
     }
 
 
@@ -90,11 +404,19 @@ public class PropertiesConfigProvider implements ConfigProvider {
                 logger.error("invalid config for {}. Expected {}.name", backupPropertyPrefix, backupFolder);
                 continue;
             }
-            result.add(new FolderToBackupConfig(backupFolder, backupName));
+            result.add(new FolderToBackupConfig(backupFolder, backupName,
+                    optionalProperty(properties, backupPropertyPrefix + ".snapshot-folder"),
+                    optionalProperty(properties, backupPropertyPrefix + ".pre-backup-command"),
+                    optionalProperty(properties, backupPropertyPrefix + ".post-backup-command")));
         }
         return result;
     }
 
+    private static String optionalProperty(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
     public byte[] getRawSecretKeyBytes() {
         return rawSecretKeyBytes;
     }
@@ -111,4 +433,84 @@ public class PropertiesConfigProvider implements ConfigProvider {
     public int getMultiPartUploadLimitInBytes() {
         return HUNDRED_MB;
     }
+
+    @Override
+    public DataKeyCacheConfig getDataKeyCacheConfig() {
+        return dataKeyCacheConfig;
+    }
+
+    @Override
+    public URI getS3EndpointOverride() {
+        return s3EndpointOverride;
+    }
+
+    @Override
+    public String getS3Region() {
+        return s3Region;
+    }
+
+    @Override
+    public S3TransferBackend getS3TransferBackend() {
+        return s3TransferBackend;
+    }
+
+    @Override
+    public double getS3TargetThroughputInGbps() {
+        return s3TargetThroughputInGbps;
+    }
+
+    @Override
+    public HttpClientConfig getHttpClientConfig() {
+        return httpClientConfig;
+    }
+
+    @Override
+    public Path getCheckpointFolder() {
+        return checkpointFolder != null ? checkpointFolder : ConfigProvider.super.getCheckpointFolder();
+    }
+
+    @Override
+    public Path getCacheFolder() {
+        return cacheFolder != null ? cacheFolder : ConfigProvider.super.getCacheFolder();
+    }
+
+    @Override
+    public boolean isDedupEnabled() {
+        return dedupEnabled;
+    }
+
+    @Override
+    public TreeHashConfig getTreeHashConfig() {
+        return treeHashConfig;
+    }
+
+    @Override
+    public int getModifiedFileRetries() {
+        return modifiedFileRetries;
+    }
+
+    @Override
+    public CryptoConfig getCryptoConfig() {
+        return cryptoConfig;
+    }
+
+    @Override
+    public BandwidthConfig getBandwidthConfig() {
+        return bandwidthConfig;
+    }
+
+    @Override
+    public ConcurrencyConfig getConcurrencyConfig() {
+        return concurrencyConfig;
+    }
+
+    @Override
+    public Path getMetricsReportFolder() {
+        return metricsReportFolder;
+    }
+
+    @Override
+    public MetricsExportConfig getMetricsExportConfig() {
+        return metricsExportConfig;
+    }
 }
@@ -0,0 +1,148 @@
+package spb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static spb.Util.bytesToHumanReadableFormat;
+
+/**
+ * A token bucket limiting the bytes per second of all uploads or all downloads together.
+ * <p>
+ * The configured rate is looked up once per second, so that time of day schedules take effect during a run.
+ * In adaptive mode the rate is halved whenever S3 responds with 503 Slow Down and increased step by step
+ * with every successful request, until the configured rate (or no limit) is reached again.
+ */
+public class RateLimiter {
+
+    private static final long ONE_SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIN_ADAPTIVE_BYTES_PER_SECOND = 64 * 1024;
+    private static final long ADAPTIVE_INCREASE_BYTES_PER_SECOND = 256 * 1024;
+
+    private static final Logger logger = LoggerFactory.getLogger("spb");
+
+    private final String name;
+    private final LongSupplier configuredBytesPerSecond;
+    private final boolean adaptive;
+
+    private long configuredRate;
+    private long configuredRateLookupNanos;
+    // 0 means the configured rate applies
+    private long adaptiveRate;
+    private long lastDecreaseNanos;
+
+    private double availableBytes;
+    private long lastRefillNanos;
+
+    private long windowStartNanos;
+    private long windowBytes;
+    private long observedRate;
+
+    /**
+     * @param configuredBytesPerSecond the current limit, 0 means unlimited
+     */
+    public RateLimiter(String name, LongSupplier configuredBytesPerSecond, boolean adaptive) {
+        this.name = name;
+        this.configuredBytesPerSecond = configuredBytesPerSecond;
+        this.adaptive = adaptive;
+        long now = System.nanoTime();
+        this.configuredRate = configuredBytesPerSecond.getAsLong();
+        this.configuredRateLookupNanos = now;
+        this.lastRefillNanos = now;
+        this.windowStartNanos = now;
+    }
+
+    /**
+     * Blocks until the bytes can be transferred without exceeding the current rate.
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            observe(now, bytes);
+            long rate = currentRate(now);
+            if (rate == 0) {
+                return;
+            }
+            // the bucket holds at most one second worth of bytes
+            availableBytes = Math.min(rate, availableBytes + (double) (now - lastRefillNanos) * rate / ONE_SECOND_NANOS);
+            lastRefillNanos = now;
+            availableBytes -= bytes;
+            waitNanos = availableBytes < 0 ? (long) (-availableBytes * ONE_SECOND_NANOS / rate) : 0;
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for " + name + " bandwidth");
+            }
+        }
+    }
+
+    /**
+     * S3 asked to slow down.
+     */
+    public synchronized void throttled() {
+        long now = System.nanoTime();
+        // a burst of concurrent requests is usually throttled together: reduce only once per second
+        if (!adaptive || now - lastDecreaseNanos < ONE_SECOND_NANOS) {
+            return;
+        }
+        lastDecreaseNanos = now;
+        long rate = currentRate(now);
+        long base = rate > 0 ? rate : Math.max(observedRate, MIN_ADAPTIVE_BYTES_PER_SECOND);
+        adaptiveRate = Math.max(MIN_ADAPTIVE_BYTES_PER_SECOND, base / 2);
+        logger.info("{} throttled by S3 ... reducing the rate to {}/s", name, bytesToHumanReadableFormat(adaptiveRate));
+    }
+
+    public synchronized void succeeded() {
+        if (adaptiveRate == 0) {
+            return;
+        }
+        adaptiveRate += ADAPTIVE_INCREASE_BYTES_PER_SECOND;
+        // without a configured limit the adaptive limit is dropped once it is well above the observed rate
+        boolean recovered = configuredRate > 0
+                ? adaptiveRate >= configuredRate
+                : adaptiveRate > 4 * Math.max(observedRate, MIN_ADAPTIVE_BYTES_PER_SECOND);
+        if (recovered) {
+            adaptiveRate = 0;
+            logger.info("{} not throttled anymore ... back to the configured rate", name);
+        }
+    }
+
+    /**
+     * The current rate in bytes per second, 0 means unlimited.
+     */
+    public synchronized long currentRate() {
+        return currentRate(System.nanoTime());
+    }
+
+    private long currentRate(long now) {
+        if (now - configuredRateLookupNanos >= ONE_SECOND_NANOS) {
+            long rate = configuredBytesPerSecond.getAsLong();
+            if (rate != configuredRate) {
+                logger.info("{} limit changed to {}", name, rate == 0 ? "unlimited" : bytesToHumanReadableFormat(rate) + "/s");
+            }
+            configuredRate = rate;
+            configuredRateLookupNanos = now;
+        }
+        if (adaptiveRate > 0 && (configuredRate == 0 || adaptiveRate < configuredRate)) {
+            return adaptiveRate;
+        }
+        return configuredRate;
+    }
+
+    private void observe(long now, int bytes) {
+        windowBytes += bytes;
+        long elapsed = now - windowStartNanos;
+        if (elapsed >= ONE_SECOND_NANOS) {
+            observedRate = windowBytes * ONE_SECOND_NANOS / elapsed;
+            windowBytes = 0;
+            windowStartNanos = now;
+        }
+    }
+}
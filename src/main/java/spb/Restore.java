@@ -1,15 +1,26 @@
 package spb;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 
 import java.io.File;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
 
 @Command(name = "restore", mixinStandardHelpOptions = true, description = "restore previously backed up files")
 public class Restore implements Callable<Integer> {
 
+    private final Logger logger = LoggerFactory.getLogger("SPB");
+
     @Option(names = {"--target-folder"}, description = "The folder to restore files into",
             paramLabel = "target-folder", required = true)
     private File targetFolder;
@@ -20,17 +31,76 @@ public class Restore implements Callable<Integer> {
     @Option(names = {"--file-name"}, description = "A specific file to restore", paramLabel = "file", required = false)
     private String file;
 
+    @Option(names = {"--file-pattern"}, description = "Restores all files matching the pattern. " +
+            "Not allowed in combination with --file-name",
+            paramLabel = "file-pattern", required = false)
+    private String filePattern;
+
     @CommandLine.Option(names = {"--version-id"}, description = "The version of a specific file to restore. " +
             "Only allowed in combination with --file-name",
             paramLabel = "versionId", required = false)
     private String versionId;
 
+    @Option(names = {"--as-of"}, description = "Restores the backup as it was at this time, " +
+            "e.g. 2023-01-31T18:00:00Z or 2023-01-31T18:00 in the local time zone. " +
+            "Not allowed in combination with --file-name",
+            paramLabel = "timestamp", required = false)
+    private String asOf;
+
+    @Option(names = {"--incremental"}, description = "Only restores files which are missing in the target folder " +
+            "or differ in size or SHA256, e.g. to resume an interrupted restore. " +
+            "Not allowed in combination with --file-name", required = false)
+    private boolean incremental;
+
+    @Option(names = {"--order"}, description = "The order in which files are restored: ${COMPLETION-CANDIDATES}. " +
+            "SIZE restores small files first, DIRECTORY one directory after another. Default: ${DEFAULT-VALUE}",
+            paramLabel = "order", defaultValue = "LISTING")
+    private RestoreOrder order;
+
+    @Option(names = {"--priority"}, description = "Files matching the pattern are restored first. " +
+            "Can be repeated: the patterns are restored in the given order",
+            paramLabel = "pattern", required = false)
+    private List<String> priorityPatterns = new ArrayList<>();
+
+    @Option(names = {"--manifest"}, description = "A file which lists the restored files and the completed " +
+            "directories while the restore is running",
+            paramLabel = "manifest", required = false)
+    private File manifest;
 
     @Override
     public Integer call() throws Exception {
+        if (file != null && filePattern != null) {
+            logger.error("--file-name can't be combined with --file-pattern");
+            return 1;
+        }
+        if (file != null && incremental) {
+            logger.error("--file-name can't be combined with --incremental");
+            return 1;
+        }
+        if (file != null && asOf != null) {
+            logger.error("--file-name can't be combined with --as-of: use --version-id instead");
+            return 1;
+        }
+        Instant asOfInstant = null;
+        if (asOf != null) {
+            asOfInstant = parseTimestamp(asOf);
+            if (asOfInstant == null) {
+                logger.error("invalid --as-of timestamp '{}'", asOf);
+                return 1;
+            }
+        }
+        RestoreOptions restoreOptions = new RestoreOptions(incremental,
+                order,
+                priorityPatterns.stream().map(Pattern::compile).toList(),
+                manifest != null ? manifest.toPath() : null);
         Impl impl = new Impl();
-        if (file == null) {
-            impl.restoreFullBackup(backupName, targetFolder.toPath());
+        if (asOfInstant != null) {
+            impl.restoreAsOf(backupName, asOfInstant, filePattern != null ? Pattern.compile(filePattern) : null,
+                    targetFolder.toPath(), restoreOptions);
+        } else if (filePattern != null) {
+            impl.restoreMatchingFiles(backupName, Pattern.compile(filePattern), targetFolder.toPath(), restoreOptions);
+        } else if (file == null) {
+            impl.restoreFullBackup(backupName, targetFolder.toPath(), restoreOptions);
         } else {
             if (versionId == null) {
                 impl.restoreFile(targetFolder.toPath(), backupName, file);
@@ -41,4 +111,17 @@ public class Restore implements Callable<Integer> {
         impl.shutdown();
         return 0;
     }
-}
+
+    private static Instant parseTimestamp(String timestamp) {
+        try {
+            return Instant.parse(timestamp);
+        } catch (DateTimeParseException e) {
+            // without an offset it is the local time
+        }
+        try {
+            return LocalDateTime.parse(timestamp).atZone(ZoneId.systemDefault()).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,85 @@
+package spb;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A file listing what is already restored while a restore is running, so that applications can start using
+ * restored files and directories before the whole restore has finished.
+ * <p>
+ * Every line is written and flushed as soon as it is complete:
+ * <pre>
+ * file tax/tax-2020.pdf
+ * directory tax/
+ * </pre>
+ * A directory is listed once all files below it, including subdirectories, are restored. The root of the restore
+ * is listed as {@code directory /} at the end.
+ */
+public class RestoreManifest implements AutoCloseable {
+
+    private final BufferedWriter writer;
+    // remaining files below every directory, "" is the root
+    private final Map<String, Integer> remainingFiles = new HashMap<>();
+
+    private RestoreManifest(Path file, List<String> fileNames) throws IOException {
+        for (String fileName : fileNames) {
+            for (String directory : directories(fileName)) {
+                remainingFiles.merge(directory, 1, Integer::sum);
+            }
+        }
+        Path folder = file.toAbsolutePath().getParent();
+        Files.createDirectories(folder);
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates or overwrites the manifest.
+     *
+     * @param fileNames all files of the restore
+     */
+    public static RestoreManifest create(Path file, List<String> fileNames) throws IOException {
+        return new RestoreManifest(file, fileNames);
+    }
+
+    public synchronized void fileRestored(String fileName) throws IOException {
+        writer.write("file " + fileName);
+        writer.newLine();
+        // from the deepest directory to the root
+        List<String> directories = directories(fileName);
+        for (int i = directories.size() - 1; i >= 0; i--) {
+            String directory = directories.get(i);
+            int remaining = remainingFiles.merge(directory, -1, Integer::sum);
+            if (remaining == 0) {
+                writer.write("directory " + directory + "/");
+                writer.newLine();
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * The directory "" and all parent directories of the file, from the root downwards.
+     */
+    private static List<String> directories(String fileName) {
+        List<String> result = new ArrayList<>();
+        result.add("");
+        int separator = fileName.indexOf('/');
+        while (separator >= 0) {
+            result.add(fileName.substring(0, separator));
+            separator = fileName.indexOf('/', separator + 1);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
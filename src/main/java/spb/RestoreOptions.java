@@ -0,0 +1,26 @@
+package spb;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * @param incremental      files which already exist in the target folder with the expected size and SHA256 are
+ *                         not downloaded again, e.g. to repair a partially corrupted restore or to resume an
+ *                         interrupted one
+ * @param order            the order in which the files are restored
+ * @param priorityPatterns files matching these patterns are restored first, in the order of the patterns
+ * @param manifest         a file listing the restored files and completed directories while the restore is running,
+ *                         null means no manifest
+ */
+public record RestoreOptions(boolean incremental,
+                             RestoreOrder order,
+                             List<Pattern> priorityPatterns,
+                             @Nullable Path manifest) {
+
+    public static RestoreOptions defaults() {
+        return new RestoreOptions(false, RestoreOrder.LISTING, List.of(), null);
+    }
+}
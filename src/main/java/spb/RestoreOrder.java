@@ -0,0 +1,56 @@
+package spb;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The order in which the files of a restore are started. Files matching a priority pattern are always started
+ * first, in the order of the patterns.
+ */
+public enum RestoreOrder {
+    /**
+     * The order of the S3 listing, which is effectively random.
+     */
+    LISTING,
+    /**
+     * Small files first: most files are usable after a fraction of the time, large archives come last.
+     */
+    SIZE,
+    /**
+     * Directory by directory, so that whole subtrees are completed one after another.
+     */
+    DIRECTORY;
+
+    public <T extends Impl.FileInfo> List<T> sort(List<T> files, List<Pattern> priorityPatterns) {
+        List<T> result = new ArrayList<>(files);
+        Comparator<T> comparator = Comparator.comparingInt(file -> priority(file.fileName(), priorityPatterns));
+        comparator = switch (this) {
+            case LISTING -> comparator;
+            case SIZE -> comparator.thenComparingLong(Impl.FileInfo::originalFileSizeInBytes);
+            case DIRECTORY -> comparator.thenComparing(file -> directory(file.fileName())).thenComparing(Impl.FileInfo::fileName);
+        };
+        // stable: files with the same priority keep the listing order
+        result.sort(comparator);
+        return result;
+    }
+
+    private static int priority(String fileName, List<Pattern> priorityPatterns) {
+        for (int i = 0; i < priorityPatterns.size(); i++) {
+            if (priorityPatterns.get(i).matcher(fileName).matches()) {
+                return i;
+            }
+        }
+        return priorityPatterns.size();
+    }
+
+    /**
+     * The parent directory with the separators replaced by the lowest character, so that subdirectories are sorted
+     * right after their parent, e.g. "a" < "a/b" < "a-c".
+     */
+    private static String directory(String fileName) {
+        int lastSeparator = fileName.lastIndexOf('/');
+        return lastSeparator < 0 ? "" : fileName.substring(0, lastSeparator).replace('/', '\0');
+    }
+}
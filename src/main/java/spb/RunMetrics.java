@@ -0,0 +1,348 @@
+package spb;
+
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Performance metrics of one run: timings per phase, counters, latency histograms per S3 operation and the
+ * utilization of the thread pools. Written as a JSON report at the end of the run.
+ * <p>
+ * Phases like hashing or uploading run concurrently: their busy time is the sum over all threads,
+ * their wall time is the time from the first start to the last end.
+ */
+public class RunMetrics {
+
+    private static final DateTimeFormatter REPORT_FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneId.systemDefault());
+
+    private final Instant start = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private volatile String command;
+    private final Map<String, PhaseStats> phases = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, OperationStats> s3Operations = new ConcurrentHashMap<>();
+    private final Map<String, InstrumentedThreadPool> threadPools = new ConcurrentHashMap<>();
+
+    /**
+     * The first command wins: verify restores all files, but the run is still a verify.
+     */
+    public void command(String command) {
+        if (this.command == null) {
+            this.command = command;
+        }
+    }
+
+    public PhaseTimer time(String phase) {
+        return new PhaseTimer(phases.computeIfAbsent(phase, name -> new PhaseStats()));
+    }
+
+    public void increment(String counter, long delta) {
+        counters.computeIfAbsent(counter, name -> new LongAdder()).add(delta);
+    }
+
+    public class PhaseTimer implements AutoCloseable {
+        private final PhaseStats stats;
+        private final long startNanos = System.nanoTime();
+        private long bytes;
+
+        private PhaseTimer(PhaseStats stats) {
+            this.stats = stats;
+            stats.firstStartNanos.accumulateAndGet(startNanos, Math::min);
+        }
+
+        public void bytes(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            long endNanos = System.nanoTime();
+            stats.count.increment();
+            stats.busyNanos.add(endNanos - startNanos);
+            stats.bytes.add(bytes);
+            stats.lastEndNanos.accumulateAndGet(endNanos, Math::max);
+        }
+    }
+
+    private static class PhaseStats {
+        final LongAdder count = new LongAdder();
+        final LongAdder busyNanos = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final AtomicLong firstStartNanos = new AtomicLong(Long.MAX_VALUE);
+        final AtomicLong lastEndNanos = new AtomicLong(Long.MIN_VALUE);
+    }
+
+    /**
+     * A fixed size thread pool which records how busy its threads are.
+     */
+    public ExecutorService newThreadPool(String name, int threads) {
+        InstrumentedThreadPool threadPool = new InstrumentedThreadPool(threads);
+        threadPools.put(name, threadPool);
+        return threadPool;
+    }
+
+    private static class InstrumentedThreadPool extends ThreadPoolExecutor {
+        private final long createdNanos = System.nanoTime();
+        private final ThreadLocal<Long> taskStartNanos = new ThreadLocal<>();
+        private final LongAdder busyNanos = new LongAdder();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger maxActive = new AtomicInteger();
+        private final AtomicInteger maxQueued = new AtomicInteger();
+
+        InstrumentedThreadPool(int threads) {
+            super(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            super.execute(command);
+            maxQueued.accumulateAndGet(getQueue().size(), Math::max);
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            taskStartNanos.set(System.nanoTime());
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            busyNanos.add(System.nanoTime() - taskStartNanos.get());
+            active.decrementAndGet();
+        }
+
+        Map<String, Object> toMap() {
+            long elapsedNanos = System.nanoTime() - createdNanos;
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("threads", getMaximumPoolSize());
+            result.put("completedTasks", getCompletedTaskCount());
+            result.put("busyMillis", busyNanos.sum() / 1_000_000);
+            result.put("utilization", elapsedNanos == 0 ? 0.0 : (double) busyNanos.sum() / ((double) elapsedNanos * getMaximumPoolSize()));
+            result.put("maxActive", maxActive.get());
+            result.put("maxQueued", maxQueued.get());
+            return result;
+        }
+    }
+
+    /**
+     * Receives the metrics of every S3 API call: latency, success and retries per operation.
+     */
+    public MetricPublisher s3MetricPublisher() {
+        return new MetricPublisher() {
+            @Override
+            public void publish(MetricCollection metricCollection) {
+                List<String> operationNames = metricCollection.metricValues(CoreMetric.OPERATION_NAME);
+                if (operationNames.isEmpty()) {
+                    return;
+                }
+                OperationStats stats = s3Operations.computeIfAbsent(operationNames.get(0), name -> new OperationStats());
+                stats.count.increment();
+                metricCollection.metricValues(CoreMetric.API_CALL_DURATION).forEach(stats.latency::record);
+                metricCollection.metricValues(CoreMetric.RETRY_COUNT).forEach(stats.retries::add);
+                if (metricCollection.metricValues(CoreMetric.API_CALL_SUCCESSFUL).contains(Boolean.FALSE)) {
+                    stats.failed.increment();
+                }
+            }
+
+            @Override
+            public void close() {
+
+            }
+        };
+    }
+
+    private static class OperationStats {
+        final LongAdder count = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder retries = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    /**
+     * Counts latencies in exponential buckets, which is precise enough for percentiles of network requests.
+     */
+    static class LatencyHistogram {
+        static final long[] BUCKET_UPPER_BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1_000, 2_000, 5_000, 10_000, 30_000, 60_000, Long.MAX_VALUE};
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_UPPER_BOUNDS_MILLIS.length);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalMillis = new LongAdder();
+        private final AtomicLong maxMillis = new AtomicLong();
+
+        void record(Duration latency) {
+            long millis = latency.toMillis();
+            int bucket = 0;
+            while (millis > BUCKET_UPPER_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            totalMillis.add(millis);
+            maxMillis.accumulateAndGet(millis, Math::max);
+        }
+
+        /**
+         * The upper bound of the bucket containing the percentile, but never more than the max latency.
+         */
+        long percentileMillis(double percentile) {
+            long threshold = (long) Math.ceil(count.sum() * percentile);
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                cumulative += buckets.get(i);
+                if (cumulative >= threshold && cumulative > 0) {
+                    return Math.min(BUCKET_UPPER_BOUNDS_MILLIS[i], maxMillis.get());
+                }
+            }
+            return 0;
+        }
+
+        Map<String, Object> toMap() {
+            long count = this.count.sum();
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("avg", count == 0 ? 0 : totalMillis.sum() / count);
+            result.put("p50", percentileMillis(0.5));
+            result.put("p95", percentileMillis(0.95));
+            result.put("p99", percentileMillis(0.99));
+            result.put("max", maxMillis.get());
+            Map<String, Object> bucketCounts = new LinkedHashMap<>();
+            for (int i = 0; i < buckets.length(); i++) {
+                if (buckets.get(i) > 0) {
+                    long upperBound = BUCKET_UPPER_BOUNDS_MILLIS[i];
+                    bucketCounts.put(upperBound == Long.MAX_VALUE ? "+Inf" : "le" + upperBound, buckets.get(i));
+                }
+            }
+            result.put("buckets", bucketCounts);
+            return result;
+        }
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("command", command);
+        result.put("start", start.toString());
+        result.put("durationMillis", (System.nanoTime() - startNanos) / 1_000_000);
+
+        Map<String, Object> phasesMap = new TreeMap<>();
+        phases.forEach((name, stats) -> {
+            Map<String, Object> phase = new LinkedHashMap<>();
+            phase.put("count", stats.count.sum());
+            phase.put("busyMillis", stats.busyNanos.sum() / 1_000_000);
+            phase.put("wallMillis", Math.max(0, stats.lastEndNanos.get() - stats.firstStartNanos.get()) / 1_000_000);
+            phase.put("bytes", stats.bytes.sum());
+            phasesMap.put(name, phase);
+        });
+        result.put("phases", phasesMap);
+
+        Map<String, Object> countersMap = new TreeMap<>();
+        counters.forEach((name, counter) -> countersMap.put(name, counter.sum()));
+        result.put("counters", countersMap);
+
+        Map<String, Object> operationsMap = new TreeMap<>();
+        s3Operations.forEach((name, stats) -> {
+            Map<String, Object> operation = new LinkedHashMap<>();
+            operation.put("count", stats.count.sum());
+            operation.put("failed", stats.failed.sum());
+            operation.put("retries", stats.retries.sum());
+            operation.put("latencyMillis", stats.latency.toMap());
+            operationsMap.put(name, operation);
+        });
+        result.put("s3Operations", operationsMap);
+
+        Map<String, Object> threadPoolsMap = new TreeMap<>();
+        threadPools.forEach((name, threadPool) -> threadPoolsMap.put(name, threadPool.toMap()));
+        result.put("threadPools", threadPoolsMap);
+        return result;
+    }
+
+    /**
+     * @param additionalSections added to the report as they are
+     * @return the written report file
+     */
+    public Path writeReport(Path folder, Map<String, Object> additionalSections) throws IOException {
+        Map<String, Object> report = toMap();
+        report.putAll(additionalSections);
+        Files.createDirectories(folder);
+        Path reportFile = folder.resolve((command == null ? "run" : command) + "-" + REPORT_FILE_TIMESTAMP.format(start) + ".json");
+        Files.writeString(reportFile, toJson(report) + "\n");
+        return reportFile;
+    }
+
+    static String toJson(Object value) {
+        StringBuilder result = new StringBuilder();
+        appendJson(result, value);
+        return result.toString();
+    }
+
+    private static void appendJson(StringBuilder result, Object value) {
+        if (value == null) {
+            result.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            result.append(value);
+        } else if (value instanceof Map<?, ?> map) {
+            result.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (!first) {
+                    result.append(',');
+                }
+                first = false;
+                appendJson(result, entry.getKey().toString());
+                result.append(':');
+                appendJson(result, entry.getValue());
+            }
+            result.append('}');
+        } else if (value instanceof Collection<?> collection) {
+            result.append('[');
+            boolean first = true;
+            for (Object element : collection) {
+                if (!first) {
+                    result.append(',');
+                }
+                first = false;
+                appendJson(result, element);
+            }
+            result.append(']');
+        } else {
+            result.append('"');
+            for (char c : value.toString().toCharArray()) {
+                switch (c) {
+                    case '"' -> result.append("\\\"");
+                    case '\\' -> result.append("\\\\");
+                    case '\n' -> result.append("\\n");
+                    case '\r' -> result.append("\\r");
+                    case '\t' -> result.append("\\t");
+                    default -> {
+                        if (c < 0x20) {
+                            result.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            result.append(c);
+                        }
+                    }
+                }
+            }
+            result.append('"');
+        }
+    }
+}
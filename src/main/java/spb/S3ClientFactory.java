@@ -0,0 +1,97 @@
+package spb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.metrics.MetricPublisher;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.S3CrtAsyncClientBuilder;
+
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Creates the S3 clients as configured by the {@link ConfigProvider}.
+ */
+public class S3ClientFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger("spb");
+
+    private S3ClientFactory() {
+    }
+
+    /**
+     * @param metricPublishers receive the metrics of every request, including the connection pool metrics
+     */
+    public static S3Client createS3Client(ConfigProvider configProvider, List<MetricPublisher> metricPublishers) {
+        HttpClientConfig httpClientConfig = configProvider.getHttpClientConfig();
+        logger.debug("using HTTP client config {}", httpClientConfig);
+        S3ClientBuilder builder = S3Client.builder()
+                .httpClientBuilder(createHttpClientBuilder(httpClientConfig));
+        ClientOverrideConfiguration.Builder overrideConfiguration = ClientOverrideConfiguration.builder();
+        if (httpClientConfig.retryMode() != null) {
+            overrideConfiguration.retryPolicy(RetryPolicy.forRetryMode(httpClientConfig.retryMode()));
+        }
+        metricPublishers.forEach(overrideConfiguration::addMetricPublisher);
+        BandwidthConfig bandwidthConfig = configProvider.getBandwidthConfig();
+        if (bandwidthConfig.isEnabled()) {
+            logger.info("limiting bandwidth: {}", bandwidthConfig);
+            overrideConfiguration.addExecutionInterceptor(new BandwidthThrottlingInterceptor(bandwidthConfig));
+        }
+        builder.overrideConfiguration(overrideConfiguration.build());
+        String region = configProvider.getS3Region();
+        if (region != null) {
+            builder.region(Region.of(region));
+        }
+        URI endpointOverride = configProvider.getS3EndpointOverride();
+        if (endpointOverride != null) {
+            logger.debug("using S3 endpoint {}", endpointOverride);
+            builder.endpointOverride(endpointOverride).forcePathStyle(true);
+        }
+        return builder.build();
+    }
+
+    private static ApacheHttpClient.Builder createHttpClientBuilder(HttpClientConfig httpClientConfig) {
+        ApacheHttpClient.Builder builder = ApacheHttpClient.builder()
+                .maxConnections(httpClientConfig.maxConnections())
+                .tcpKeepAlive(httpClientConfig.tcpKeepAlive());
+        if (httpClientConfig.connectionTimeToLive() != null) {
+            builder.connectionTimeToLive(httpClientConfig.connectionTimeToLive());
+        }
+        if (httpClientConfig.socketTimeout() != null) {
+            builder.socketTimeout(httpClientConfig.socketTimeout());
+        }
+        if (httpClientConfig.connectionAcquisitionTimeout() != null) {
+            builder.connectionAcquisitionTimeout(httpClientConfig.connectionAcquisitionTimeout());
+        }
+        return builder;
+    }
+
+    /**
+     * The CRT based client, used by the S3 Transfer Manager. It manages its own connection pool and splits
+     * transfers in parts of at least the multipart upload limit.
+     */
+    public static S3AsyncClient createCrtClient(ConfigProvider configProvider) {
+        if (configProvider.getBandwidthConfig().isEnabled()) {
+            logger.warn("bandwidth limits are not applied to uploads and downloads of the CRT transfer backend");
+        }
+        S3CrtAsyncClientBuilder builder = S3AsyncClient.crtBuilder()
+                .targetThroughputInGbps(configProvider.getS3TargetThroughputInGbps())
+                .minimumPartSizeInBytes((long) configProvider.getMultiPartUploadLimitInBytes())
+                .checksumValidationEnabled(true);
+        String region = configProvider.getS3Region();
+        if (region != null) {
+            builder.region(Region.of(region));
+        }
+        URI endpointOverride = configProvider.getS3EndpointOverride();
+        if (endpointOverride != null) {
+            builder.endpointOverride(endpointOverride);
+        }
+        return builder.build();
+    }
+}
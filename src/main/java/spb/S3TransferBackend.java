@@ -0,0 +1,16 @@
+package spb;
+
+/**
+ * How content objects are transferred.
+ */
+public enum S3TransferBackend {
+    /**
+     * The synchronous {@link software.amazon.awssdk.services.s3.S3Client} with our own multipart upload.
+     */
+    SYNC,
+    /**
+     * The S3 Transfer Manager on top of the CRT based {@link software.amazon.awssdk.services.s3.S3AsyncClient}
+     * which splits uploads and downloads into parts automatically and transfers them in parallel.
+     */
+    CRT
+}
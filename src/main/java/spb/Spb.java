@@ -6,7 +6,7 @@ import java.util.concurrent.Callable;
 
 @CommandLine.Command(name = "spb",
         mixinStandardHelpOptions = true,
-        subcommands = {Backup.class, Restore.class, ListFiles.class, Verify.class, GenerateKey.class},
+        subcommands = {Backup.class, Restore.class, ListFiles.class, Verify.class, GenerateKey.class, BenchmarkCrypto.class, Watch.class},
         versionProvider = SpbVersionProvider.class,
         description = "Simple and secure personal backup")
 public class Spb implements Callable<Integer> {
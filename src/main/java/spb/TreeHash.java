@@ -0,0 +1,132 @@
+package spb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.LongConsumer;
+
+/**
+ * A hash of a file which can be calculated with multiple threads: the file is split into segments of a fixed size,
+ * every segment is hashed with SHA256 in parallel and the root hash is the SHA256 of all segment hashes.
+ * <p>
+ * Tree hashes are stored in addition to the SHA256 of the file, with the segment size, e.g.
+ * {@code tree-sha256:67108864:<Base64 root hash>}. They never equal a SHA256 in Base64, which doesn't contain ':'.
+ */
+public final class TreeHash {
+
+    private static final String PREFIX = "tree-sha256:";
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private TreeHash() {
+    }
+
+    public static boolean isTreeHash(String hash) {
+        return hash.startsWith(PREFIX);
+    }
+
+    public static int segmentSize(String treeHash) {
+        return Integer.parseInt(treeHash.substring(PREFIX.length(), treeHash.indexOf(':', PREFIX.length())));
+    }
+
+    /**
+     * @param executor hashes the segments, must not be the executor calling this method
+     * @param progress is called with the bytes of every read
+     */
+    public static String treeHashForFile(Path path, int segmentSize, Executor executor, LongConsumer progress) throws
+            IOException, NoSuchAlgorithmException {
+        // fails early instead of in every segment
+        MessageDigest rootDigest = CryptoProviders.sha256();
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            List<CompletableFuture<byte[]>> segmentHashes = new ArrayList<>();
+            for (long position = 0; position < size || position == 0; position += segmentSize) {
+                long segmentStart = position;
+                long segmentEnd = Math.min(size, position + segmentSize);
+                segmentHashes.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return hashSegment(fileChannel, segmentStart, segmentEnd, progress);
+                    } catch (IOException | NoSuchAlgorithmException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor));
+            }
+            for (CompletableFuture<byte[]> segmentHash : segmentHashes) {
+                rootDigest.update(segmentHash.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw e;
+        }
+        return PREFIX + segmentSize + ":" + Base64.getEncoder().encodeToString(rootDigest.digest());
+    }
+
+    /**
+     * Calculates the tree hash of bytes in the order they are read, with a single thread.
+     */
+    public static ContentDigest digest(int segmentSize) throws NoSuchAlgorithmException {
+        MessageDigest rootDigest = CryptoProviders.sha256();
+        MessageDigest segmentDigest = CryptoProviders.sha256();
+        return new ContentDigest() {
+            private long bytesInSegment;
+            private int segments;
+
+            @Override
+            public void update(byte[] bytes, int offset, int length) {
+                while (length > 0) {
+                    int bytesToSegmentEnd = (int) Math.min(length, segmentSize - bytesInSegment);
+                    segmentDigest.update(bytes, offset, bytesToSegmentEnd);
+                    bytesInSegment += bytesToSegmentEnd;
+                    offset += bytesToSegmentEnd;
+                    length -= bytesToSegmentEnd;
+                    if (bytesInSegment == segmentSize) {
+                        rootDigest.update(segmentDigest.digest());
+                        bytesInSegment = 0;
+                        segments++;
+                    }
+                }
+            }
+
+            @Override
+            public String hash() {
+                // an empty file has one empty segment
+                if (bytesInSegment > 0 || segments == 0) {
+                    rootDigest.update(segmentDigest.digest());
+                }
+                return PREFIX + segmentSize + ":" + Base64.getEncoder().encodeToString(rootDigest.digest());
+            }
+        };
+    }
+
+    private static byte[] hashSegment(FileChannel fileChannel, long start, long end, LongConsumer progress) throws
+            IOException, NoSuchAlgorithmException {
+        MessageDigest messageDigest = CryptoProviders.sha256();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(1, end - start)));
+        long position = start;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            // positional reads are safe for concurrent use of the channel
+            int bytesRead = fileChannel.read(buffer, position);
+            if (bytesRead < 0) {
+                throw new IOException("file got shorter while hashing it");
+            }
+            buffer.flip();
+            messageDigest.update(buffer);
+            position += bytesRead;
+            progress.accept(bytesRead);
+        }
+        return messageDigest.digest();
+    }
+}
@@ -0,0 +1,9 @@
+package spb;
+
+/**
+ * Files of at least {@code minFileSizeInBytes} are hashed with a {@link TreeHash} of segments of
+ * {@code segmentSizeInBytes} instead of a SHA256.
+ */
+public record TreeHashConfig(long minFileSizeInBytes, int segmentSizeInBytes) {
+
+}
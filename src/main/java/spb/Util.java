@@ -3,14 +3,21 @@ package spb;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 import java.util.Comparator;
+import java.util.function.LongConsumer;
 
 public class Util {
 
@@ -18,24 +25,94 @@ public class Util {
     public static String DIVIDER = "***************";
 
     public static String sha256Base64ForFile(Path path) throws IOException, NoSuchAlgorithmException {
-        FileInputStream is = new FileInputStream(path.toFile());
+        return sha256Base64ForFile(path, TEN_MB);
+    }
+
+    public static String sha256Base64ForFile(Path path, LongConsumer progress) throws IOException, NoSuchAlgorithmException {
+        return sha256Base64ForFile(path, TEN_MB, progress);
+    }
+
+    public static String sha256Base64ForFile(Path path, int bufferSize) throws IOException, NoSuchAlgorithmException {
+        return sha256Base64ForFile(path, bufferSize, bytes -> {
+        });
+    }
 
-        BufferedInputStream bis = new BufferedInputStream(is);
-        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-        byte[] buffer = new byte[TEN_MB];
-        int bytesRead;
-        while ((bytesRead = bis.read(buffer, 0, buffer.length)) != -1) {
-            messageDigest.update(buffer, 0, bytesRead);
+    /**
+     * @param progress is called with the bytes of every read, e.g. to report the progress of larger files
+     */
+    public static String sha256Base64ForFile(Path path, int bufferSize, LongConsumer progress) throws IOException, NoSuchAlgorithmException {
+        MessageDigest messageDigest = CryptoProviders.sha256();
+        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(path.toFile()))) {
+            byte[] buffer = new byte[bufferSize];
+            int bytesRead;
+            while ((bytesRead = bis.read(buffer, 0, buffer.length)) != -1) {
+                messageDigest.update(buffer, 0, bytesRead);
+                progress.accept(bytesRead);
+            }
         }
         return Base64.getEncoder().encodeToString(messageDigest.digest());
     }
 
-    public static String sha256Base64(ByteBuffer input) throws NoSuchAlgorithmException {
-        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-        messageDigest.update(input);
-        input.rewind();
+    /**
+     * The SHA256 of a range of the file, read with a small buffer.
+     */
+    public static String sha256Base64(FileChannel fileChannel, long position, long size) throws IOException, NoSuchAlgorithmException {
+        MessageDigest messageDigest = CryptoProviders.sha256();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, 1024 * 1024));
+        long end = position + size;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int bytesRead = fileChannel.read(buffer, position);
+            if (bytesRead < 0) {
+                throw new IOException("file got shorter while hashing it");
+            }
+            buffer.flip();
+            messageDigest.update(buffer);
+            position += bytesRead;
+        }
         return Base64.getEncoder().encodeToString(messageDigest.digest());
+    }
+
+    /**
+     * A stream of a range of the file, e.g. a part of a multipart upload which is read again for every retry.
+     *
+     * @throws UncheckedIOException if the file can't be opened: the SDK's content providers can't throw IOException
+     */
+    public static InputStream rangeInputStream(Path file, long position, long size) {
+        FileChannel fileChannel;
+        try {
+            fileChannel = FileChannel.open(file, StandardOpenOption.READ).position(position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new FilterInputStream(Channels.newInputStream(fileChannel)) {
+            private long remaining = size;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int result = super.read();
+                if (result >= 0) {
+                    remaining--;
+                }
+                return result;
+            }
 
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int read = super.read(b, off, (int) Math.min(len, remaining));
+                if (read > 0) {
+                    remaining -= read;
+                }
+                return read;
+            }
+        };
     }
 
     public static void deleteFolderRecursively(Path path) throws IOException {
@@ -0,0 +1,38 @@
+package spb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+
+@Command(name = "watch", mixinStandardHelpOptions = true, description = "back up the folders continuously as files change")
+public class Watch implements Callable<Integer> {
+
+    private final Logger logger = LoggerFactory.getLogger("SPB");
+
+    @Option(names = {"--debounce-seconds"}, description = "How long the folders must be quiet before the changes " +
+            "are backed up. Default is 10", paramLabel = "seconds", required = false)
+    private int debounceSeconds = 10;
+
+    @Option(names = {"--rescan-minutes"}, description = "How often all folders are scanned completely, " +
+            "to back up changes without file system events. Default is 60", paramLabel = "minutes", required = false)
+    private int rescanMinutes = 60;
+
+    @Override
+    public Integer call() throws Exception {
+        if (debounceSeconds <= 0 || rescanMinutes <= 0) {
+            logger.error("--debounce-seconds and --rescan-minutes must be positive");
+            return 1;
+        }
+        Impl impl = new Impl();
+        try {
+            impl.watchFolders(Duration.ofSeconds(debounceSeconds), Duration.ofMinutes(rescanMinutes));
+        } finally {
+            impl.shutdown();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,72 @@
+package spb;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import spb.BackupCheckpoint.FileState;
+import spb.BackupCheckpoint.MultipartUploadState;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BackupCheckpointTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void stateSurvivesReopening() throws IOException {
+        Path folder = tempDir.resolve("checkpoint");
+        FileState completed = new FileState(100, 1000, "sha-1");
+        FileState uploading = new FileState(200, 2000, "sha-2");
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(folder)) {
+            checkpoint.fileCompleted("hash-1", completed);
+            checkpoint.multipartUploadStarted("hash-2", uploading, "upload-id");
+            checkpoint.partUploaded("hash-2", 1, "part-sha-1");
+            Files.writeString(checkpoint.stagingFile("hash-2"), "encrypted");
+        }
+
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(folder)) {
+            assertThat(checkpoint.unchangedFileState("hash-1", 100, 1000)).isEqualTo(completed);
+            assertThat(checkpoint.unchangedFileState("hash-1", 100, 1001)).isNull();
+            assertThat(checkpoint.unchangedFileState("hash-2", 200, 2000)).isEqualTo(uploading);
+            assertThat(checkpoint.multipartUploadIds()).containsExactly("upload-id");
+
+            MultipartUploadState upload = checkpoint.resumableMultipartUpload("hash-2", "sha-2");
+            assertThat(upload).isNotNull();
+            assertThat(upload.uploadId()).isEqualTo("upload-id");
+            assertThat(upload.partChecksums()).containsEntry(1, "part-sha-1");
+            assertThat(checkpoint.resumableMultipartUpload("hash-2", "changed-sha")).isNull();
+        }
+    }
+
+    @Test
+    void entriesWithoutSha256AreIgnored() throws IOException {
+        Path folder = tempDir.resolve("checkpoint");
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(folder)) {
+            checkpoint.fileCompleted("hash-1", new FileState(100, 1000, "sha-1"));
+        }
+        Files.writeString(folder.resolve("journal"), "completed,hash-2,10,0,\n", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(folder)) {
+            assertThat(checkpoint.unchangedFileState("hash-1", 100, 1000)).isNotNull();
+            assertThat(checkpoint.unchangedFileState("hash-2", 10, 0)).isNull();
+        }
+    }
+
+    @Test
+    void finishDeletesJournalAndStagedFiles() throws IOException {
+        Path folder = tempDir.resolve("checkpoint");
+        BackupCheckpoint checkpoint = BackupCheckpoint.open(folder);
+        checkpoint.multipartUploadStarted("hash-1", new FileState(100, 1000, "sha-1"), "upload-id");
+        Files.writeString(checkpoint.stagingFile("hash-1"), "encrypted");
+
+        checkpoint.finish();
+
+        assertThat(folder).doesNotExist();
+    }
+}
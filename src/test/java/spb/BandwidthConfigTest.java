@@ -0,0 +1,26 @@
+package spb;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalTime;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BandwidthConfigTest {
+
+    @Test
+    void firstMatchingScheduleOverridesTheDefaultLimits() {
+        BandwidthConfig bandwidthConfig = new BandwidthConfig(1000, 2000, List.of(
+                new BandwidthSchedule(LocalTime.of(8, 0), LocalTime.of(18, 0), 100L, null),
+                new BandwidthSchedule(LocalTime.of(22, 0), LocalTime.of(6, 0), 0L, 0L)
+        ), false);
+
+        assertThat(bandwidthConfig.uploadBytesPerSecondAt(LocalTime.of(12, 0))).isEqualTo(100);
+        assertThat(bandwidthConfig.downloadBytesPerSecondAt(LocalTime.of(12, 0))).isEqualTo(2000);
+        assertThat(bandwidthConfig.uploadBytesPerSecondAt(LocalTime.of(18, 0))).isEqualTo(1000);
+        assertThat(bandwidthConfig.uploadBytesPerSecondAt(LocalTime.of(23, 30))).isEqualTo(0);
+        assertThat(bandwidthConfig.downloadBytesPerSecondAt(LocalTime.of(5, 59))).isEqualTo(0);
+        assertThat(bandwidthConfig.downloadBytesPerSecondAt(LocalTime.of(6, 0))).isEqualTo(2000);
+    }
+}
@@ -0,0 +1,57 @@
+package spb;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import spb.ContentIndex.ContentObject;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ContentIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void laterEntriesReplaceEarlierOnes() throws IOException {
+        Path file = tempDir.resolve("bucket").resolve("content-index");
+        try (ContentIndex contentIndex = ContentIndex.open(file)) {
+            assertThat(contentIndex.isBuilt()).isFalse();
+            contentIndex.addContentObject("hash-1", new ContentObject("backup-1/name-1/content", "version-1"));
+            contentIndex.addContentObject("hash-1", new ContentObject("backup-2/name-2/content", "version-2"));
+            contentIndex.built();
+        }
+        // an entry without content object key
+        Files.writeString(file, "hash-2,version-3,\n", StandardOpenOption.APPEND);
+
+        try (ContentIndex contentIndex = ContentIndex.open(file)) {
+            assertThat(contentIndex.isBuilt()).isTrue();
+            assertThat(contentIndex.contentObject("hash-1")).isEqualTo(new ContentObject("backup-2/name-2/content", "version-2"));
+            assertThat(contentIndex.contentObject("hash-2")).isNull();
+        }
+    }
+
+    @Test
+    void contentObjectsAreReferencedUntilTheLastReferenceIsRemoved() throws IOException {
+        Path file = tempDir.resolve("bucket").resolve("content-index");
+        try (ContentIndex contentIndex = ContentIndex.open(file)) {
+            contentIndex.addReference("backup-1/name-1/content", "backup-1/name-1/");
+            contentIndex.addReference("backup-1/name-1/content", "backup-2/name-2/");
+            contentIndex.addReference("backup-1/name-3/content", "backup-1/name-3/");
+            contentIndex.removeReference("backup-1/name-1/content", "backup-1/name-1/");
+            contentIndex.removeReference("backup-1/name-3/content", "backup-1/name-3/");
+        }
+
+        try (ContentIndex contentIndex = ContentIndex.open(file)) {
+            assertThat(contentIndex.isReferenced("backup-1/name-1/content")).isTrue();
+            assertThat(contentIndex.isReferenced("backup-1/name-3/content")).isFalse();
+            contentIndex.removeReference("backup-1/name-1/content", "backup-2/name-2/");
+            assertThat(contentIndex.isReferenced("backup-1/name-1/content")).isFalse();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package spb;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.Security;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class CryptoProvidersTest {
+
+    @AfterEach
+    void resetProviders() {
+        CryptoProviders.configure(CryptoConfig.DEFAULT);
+    }
+
+    @Test
+    void autoUsesTheJdkProvidersWhenTheirIntrinsicsAreEnabled() {
+        // in a native image the intrinsics are unknown: it has to use the JDK providers like the JVM
+        assumeTrue(!CryptoProviders.intrinsics(CryptoProviders.SHA_256).containsValue(false));
+        assumeTrue(!CryptoProviders.intrinsics(CryptoProviders.AES_GCM).containsValue(false));
+
+        CryptoProviders.selectProviders(CryptoConfig.DEFAULT);
+
+        assertThat(CryptoProviders.sha256Provider().getName()).isEqualTo("SUN");
+        assertThat(CryptoProviders.aesGcmProvider().getName()).isEqualTo("SunJCE");
+        assertThat(Security.getProvider("BC")).isNull();
+    }
+
+    @Test
+    void providersCalculateTheSameResults() throws GeneralSecurityException {
+        Provider jdk = CryptoProviders.provider(CryptoProvider.JDK, CryptoProviders.SHA_256);
+        Provider bouncyCastle = CryptoProviders.provider(CryptoProvider.BOUNCYCASTLE, CryptoProviders.SHA_256);
+        byte[] input = "content".getBytes(StandardCharsets.UTF_8);
+        assertThat(MessageDigest.getInstance("SHA-256", bouncyCastle).digest(input))
+                .isEqualTo(MessageDigest.getInstance("SHA-256", jdk).digest(input));
+
+        SecretKeySpec key = new SecretKeySpec(new byte[32], "AES");
+        GCMParameterSpec parameters = new GCMParameterSpec(128, new byte[12]);
+        Cipher jdkCipher = Cipher.getInstance(CryptoProviders.AES_GCM, CryptoProviders.provider(CryptoProvider.JDK, CryptoProviders.AES_GCM));
+        jdkCipher.init(Cipher.ENCRYPT_MODE, key, parameters);
+        Cipher bouncyCastleCipher = Cipher.getInstance(CryptoProviders.AES_GCM, bouncyCastle);
+        bouncyCastleCipher.init(Cipher.ENCRYPT_MODE, key, parameters);
+        assertThat(bouncyCastleCipher.doFinal(input)).isEqualTo(jdkCipher.doFinal(input));
+    }
+
+    @Test
+    void encryptionWorksWithBouncyCastle() throws GeneralSecurityException {
+        CryptoProviders.configure(new CryptoConfig(CryptoProvider.BOUNCYCASTLE, CryptoProvider.BOUNCYCASTLE));
+
+        assertThat(Security.getProviders()[0].getName()).isEqualTo("BC");
+        assertThat(CryptoProviders.sha256().getProvider().getName()).isEqualTo("BC");
+        Encryption encryption = new Encryption(new byte[32], null);
+        byte[] plaintext = "1,ZmlsZS0xLnR4dA==,sha,100,version".getBytes(StandardCharsets.UTF_8);
+        assertThat(encryption.decrypt(encryption.encrypt(plaintext))).isEqualTo(plaintext);
+    }
+}
@@ -5,11 +5,15 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import spb.BackupFolderSummary.BackedUpFile;
 import spb.BackupFolderSummary.BackedUpFile.ChangedFile;
+import spb.BackupFolderSummary.BackedUpFile.DeduplicatedFile;
+import spb.BackupFolderSummary.BackedUpFile.MovedFile;
 import spb.BackupFolderSummary.BackedUpFile.UnchangedFile;
+import spb.BackupFolderSummary.DeletedFile;
 import spb.Impl.HistoricalFile;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -18,6 +22,7 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.LinkedHashMap;
@@ -25,6 +30,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
 
 import static java.nio.file.Files.createDirectory;
 import static java.nio.file.Files.createFile;
@@ -48,6 +54,9 @@ public class E2ETest {
     private static Map<String, String> fileToSha256Base64 = new LinkedHashMap<>();
 
     private static String bucketName;
+    private static Path localS3Storage;
+    private static LocalS3Server localS3Server;
+    private static URI s3EndpointOverride;
     private static String file6Key;
     private static String file1Key;
     private static String largeFileKey;
@@ -63,15 +72,24 @@ public class E2ETest {
 
     }
 
-    private static void readBucketName() {
+    private static void readBucketName() throws IOException {
         bucketName = System.getenv("BUCKET_NAME");
         if (bucketName == null || bucketName.length() == 0) {
-            System.err.println("tests requires a BUCKET_NAME env value");
-            throw new RuntimeException("tests requires a BUCKET_NAME env value");
+            startLocalS3Server();
+            return;
         }
         System.out.println("executing test again bucket: " + bucketName);
     }
 
+    private static void startLocalS3Server() throws IOException {
+        bucketName = "spb-e2e-local";
+        localS3Storage = Files.createTempDirectory("spb-e2e-s3");
+        localS3Server = new LocalS3Server(localS3Storage);
+        LocalS3Server.configureDummyAwsEnvironment();
+        s3EndpointOverride = localS3Server.endpoint();
+        System.out.println("no BUCKET_NAME env value: executing test against local S3 at " + s3EndpointOverride);
+    }
+
     private static void createSecretKey() {
         secretKey = new byte[32];
         new SecureRandom().nextBytes(secretKey);
@@ -162,6 +180,10 @@ public class E2ETest {
     @AfterAll
     static void deleteTestData() throws IOException {
         Util.deleteFolderRecursively(rootTestDataFolder);
+        if (localS3Server != null) {
+            localS3Server.close();
+            Util.deleteFolderRecursively(localS3Storage);
+        }
     }
 
 
@@ -175,7 +197,8 @@ public class E2ETest {
                 secretKey,
                 bucketName,
                 List.of(folderToBackupConfig),
-                TEN_MB);
+                TEN_MB,
+                s3EndpointOverride);
         Impl impl = new Impl(testConfigProvider);
         List<BackupFolderSummary> backupFolderSummaries = impl.backupFolders(false);
         assertThat(backupFolderSummaries).hasSize(1);
@@ -212,6 +235,7 @@ public class E2ETest {
                 .stream()
                 .filter(backedUpFile -> backedUpFile instanceof ChangedFile)).hasSize(1);
         assertThat(backupFolderSummary1.deletedFiles()).hasSize(2);
+        assertThat(backupFolderSummary1.failedDeletes()).isEmpty();
 
         impl.verifyAllBackup();
 
@@ -236,10 +260,46 @@ public class E2ETest {
         assertThat(history.get(file6Key).get(0)).isInstanceOf(HistoricalFile.HistoricalBackedUpFile.class);
         assertThat(history.get(file6Key).get(1)).isInstanceOf(HistoricalFile.HistoricalBackedUpFile.class);
 
+        Map<String, List<HistoricalFile>> filteredHistory = impl.allBackedUpFilesIncludingHistory(backupName, Pattern.compile(Pattern.quote(file2Key)))
+                .get(backupName);
+        assertThat(filteredHistory.keySet()).containsExactly(file2Key);
+
+        /**
+         * Look up single files and filtered listings
+         */
+        assertThat(impl.backedUpFile(backupName, file2Key).originalFileSha256Base64()).isEqualTo(fileToSha256Base64.get(file2Key));
+        assertThat(impl.backedUpFile(backupName, file1Key)).isNull();
+        List<Impl.FileMetadata> matchingFiles = impl.allBackedUpFiles(backupName, Pattern.compile(Pattern.quote(file2Key))).get(backupName);
+        assertThat(matchingFiles).extracting(Impl.FileMetadata::fileName).containsExactly(file2Key);
+
+        Path singleFileRestore = Files.createTempDirectory(rootTestDataFolder, "restored");
+        impl.restoreFile(singleFileRestore, backupName, file2Key);
+        assertThat(Util.sha256Base64ForFile(singleFileRestore.resolve(file2Key))).isEqualTo(fileToSha256Base64.get(file2Key));
+        Path patternRestore = Files.createTempDirectory(rootTestDataFolder, "restored");
+        impl.restoreMatchingFiles(backupName, Pattern.compile(Pattern.quote(file2Key)), patternRestore, RestoreOptions.defaults());
+        assertThat(Util.sha256Base64ForFile(patternRestore.resolve(file2Key))).isEqualTo(fileToSha256Base64.get(file2Key));
+
+        /**
+         * Restore the backup as of now: deleted files are not restored
+         */
+        Path asOfRestore = Files.createTempDirectory(rootTestDataFolder, "restored");
+        impl.restoreAsOf(backupName, Instant.now(), null, asOfRestore, RestoreOptions.defaults());
+        assertThat(Util.sha256Base64ForFile(asOfRestore.resolve(file2Key))).isEqualTo(fileToSha256Base64.get(file2Key));
+        assertThat(asOfRestore.resolve(file1Key)).doesNotExist();
+
+        /**
+         * Incremental restore only restores the changed file
+         */
+        Files.writeString(asOfRestore.resolve(file2Key), "corrupted");
+        Path manifest = asOfRestore.resolve("manifest");
+        impl.restoreFullBackup(backupName, asOfRestore, new RestoreOptions(true, RestoreOrder.SIZE, List.of(), manifest));
+        assertThat(Util.sha256Base64ForFile(asOfRestore.resolve(file2Key))).isEqualTo(fileToSha256Base64.get(file2Key));
+        assertThat(Files.readAllLines(manifest)).contains("file " + file2Key).last().isEqualTo("directory /");
+
         /**
          * Restore historic versions of file-large
          */
-        Path tempDirectory = Files.createTempDirectory("spb-e2e");
+        Path tempDirectory = Files.createTempDirectory(rootTestDataFolder, "restored");
         impl.restoreFile((HistoricalFile.HistoricalBackedUpFile) history.get("file-large.txt").get(0), tempDirectory);
 
         Path restoredFileLarge = tempDirectory.resolve("file-large.txt");
@@ -276,7 +336,8 @@ public class E2ETest {
                 secretKey,
                 bucketName,
                 List.of(folderToBackupConfig),
-                TEN_MB);
+                TEN_MB,
+                s3EndpointOverride);
         Impl impl = new Impl(testConfigProvider);
         List<BackupFolderSummary> backupFolderSummaries = impl.backupFolders(true);
         assertThat(backupFolderSummaries).hasSize(1);
@@ -295,4 +356,185 @@ public class E2ETest {
 
 
     }
+
+    @Test
+    void movedFilesAreNotUploadedAgain() throws IOException, ExecutionException, InterruptedException, NoSuchAlgorithmException {
+        String backupName = createRandomBackupName();
+        Path folder = rootTestDataFolder.resolve("backups-move");
+        Path photos = createDirectory(folder.resolve("photos"));
+        Path photo = createFile(photos.resolve("photo.jpg"));
+        writeFileMB(photo, 1);
+        String photoSha256Base64 = Util.sha256Base64ForFile(photo);
+
+        TestConfigProvider testConfigProvider = new TestConfigProvider(
+                secretKey,
+                bucketName,
+                List.of(new FolderToBackupConfig(folder.toString(), backupName)),
+                TEN_MB,
+                s3EndpointOverride);
+        Impl impl = new Impl(testConfigProvider);
+        impl.backupFolders(false);
+
+        Path archive = createDirectory(folder.resolve("archive"));
+        Files.move(photos, archive.resolve("photos"));
+        BackupFolderSummary backupFolderSummary = impl.backupFolders(false).get(0);
+        assertThat(backupFolderSummary.backedUpFiles()).containsExactly(
+                new MovedFile("archive/photos/photo.jpg", "photos/photo.jpg"));
+        assertThat(backupFolderSummary.deletedFiles()).containsExactly(new DeletedFile("photos/photo.jpg"));
+
+        Path restored = Files.createTempDirectory(rootTestDataFolder, "restored");
+        impl.restoreFullBackup(backupName, restored);
+        assertThat(Util.sha256Base64ForFile(restored.resolve("archive/photos/photo.jpg"))).isEqualTo(photoSha256Base64);
+        assertThat(restored.resolve("photos/photo.jpg")).doesNotExist();
+    }
+
+    @Test
+    void changingAMovedFileDeletesTheContentItWasMovedFrom() throws IOException, ExecutionException, InterruptedException, NoSuchAlgorithmException {
+        String backupName = createRandomBackupName();
+        Path folder = createDirectory(rootTestDataFolder.resolve("backups-move-change"));
+        writeFileMB(folder.resolve("photo.jpg"), 1);
+
+        TestConfigProvider testConfigProvider = new TestConfigProvider(
+                secretKey,
+                bucketName,
+                List.of(new FolderToBackupConfig(folder.toString(), backupName)),
+                TEN_MB,
+                s3EndpointOverride);
+        Impl impl = new Impl(testConfigProvider);
+        impl.backupFolders(false);
+        Files.move(folder.resolve("photo.jpg"), folder.resolve("renamed.jpg"));
+        assertThat(impl.backupFolders(false).get(0).backedUpFiles()).containsExactly(new MovedFile("renamed.jpg", "photo.jpg"));
+        if (localS3Server != null) {
+            // the content of photo.jpg is still referenced by renamed.jpg
+            assertThat(localS3Server.deletedKeys(bucketName, backupName + "/")).singleElement()
+                    .satisfies(key -> assertThat(key).endsWith("/metadata"));
+        }
+
+        writeFile100Bytes(folder.resolve("renamed.jpg"), 2);
+        String changedSha256Base64 = Util.sha256Base64ForFile(folder.resolve("renamed.jpg"));
+        assertThat(impl.backupFolders(false).get(0).backedUpFiles().get(0)).isInstanceOf(ChangedFile.class);
+        if (localS3Server != null) {
+            // nothing references the content of photo.jpg anymore
+            assertThat(localS3Server.deletedKeys(bucketName, backupName + "/")).hasSize(2)
+                    .anySatisfy(key -> assertThat(key).endsWith("/content"));
+        }
+
+        Path restored = Files.createTempDirectory(rootTestDataFolder, "restored");
+        impl.restoreFullBackup(backupName, restored);
+        assertThat(Util.sha256Base64ForFile(restored.resolve("renamed.jpg"))).isEqualTo(changedSha256Base64);
+    }
+
+    @Test
+    void treeHashedFilesGetTheirSha256WhileEncrypted() throws IOException, ExecutionException, InterruptedException, NoSuchAlgorithmException {
+        String backupName = createRandomBackupName();
+        Path folder = createDirectory(rootTestDataFolder.resolve("backups-tree-hash"));
+        Path file = folder.resolve("disk.img");
+        writeFileMB(file, 3);
+
+        TestConfigProvider testConfigProvider = new TestConfigProvider(
+                secretKey,
+                bucketName,
+                List.of(new FolderToBackupConfig(folder.toString(), backupName)),
+                TEN_MB,
+                s3EndpointOverride) {
+            @Override
+            public TreeHashConfig getTreeHashConfig() {
+                return new TreeHashConfig(ONE_MB, ONE_MB);
+            }
+        };
+        Impl impl = new Impl(testConfigProvider);
+        assertThat(impl.backupFolders(false).get(0).backedUpFiles()).containsExactly(
+                new ChangedFile("disk.img", Util.sha256Base64ForFile(file), 3 * ONE_MB));
+        Impl.FileMetadata backedUpFile = impl.backedUpFile(backupName, "disk.img");
+        assertThat(backedUpFile.originalFileSha256Base64()).isEqualTo(Util.sha256Base64ForFile(file));
+        assertThat(backedUpFile.treeHash()).isNotNull();
+
+        // the changed tree hash shows the change: the SHA256 is again taken from the encrypted bytes
+        writeFileMB(file, 4);
+        assertThat(impl.backupFolders(false).get(0).backedUpFiles()).containsExactly(
+                new ChangedFile("disk.img", Util.sha256Base64ForFile(file), 4 * ONE_MB));
+        Impl.FileMetadata changedFile = impl.backedUpFile(backupName, "disk.img");
+        assertThat(changedFile.originalFileSha256Base64()).isEqualTo(Util.sha256Base64ForFile(file));
+        assertThat(changedFile.treeHash()).isNotEqualTo(backedUpFile.treeHash());
+
+        impl.verifyBackup(backupName);
+    }
+
+    @Test
+    void identicalContentIsUploadedOnceAcrossBackups() throws IOException, ExecutionException, InterruptedException, NoSuchAlgorithmException {
+        String backupName1 = createRandomBackupName();
+        String backupName2 = createRandomBackupName();
+        Path folder1 = createDirectory(rootTestDataFolder.resolve("backups-dedup-1"));
+        Path folder2 = createDirectory(rootTestDataFolder.resolve("backups-dedup-2"));
+        writeFileMB(folder1.resolve("library.jar"), 1);
+        Files.copy(folder1.resolve("library.jar"), folder2.resolve("library-copy.jar"));
+        String sha256Base64 = Util.sha256Base64ForFile(folder1.resolve("library.jar"));
+
+        TestConfigProvider testConfigProvider = new TestConfigProvider(
+                secretKey,
+                bucketName,
+                List.of(new FolderToBackupConfig(folder1.toString(), backupName1), new FolderToBackupConfig(folder2.toString(), backupName2)),
+                TEN_MB,
+                s3EndpointOverride) {
+            @Override
+            public boolean isDedupEnabled() {
+                return true;
+            }
+        };
+        Impl impl = new Impl(testConfigProvider);
+        List<BackupFolderSummary> backupFolderSummaries = impl.backupFolders(false);
+        assertThat(backupFolderSummaries.get(0).backedUpFiles().get(0)).isInstanceOf(ChangedFile.class);
+        assertThat(backupFolderSummaries.get(1).backedUpFiles()).containsExactly(
+                new DeduplicatedFile("library-copy.jar", sha256Base64, ONE_MB));
+
+        Path restored = Files.createTempDirectory(rootTestDataFolder, "restored");
+        impl.restoreFullBackup(backupName2, restored);
+        assertThat(Util.sha256Base64ForFile(restored.resolve("library-copy.jar"))).isEqualTo(sha256Base64);
+    }
+
+    @Test
+    void deletingTheOriginalKeepsTheContentOfADeduplicatedCopy() throws IOException, ExecutionException, InterruptedException, NoSuchAlgorithmException {
+        String backupName1 = createRandomBackupName();
+        String backupName2 = createRandomBackupName();
+        Path folder1 = createDirectory(rootTestDataFolder.resolve("backups-dedup-delete-1"));
+        Path folder2 = createDirectory(rootTestDataFolder.resolve("backups-dedup-delete-2"));
+        writeFileMB(folder1.resolve("library.jar"), 1);
+        Files.copy(folder1.resolve("library.jar"), folder2.resolve("library-copy.jar"));
+        String sha256Base64 = Util.sha256Base64ForFile(folder1.resolve("library.jar"));
+
+        TestConfigProvider testConfigProvider = new TestConfigProvider(
+                secretKey,
+                bucketName,
+                List.of(new FolderToBackupConfig(folder1.toString(), backupName1), new FolderToBackupConfig(folder2.toString(), backupName2)),
+                TEN_MB,
+                s3EndpointOverride) {
+            @Override
+            public boolean isDedupEnabled() {
+                return true;
+            }
+        };
+        Impl impl = new Impl(testConfigProvider);
+        assertThat(impl.backupFolders(false).get(1).backedUpFiles()).containsExactly(
+                new DeduplicatedFile("library-copy.jar", sha256Base64, ONE_MB));
+
+        Files.delete(folder1.resolve("library.jar"));
+        assertThat(impl.backupFolders(false).get(0).deletedFiles()).containsExactly(new DeletedFile("library.jar"));
+        if (localS3Server != null) {
+            // only the metadata of the original is deleted: the copy still references its content object
+            assertThat(localS3Server.deletedKeys(bucketName, backupName1 + "/")).singleElement()
+                    .satisfies(key -> assertThat(key).endsWith("/metadata"));
+        }
+
+        Path restored = Files.createTempDirectory(rootTestDataFolder, "restored");
+        impl.restoreFullBackup(backupName2, restored);
+        assertThat(Util.sha256Base64ForFile(restored.resolve("library-copy.jar"))).isEqualTo(sha256Base64);
+
+        // the last reference is deleted: now the content object is deleted as well
+        Files.delete(folder2.resolve("library-copy.jar"));
+        assertThat(impl.backupFolders(false).get(1).deletedFiles()).containsExactly(new DeletedFile("library-copy.jar"));
+        if (localS3Server != null) {
+            assertThat(localS3Server.deletedKeys(bucketName, backupName1 + "/")).hasSize(2)
+                    .anySatisfy(key -> assertThat(key).endsWith("/content"));
+        }
+    }
 }
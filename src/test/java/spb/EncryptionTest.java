@@ -0,0 +1,116 @@
+package spb;
+
+import com.amazonaws.encryptionsdk.ParsedCiphertext;
+import com.amazonaws.encryptionsdk.model.KeyBlob;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EncryptionTest {
+
+    static final DataKeyCacheConfig CACHE_CONFIG = new DataKeyCacheConfig(60, 100, 1024 * 1024);
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void cachedAndUncachedEncryptionAreCompatible() {
+        byte[] secretKey = createSecretKey();
+        Encryption uncached = new Encryption(secretKey, null);
+        Encryption cached = new Encryption(secretKey, CACHE_CONFIG);
+        byte[] plaintext = "1,ZmlsZS0xLnR4dA==,sha,100,version".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(uncached.decrypt(cached.encrypt(plaintext))).isEqualTo(plaintext);
+        assertThat(cached.decrypt(uncached.encrypt(plaintext))).isEqualTo(plaintext);
+        assertThat(cached.decrypt(cached.encrypt(plaintext))).isEqualTo(plaintext);
+    }
+
+    @Test
+    void encryptAndDecryptFileWithCachedDataKey() throws IOException {
+        byte[] secretKey = createSecretKey();
+        Encryption cached = new Encryption(secretKey, CACHE_CONFIG);
+        byte[] content = new byte[100_000];
+        new SecureRandom().nextBytes(content);
+        Path original = Files.write(tempDir.resolve("original"), content);
+        Path encrypted = tempDir.resolve("encrypted");
+        Path decrypted = tempDir.resolve("decrypted");
+
+        for (int i = 0; i < 3; i++) {
+            cached.encryptFile(original, encrypted, "nameHash");
+            new Encryption(secretKey, null).decryptFile(encrypted, decrypted);
+            assertThat(Files.readAllBytes(decrypted)).isEqualTo(content);
+        }
+    }
+
+    @Test
+    void fileGrowingWhileEncryptedWithCachedDataKeyIsModified() throws IOException {
+        Encryption cached = new Encryption(createSecretKey(), CACHE_CONFIG);
+        Path original = Files.write(tempDir.resolve("original"), new byte[100_000]);
+        Path encrypted = tempDir.resolve("encrypted");
+        boolean[] appended = new boolean[1];
+
+        Impl.FileModifiedException exception = null;
+        try {
+            cached.encryptFile(original, encrypted, "nameHash", read -> {
+                if (!appended[0]) {
+                    appended[0] = true;
+                    try {
+                        Files.write(original, new byte[10], StandardOpenOption.APPEND);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        } catch (Impl.FileModifiedException e) {
+            exception = e;
+        }
+        assertThat(exception).isNotNull();
+    }
+
+    @Test
+    void contentObjectsOfDifferentFilesReuseTheCachedDataKey() throws IOException {
+        byte[] secretKey = createSecretKey();
+        Path original = Files.writeString(tempDir.resolve("original"), "content");
+
+        // every call of the master key wraps a new data key: the number of distinct wrapped data keys is the number of calls
+        assertThat(wrappedDataKeys(new Encryption(secretKey, CACHE_CONFIG), original, 5)).hasSize(1);
+        assertThat(wrappedDataKeys(new Encryption(secretKey, null), original, 5)).hasSize(5);
+    }
+
+    private Set<String> wrappedDataKeys(Encryption encryption, Path original, int files) throws IOException {
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i < files; i++) {
+            Path encrypted = tempDir.resolve("encrypted-" + i);
+            encryption.encryptFile(original, encrypted, encryption.createFileNameHash(Path.of("file-" + i)));
+            for (KeyBlob keyBlob : new ParsedCiphertext(Files.readAllBytes(encrypted)).getEncryptedKeyBlobs()) {
+                result.add(Base64.getEncoder().encodeToString(keyBlob.getEncryptedDataKey()));
+            }
+        }
+        return result;
+    }
+
+    @Test
+    void fileNameHashIsStable() {
+        byte[] secretKey = createSecretKey();
+        assertThat(new Encryption(secretKey, null).createFileNameHash(Path.of("folder/file.txt")))
+                .isEqualTo(new Encryption(secretKey, CACHE_CONFIG).createFileNameHash(Path.of("folder/file.txt")));
+    }
+
+    private static byte[] createSecretKey() {
+        byte[] secretKey = new byte[32];
+        new SecureRandom().nextBytes(secretKey);
+        return secretKey;
+    }
+}
@@ -0,0 +1,42 @@
+package spb;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FolderWatcherTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void reportsChangesInNewSubFolders() throws Exception {
+        Path folder = Files.createDirectories(tempDir.resolve("folder"));
+        Files.writeString(folder.resolve("existing.txt"), "1");
+        try (FolderWatcher folderWatcher = new FolderWatcher(List.of(folder))) {
+            assertThat(folderWatcher.awaitChanges(Duration.ofMillis(100), Instant.now().plusMillis(200)).isEmpty()).isTrue();
+
+            Files.writeString(folder.resolve("existing.txt"), "2");
+            Path subFolder = Files.createDirectories(folder.resolve("sub"));
+            FolderWatcher.Changes changes = awaitChanges(folderWatcher);
+            assertThat(changes.dirtyPaths().get(folder)).contains(folder.resolve("existing.txt"), subFolder);
+
+            // the new sub folder is watched as well
+            Files.writeString(subFolder.resolve("new.txt"), "3");
+            changes = awaitChanges(folderWatcher);
+            assertThat(changes.dirtyPaths().get(folder)).contains(subFolder.resolve("new.txt"));
+        }
+    }
+
+    private static FolderWatcher.Changes awaitChanges(FolderWatcher folderWatcher) throws InterruptedException {
+        // polling watch services, e.g. on macOS, only notice changes after several seconds
+        return folderWatcher.awaitChanges(Duration.ofMillis(500), Instant.now().plusSeconds(30));
+    }
+}
@@ -1,8 +1,20 @@
 package spb;
 
 import org.junit.jupiter.api.Test;
+import spb.Impl.FileMetadata;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.TreeSet;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static spb.Impl.decodeMetadata;
+import static spb.Impl.encodeMetadata;
+import static spb.Impl.manifestFilesAtOrBelow;
+import static spb.Impl.modifiedFileRetryDelay;
 import static spb.Impl.shouldIgnoreFile;
 
 public class ImplTest {
@@ -18,4 +30,60 @@ public class ImplTest {
         assertThat(shouldIgnoreFile("SomethingElse.DS_Store")).isFalse();
     }
 
+    @Test
+    void treeHashIsStoredNextToTheSha256() {
+        String metadata = encodeMetadata(Path.of("folder/file"), "sha", 5, "version", "tree-sha256:64:root");
+        // older versions read the first five entries only
+        assertThat(metadata.split(",")).startsWith("1", "Zm9sZGVyL2ZpbGU=", "sha", "5", "version");
+
+        FileMetadata fileMetadata = decodeMetadata(metadata, "backup/nameHash/", Instant.EPOCH);
+        assertThat(fileMetadata.originalFileSha256Base64()).isEqualTo("sha");
+        assertThat(fileMetadata.treeHash()).isEqualTo("tree-sha256:64:root");
+        assertThat(fileMetadata.contentObjectKey()).isEqualTo("backup/nameHash/content");
+    }
+
+    @Test
+    void treeHashOfAFileReferencingOtherContentFollowsTheBackupName() {
+        String metadata = encodeMetadata(Path.of("moved"), "sha", 5, "version", "otherHash", "backup", "tree-sha256:64:root");
+        // older versions read the backup name of the content from the 7th entry
+        assertThat(metadata.split(",")[6]).isEqualTo("YmFja3Vw");
+
+        FileMetadata fileMetadata = decodeMetadata(metadata, "backup/nameHash/", Instant.EPOCH);
+        assertThat(fileMetadata.originalFileSha256Base64()).isEqualTo("sha");
+        assertThat(fileMetadata.treeHash()).isEqualTo("tree-sha256:64:root");
+        assertThat(fileMetadata.contentObjectKey()).isEqualTo("backup/otherHash/content");
+
+        FileMetadata withoutTreeHash = decodeMetadata(encodeMetadata(Path.of("moved"), "sha", 5, "version", "otherHash", null, null),
+                "backup/nameHash/", Instant.EPOCH);
+        assertThat(withoutTreeHash.treeHash()).isNull();
+        assertThat(withoutTreeHash.contentObjectKey()).isEqualTo("backup/otherHash/content");
+    }
+
+    @Test
+    void treeHashStoredInsteadOfTheSha256IsStillRecognized() {
+        FileMetadata fileMetadata = decodeMetadata(encodeMetadata(Path.of("file"), "tree-sha256:64:root", 5, "version", null),
+                "backup/nameHash/", Instant.EPOCH);
+        assertThat(fileMetadata.treeHash()).isEqualTo("tree-sha256:64:root");
+    }
+
+    @Test
+    void manifestFilesAtOrBelowAPathAreFoundByPrefix() {
+        String separator = File.separator;
+        TreeSet<String> manifestFiles = new TreeSet<>(List.of("a", "a-b", "a" + separator + "b", "a" + separator + "c" + separator + "d", "ab", "b"));
+
+        assertThat(manifestFilesAtOrBelow(manifestFiles, "a"))
+                .containsExactly("a", "a" + separator + "b", "a" + separator + "c" + separator + "d");
+        assertThat(manifestFilesAtOrBelow(manifestFiles, "a" + separator + "c")).containsExactly("a" + separator + "c" + separator + "d");
+        assertThat(manifestFilesAtOrBelow(manifestFiles, "c")).isEmpty();
+        assertThat(manifestFilesAtOrBelow(manifestFiles, "")).hasSize(6);
+    }
+
+    @Test
+    void modifiedFileRetryDelayIsCapped() {
+        assertThat(modifiedFileRetryDelay(0)).isEqualTo(Duration.ofSeconds(1));
+        assertThat(modifiedFileRetryDelay(3)).isEqualTo(Duration.ofSeconds(8));
+        assertThat(modifiedFileRetryDelay(5)).isEqualTo(Duration.ofSeconds(30));
+        assertThat(modifiedFileRetryDelay(100)).isEqualTo(Duration.ofSeconds(30));
+    }
+
 }
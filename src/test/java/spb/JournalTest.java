@@ -0,0 +1,174 @@
+package spb;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import spb.BackupCheckpoint.FileState;
+import spb.BackupCheckpoint.MultipartUploadState;
+import spb.ContentIndex.ContentObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void entriesSurviveReopening() throws IOException {
+        Path file = tempDir.resolve("folder").resolve("journal");
+        try (Journal journal = Journal.open(file, "test", entry -> {
+        })) {
+            assertThat(journal.isCreated()).isTrue();
+            journal.append("entry-1");
+            journal.append("entry-2");
+        }
+
+        List<String> entries = new ArrayList<>();
+        try (Journal journal = Journal.open(file, "test", entries::add)) {
+            assertThat(journal.isCreated()).isFalse();
+        }
+        assertThat(entries).containsExactly("entry-1", "entry-2");
+    }
+
+    @Test
+    void incompleteLastEntryIsRemoved() throws IOException {
+        Path file = tempDir.resolve("journal");
+        try (Journal journal = Journal.open(file, "test", entry -> {
+        })) {
+            journal.append("complete,entry");
+        }
+        // an entry interrupted while writing
+        Files.writeString(file, "incomplete", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        List<String> entries = new ArrayList<>();
+        try (Journal journal = Journal.open(file, "test", entries::add)) {
+            journal.append("next,entry");
+        }
+        assertThat(entries).containsExactly("complete,entry");
+        assertThat(Files.readAllLines(file)).containsExactly("complete,entry", "next,entry");
+    }
+
+    @Test
+    void rejectedEntriesAreIgnored() throws IOException {
+        Path file = tempDir.resolve("journal");
+        Files.writeString(file, "valid,entry\ninvalid\nother,entry\n", StandardCharsets.UTF_8);
+
+        List<String> entries = new ArrayList<>();
+        Journal.open(file, "test", entry -> {
+            if (!entry.contains(",")) {
+                throw new IllegalArgumentException("invalid");
+            }
+            entries.add(entry);
+        }).close();
+        assertThat(entries).containsExactly("valid,entry", "other,entry");
+    }
+
+    @Test
+    void truncatedLastMetadataCacheEntriesAreIgnored() throws IOException {
+        Path file = tempDir.resolve("metadata");
+        try (MetadataCache metadataCache = MetadataCache.open(file)) {
+            metadataCache.addFileName("hash-1", "folder/file.txt");
+        }
+        // the prefix of the Base64 encoded name is a valid shorter name
+        truncateLastEntry(file, 4);
+        try (MetadataCache metadataCache = MetadataCache.open(file)) {
+            assertThat(metadataCache.fileName("hash-1")).isNull();
+            metadataCache.addMetadata("hash-1", "version-1", "1,Zm9sZGVy,sha,5,content-version");
+        }
+        truncateLastEntry(file, 10);
+        try (MetadataCache metadataCache = MetadataCache.open(file)) {
+            assertThat(metadataCache.metadata("hash-1", "version-1")).isNull();
+        }
+    }
+
+    @Test
+    void truncatedLastCheckpointEntriesAreIgnored() throws IOException {
+        Path folder = tempDir.resolve("checkpoint");
+        Path file = folder.resolve("journal");
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(folder)) {
+            checkpoint.fileCompleted("hash-1", new FileState(100, 1000, "sha-1"));
+        }
+        truncateLastEntry(file, 2);
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(folder)) {
+            assertThat(checkpoint.unchangedFileState("hash-1", 100, 1000)).isNull();
+            checkpoint.multipartUploadStarted("hash-2", new FileState(200, 2000, "sha-2"), "upload-id");
+        }
+        truncateLastEntry(file, 3);
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(folder)) {
+            assertThat(checkpoint.multipartUploadIds()).isEmpty();
+            checkpoint.multipartUploadStarted("hash-2", new FileState(200, 2000, "sha-2"), "upload-id");
+            Files.writeString(checkpoint.stagingFile("hash-2"), "encrypted");
+            checkpoint.partUploaded("hash-2", 1, "part-sha-1");
+        }
+        truncateLastEntry(file, 2);
+        try (BackupCheckpoint checkpoint = BackupCheckpoint.open(folder)) {
+            MultipartUploadState upload = checkpoint.resumableMultipartUpload("hash-2", "sha-2");
+            assertThat(upload).isNotNull();
+            assertThat(upload.partChecksums()).isEmpty();
+        }
+    }
+
+    @Test
+    void truncatedLastContentIndexEntriesAreIgnored() throws IOException {
+        Path file = tempDir.resolve("content-index");
+        try (ContentIndex contentIndex = ContentIndex.open(file)) {
+            contentIndex.addContentObject("hash-1", new ContentObject("backup/name-1/content", "version-1"));
+        }
+        truncateLastEntry(file, 2);
+        try (ContentIndex contentIndex = ContentIndex.open(file)) {
+            assertThat(contentIndex.contentObject("hash-1")).isNull();
+            contentIndex.addReference("backup/name-1/content", "backup/name-1/");
+        }
+        truncateLastEntry(file, 1);
+        try (ContentIndex contentIndex = ContentIndex.open(file)) {
+            assertThat(contentIndex.isReferenced("backup/name-1/content")).isFalse();
+            contentIndex.addReference("backup/name-1/content", "backup/name-1/");
+            contentIndex.addReference("backup/name-1/content", "backup/name-2/");
+            contentIndex.removeReference("backup/name-1/content", "backup/name-2/");
+        }
+        truncateLastEntry(file, 1);
+        try (ContentIndex contentIndex = ContentIndex.open(file)) {
+            assertThat(contentIndex.isReferenced("backup/name-1/content")).isTrue();
+            contentIndex.removeReference("backup/name-1/content", "backup/name-1/");
+            contentIndex.removeReference("backup/name-1/content", "backup/name-2/");
+            assertThat(contentIndex.isReferenced("backup/name-1/content")).isFalse();
+            contentIndex.built();
+        }
+        // even the complete entry can't be told apart from a truncated one without line break
+        truncateLastEntry(file, 0);
+        try (ContentIndex contentIndex = ContentIndex.open(file)) {
+            assertThat(contentIndex.isBuilt()).isFalse();
+        }
+    }
+
+    /**
+     * Removes the line break and the given number of characters of the last entry, like an interrupted write.
+     */
+    private static void truncateLastEntry(Path file, int removedChars) throws IOException {
+        String entries = Files.readString(file, StandardCharsets.UTF_8);
+        String withoutLineBreak = entries.substring(0, entries.length() - System.lineSeparator().length());
+        Files.writeString(file, withoutLineBreak.substring(0, withoutLineBreak.length() - removedChars), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void onlyTheOwnerCanReadTheJournal() throws IOException {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return;
+        }
+        Path file = tempDir.resolve("journal");
+        Journal.open(file, "test", entry -> {
+        }).close();
+
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file))).isEqualTo("rw-------");
+    }
+}
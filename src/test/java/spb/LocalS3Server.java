@@ -0,0 +1,1122 @@
+package spb;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A minimal in-process, filesystem backed S3 stand-in for running spb offline.
+ * <p>
+ * It supports exactly what spb uses: versioned put/get/head/copy/delete of objects, delete markers,
+ * listing objects and object versions with prefix, delimiter and pagination, multipart uploads and
+ * SHA256 checksums. Every bucket is versioned and created on first use.
+ * Requests have to use path style addressing.
+ * <p>
+ * For benchmarks a fixed latency per request and a bandwidth limit shared by all request and response bodies
+ * can be injected.
+ */
+public class LocalS3Server implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger("spb");
+
+    private static final String XML_NAMESPACE = "http://s3.amazonaws.com/doc/2006-03-01/";
+    private static final int DEFAULT_MAX_KEYS = 1000;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private record ObjectVersion(String versionId,
+                                 boolean deleteMarker,
+                                 Path data,
+                                 long size,
+                                 String eTag,
+                                 String sha256Base64,
+                                 Instant lastModified) {
+    }
+
+    private record Part(int partNumber, Path data, long size, String eTag, String sha256Base64, Instant lastModified) {
+    }
+
+    private record MultipartUpload(String bucket, String key, String uploadId, Instant initiated,
+                                   NavigableMap<Integer, Part> parts) {
+    }
+
+    private record StoredData(Path data, long size, String eTag, String sha256Base64) {
+    }
+
+    private static class S3Exception extends RuntimeException {
+        final int status;
+        final String code;
+
+        S3Exception(int status, String code, String message) {
+            super(message);
+            this.status = status;
+            this.code = code;
+        }
+    }
+
+    private final Path storageFolder;
+    private final HttpServer httpServer;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    // bucket -> key -> versions, newest first
+    private final Map<String, NavigableMap<String, List<ObjectVersion>>> buckets = new LinkedHashMap<>();
+    private final Map<String, MultipartUpload> multipartUploads = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+
+    private volatile long latencyMillis;
+    private final AtomicLong firstRequestNanos = new AtomicLong();
+    private final Throttle throttle = new Throttle();
+
+    public LocalS3Server(Path storageFolder) throws IOException {
+        this.storageFolder = storageFolder;
+        Files.createDirectories(storageFolder);
+        httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        httpServer.createContext("/", this::handle);
+        httpServer.setExecutor(executor);
+        httpServer.start();
+    }
+
+    public URI endpoint() {
+        return URI.create("http://localhost:" + httpServer.getAddress().getPort());
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * 0 means unlimited
+     */
+    public void setBandwidthBytesPerSecond(long bandwidthBytesPerSecond) {
+        throttle.setBytesPerSecond(bandwidthBytesPerSecond);
+    }
+
+    /**
+     * Number of handled requests per operation, like "PutObject" or "ListObjectVersions".
+     */
+    public Map<String, Long> requestCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        requestCounts.forEach((operation, count) -> result.put(operation, count.sum()));
+        return result;
+    }
+
+    /**
+     * The keys starting with the prefix whose current version is a delete marker.
+     */
+    public synchronized List<String> deletedKeys(String bucket, String prefix) {
+        List<String> result = new ArrayList<>();
+        bucketIndex(bucket).tailMap(prefix).forEach((key, versions) -> {
+            if (key.startsWith(prefix) && !versions.isEmpty() && versions.get(0).deleteMarker()) {
+                result.add(key);
+            }
+        });
+        return result;
+    }
+
+    public void resetRequestCounts() {
+        requestCounts.clear();
+        firstRequestNanos.set(0);
+    }
+
+    /**
+     * The {@link System#nanoTime()} the first request since the last reset was received, 0 if none.
+     */
+    public long firstRequestNanos() {
+        return firstRequestNanos.get();
+    }
+
+    /**
+     * The SDK requires a region and credentials even if the local server ignores them.
+     * Values which are already configured are kept.
+     */
+    public static void configureDummyAwsEnvironment() {
+        if (System.getProperty("aws.region") == null && System.getenv("AWS_REGION") == null) {
+            System.setProperty("aws.region", "us-east-1");
+        }
+        if (System.getProperty("aws.accessKeyId") == null && System.getenv("AWS_ACCESS_KEY_ID") == null) {
+            System.setProperty("aws.accessKeyId", "spb-local");
+            System.setProperty("aws.secretAccessKey", "spb-local");
+        }
+    }
+
+    @Override
+    public void close() {
+        httpServer.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        firstRequestNanos.compareAndSet(0, System.nanoTime());
+        try (exchange) {
+            try {
+                if (latencyMillis > 0) {
+                    Thread.sleep(latencyMillis);
+                }
+                route(exchange);
+            } catch (S3Exception e) {
+                sendError(exchange, e.status, e.code, e.getMessage());
+            } catch (Exception e) {
+                logger.error("{} {} failed", exchange.getRequestMethod(), exchange.getRequestURI(), e);
+                sendError(exchange, 500, "InternalError", String.valueOf(e));
+            }
+        }
+    }
+
+    private void route(HttpExchange exchange) throws Exception {
+        String method = exchange.getRequestMethod();
+        String path = decode(exchange.getRequestURI().getRawPath().substring(1));
+        int slash = path.indexOf('/');
+        String bucket = slash < 0 ? path : path.substring(0, slash);
+        String key = slash < 0 ? "" : path.substring(slash + 1);
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        if (bucket.isEmpty()) {
+            throw new S3Exception(400, "InvalidRequest", "only path style requests are supported");
+        }
+
+        if (key.isEmpty()) {
+            switch (method) {
+                case "GET" -> {
+                    if (query.containsKey("versions")) {
+                        listObjectVersions(exchange, bucket, query);
+                    } else if (query.containsKey("uploads")) {
+                        listMultipartUploads(exchange, bucket, query);
+                    } else {
+                        listObjectsV2(exchange, bucket, query);
+                    }
+                }
+                case "POST" -> {
+                    if (!query.containsKey("delete")) {
+                        throw new S3Exception(400, "InvalidRequest", "unsupported bucket POST");
+                    }
+                    deleteObjects(exchange, bucket);
+                }
+                case "PUT", "HEAD" -> {
+                    count(method.equals("PUT") ? "CreateBucket" : "HeadBucket");
+                    bucketIndex(bucket);
+                    sendEmpty(exchange, 200);
+                }
+                default -> throw new S3Exception(405, "MethodNotAllowed", method);
+            }
+            return;
+        }
+        switch (method) {
+            case "PUT" -> {
+                if (query.containsKey("partNumber")) {
+                    uploadPart(exchange, query);
+                } else if (exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+                    copyObject(exchange, bucket, key);
+                } else {
+                    putObject(exchange, bucket, key);
+                }
+            }
+            case "GET" -> {
+                if (query.containsKey("uploadId")) {
+                    listParts(exchange, query);
+                } else {
+                    getObject(exchange, bucket, key, query, true);
+                }
+            }
+            case "HEAD" -> getObject(exchange, bucket, key, query, false);
+            case "POST" -> {
+                if (query.containsKey("uploads")) {
+                    createMultipartUpload(exchange, bucket, key);
+                } else if (query.containsKey("uploadId")) {
+                    completeMultipartUpload(exchange, query);
+                } else {
+                    throw new S3Exception(400, "InvalidRequest", "unsupported object POST");
+                }
+            }
+            case "DELETE" -> {
+                if (query.containsKey("uploadId")) {
+                    abortMultipartUpload(exchange, query);
+                } else {
+                    deleteObject(exchange, bucket, key, query);
+                }
+            }
+            default -> throw new S3Exception(405, "MethodNotAllowed", method);
+        }
+    }
+
+    /*
+     * Objects
+     */
+
+    private void putObject(HttpExchange exchange, String bucket, String key) throws IOException {
+        count("PutObject");
+        StoredData stored = storeBody(exchange);
+        ObjectVersion version = addVersion(bucket, key, stored);
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", quote(version.eTag()));
+        headers.set("x-amz-version-id", version.versionId());
+        headers.set("x-amz-checksum-sha256", version.sha256Base64());
+        sendEmpty(exchange, 200);
+    }
+
+    private void copyObject(HttpExchange exchange, String bucket, String key) throws IOException {
+        count("CopyObject");
+        String copySource = decode(exchange.getRequestHeaders().getFirst("x-amz-copy-source"));
+        String sourceVersionId = null;
+        int versionIdIndex = copySource.indexOf("?versionId=");
+        if (versionIdIndex >= 0) {
+            sourceVersionId = copySource.substring(versionIdIndex + "?versionId=".length());
+            copySource = copySource.substring(0, versionIdIndex);
+        }
+        if (copySource.startsWith("/")) {
+            copySource = copySource.substring(1);
+        }
+        int slash = copySource.indexOf('/');
+        ObjectVersion source = findVersion(copySource.substring(0, slash), copySource.substring(slash + 1), sourceVersionId);
+        Path data = newDataFile();
+        Files.copy(source.data(), data);
+        ObjectVersion version = addVersion(bucket, key, new StoredData(data, source.size(), source.eTag(), source.sha256Base64()));
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("x-amz-version-id", version.versionId());
+        headers.set("x-amz-copy-source-version-id", source.versionId());
+        sendXml(exchange, 200, "<CopyObjectResult xmlns=\"" + XML_NAMESPACE + "\">" +
+                element("LastModified", xmlDate(version.lastModified())) +
+                element("ETag", quote(version.eTag())) +
+                element("ChecksumSHA256", version.sha256Base64()) +
+                "</CopyObjectResult>");
+    }
+
+    private void getObject(HttpExchange exchange, String bucket, String key, Map<String, String> query, boolean withBody) throws IOException {
+        count(withBody ? "GetObject" : "HeadObject");
+        ObjectVersion version = findVersion(bucket, key, query.get("versionId"));
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", quote(version.eTag()));
+        headers.set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(version.lastModified().atZone(ZoneOffset.UTC)));
+        headers.set("x-amz-version-id", version.versionId());
+        headers.set("Content-Type", "application/octet-stream");
+        if ("ENABLED".equals(exchange.getRequestHeaders().getFirst("x-amz-checksum-mode")) && !version.sha256Base64().contains("-")) {
+            headers.set("x-amz-checksum-sha256", version.sha256Base64());
+        }
+        if (!withBody) {
+            headers.set("Content-Length", String.valueOf(version.size()));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, version.size() == 0 ? -1 : version.size());
+        try (InputStream in = Files.newInputStream(version.data()); OutputStream out = exchange.getResponseBody()) {
+            copy(in, out);
+        }
+    }
+
+    private void deleteObject(HttpExchange exchange, String bucket, String key, Map<String, String> query) throws IOException {
+        count("DeleteObject");
+        DeleteResult deleteResult = delete(bucket, key, query.get("versionId"));
+        if (deleteResult.deleteMarkerVersionId() != null) {
+            exchange.getResponseHeaders().set("x-amz-delete-marker", "true");
+            exchange.getResponseHeaders().set("x-amz-version-id", deleteResult.deleteMarkerVersionId());
+        }
+        sendEmpty(exchange, 204);
+    }
+
+    private void deleteObjects(HttpExchange exchange, String bucket) throws Exception {
+        count("DeleteObjects");
+        Document document = parseXml(exchange);
+        NodeList objects = document.getElementsByTagName("Object");
+        boolean quiet = "true".equals(childText(document.getDocumentElement(), "Quiet"));
+        StringBuilder result = new StringBuilder("<DeleteResult xmlns=\"" + XML_NAMESPACE + "\">");
+        for (int i = 0; i < objects.getLength(); i++) {
+            Element object = (Element) objects.item(i);
+            String key = childText(object, "Key");
+            String versionId = childText(object, "VersionId");
+            DeleteResult deleteResult = delete(bucket, key, versionId);
+            if (quiet) {
+                continue;
+            }
+            result.append("<Deleted>").append(element("Key", key));
+            if (versionId != null) {
+                result.append(element("VersionId", versionId));
+            }
+            if (deleteResult.deleteMarkerVersionId() != null) {
+                result.append(element("DeleteMarker", "true"))
+                        .append(element("DeleteMarkerVersionId", deleteResult.deleteMarkerVersionId()));
+            }
+            result.append("</Deleted>");
+        }
+        result.append("</DeleteResult>");
+        sendXml(exchange, 200, result.toString());
+    }
+
+    private record DeleteResult(String deleteMarkerVersionId) {
+    }
+
+    private synchronized DeleteResult delete(String bucket, String key, String versionId) throws IOException {
+        NavigableMap<String, List<ObjectVersion>> index = bucketIndex(bucket);
+        if (versionId != null) {
+            // permanently deleting a specific version
+            List<ObjectVersion> versions = index.get(key);
+            if (versions != null) {
+                for (ObjectVersion version : List.copyOf(versions)) {
+                    if (version.versionId().equals(versionId)) {
+                        versions.remove(version);
+                        if (version.data() != null) {
+                            Files.deleteIfExists(version.data());
+                        }
+                    }
+                }
+                if (versions.isEmpty()) {
+                    index.remove(key);
+                }
+            }
+            return new DeleteResult(null);
+        }
+        ObjectVersion deleteMarker = new ObjectVersion(newVersionId(), true, null, 0, "", "", now());
+        index.computeIfAbsent(key, k -> new ArrayList<>()).add(0, deleteMarker);
+        return new DeleteResult(deleteMarker.versionId());
+    }
+
+    private synchronized ObjectVersion addVersion(String bucket, String key, StoredData stored) {
+        ObjectVersion version = new ObjectVersion(newVersionId(), false, stored.data(), stored.size(),
+                stored.eTag(), stored.sha256Base64(), now());
+        bucketIndex(bucket).computeIfAbsent(key, k -> new ArrayList<>()).add(0, version);
+        return version;
+    }
+
+    private synchronized ObjectVersion findVersion(String bucket, String key, String versionId) {
+        List<ObjectVersion> versions = bucketIndex(bucket).get(key);
+        if (versions == null || versions.isEmpty()) {
+            throw new S3Exception(404, "NoSuchKey", "The specified key does not exist: " + key);
+        }
+        if (versionId == null) {
+            ObjectVersion latest = versions.get(0);
+            if (latest.deleteMarker()) {
+                throw new S3Exception(404, "NoSuchKey", "The specified key does not exist: " + key);
+            }
+            return latest;
+        }
+        for (ObjectVersion version : versions) {
+            if (version.versionId().equals(versionId)) {
+                if (version.deleteMarker()) {
+                    throw new S3Exception(405, "MethodNotAllowed", "The specified version is a delete marker");
+                }
+                return version;
+            }
+        }
+        throw new S3Exception(404, "NoSuchVersion", "The specified version does not exist: " + versionId);
+    }
+
+    /*
+     * Listing
+     */
+
+    private void listObjectsV2(HttpExchange exchange, String bucket, Map<String, String> query) throws IOException {
+        count("ListObjectsV2");
+        String prefix = query.getOrDefault("prefix", "");
+        String delimiter = emptyToNull(query.get("delimiter"));
+        int maxKeys = maxKeys(query.get("max-keys"));
+        String marker = query.get("continuation-token") != null ?
+                new String(Base64.getUrlDecoder().decode(query.get("continuation-token")), StandardCharsets.UTF_8) :
+                query.get("start-after");
+        boolean urlEncoding = "url".equals(query.get("encoding-type"));
+
+        StringBuilder contents = new StringBuilder();
+        List<String> commonPrefixes = new ArrayList<>();
+        int keyCount = 0;
+        String lastReturned = null;
+        String lastCommonPrefix = null;
+        boolean truncated = false;
+        synchronized (this) {
+            for (Map.Entry<String, List<ObjectVersion>> entry : keysAfter(bucket, prefix, marker, delimiter)) {
+                String key = entry.getKey();
+                ObjectVersion latest = entry.getValue().get(0);
+                String commonPrefix = commonPrefix(key, prefix, delimiter);
+                if (commonPrefix == null && latest.deleteMarker()) {
+                    continue;
+                }
+                if (commonPrefix != null) {
+                    if (commonPrefix.equals(lastCommonPrefix)) {
+                        continue;
+                    }
+                    lastCommonPrefix = commonPrefix;
+                    // a common prefix is only listed if it contains at least one object which is not deleted
+                    if (!hasLiveObject(bucket, commonPrefix)) {
+                        continue;
+                    }
+                }
+                if (keyCount == maxKeys) {
+                    truncated = true;
+                    break;
+                }
+                if (commonPrefix != null) {
+                    commonPrefixes.add(commonPrefix);
+                    lastReturned = commonPrefix;
+                } else {
+                    contents.append("<Contents>")
+                            .append(element("Key", encodeKey(key, urlEncoding)))
+                            .append(element("LastModified", xmlDate(latest.lastModified())))
+                            .append(element("ETag", quote(latest.eTag())))
+                            .append(element("Size", String.valueOf(latest.size())))
+                            .append(element("StorageClass", "STANDARD"))
+                            .append("</Contents>");
+                    lastReturned = key;
+                }
+                keyCount++;
+            }
+        }
+        StringBuilder result = new StringBuilder("<ListBucketResult xmlns=\"" + XML_NAMESPACE + "\">")
+                .append(element("Name", bucket))
+                .append(element("Prefix", encodeKey(prefix, urlEncoding)))
+                .append(element("KeyCount", String.valueOf(keyCount)))
+                .append(element("MaxKeys", String.valueOf(maxKeys)))
+                .append(element("IsTruncated", String.valueOf(truncated)));
+        if (delimiter != null) {
+            result.append(element("Delimiter", encodeKey(delimiter, urlEncoding)));
+        }
+        if (urlEncoding) {
+            result.append(element("EncodingType", "url"));
+        }
+        if (query.get("continuation-token") != null) {
+            result.append(element("ContinuationToken", query.get("continuation-token")));
+        }
+        if (truncated) {
+            result.append(element("NextContinuationToken",
+                    Base64.getUrlEncoder().encodeToString(lastReturned.getBytes(StandardCharsets.UTF_8))));
+        }
+        result.append(contents);
+        for (String commonPrefix : commonPrefixes) {
+            result.append("<CommonPrefixes>").append(element("Prefix", encodeKey(commonPrefix, urlEncoding))).append("</CommonPrefixes>");
+        }
+        result.append("</ListBucketResult>");
+        sendXml(exchange, 200, result.toString());
+    }
+
+    private void listObjectVersions(HttpExchange exchange, String bucket, Map<String, String> query) throws IOException {
+        count("ListObjectVersions");
+        String prefix = query.getOrDefault("prefix", "");
+        String delimiter = emptyToNull(query.get("delimiter"));
+        int maxKeys = maxKeys(query.get("max-keys"));
+        String keyMarker = emptyToNull(query.get("key-marker"));
+        String versionIdMarker = emptyToNull(query.get("version-id-marker"));
+        boolean urlEncoding = "url".equals(query.get("encoding-type"));
+
+        StringBuilder entries = new StringBuilder();
+        List<String> commonPrefixes = new ArrayList<>();
+        int count = 0;
+        String nextKeyMarker = null;
+        String nextVersionIdMarker = null;
+        boolean truncated = false;
+        synchronized (this) {
+            // a version id marker means the listing stopped in the middle of the versions of the key marker
+            List<Map.Entry<String, List<ObjectVersion>>> keys = new ArrayList<>();
+            if (keyMarker != null && versionIdMarker != null && bucketIndex(bucket).containsKey(keyMarker)) {
+                keys.add(Map.entry(keyMarker, bucketIndex(bucket).get(keyMarker)));
+            }
+            keys.addAll(keysAfter(bucket, prefix, keyMarker, delimiter));
+            String lastCommonPrefix = null;
+            outer:
+            for (Map.Entry<String, List<ObjectVersion>> entry : keys) {
+                String key = entry.getKey();
+                String commonPrefix = commonPrefix(key, prefix, delimiter);
+                if (commonPrefix != null) {
+                    if (commonPrefix.equals(lastCommonPrefix)) {
+                        continue;
+                    }
+                    if (count == maxKeys) {
+                        truncated = true;
+                        break;
+                    }
+                    commonPrefixes.add(commonPrefix);
+                    lastCommonPrefix = commonPrefix;
+                    nextKeyMarker = commonPrefix;
+                    nextVersionIdMarker = null;
+                    count++;
+                    continue;
+                }
+                List<ObjectVersion> versions = entry.getValue();
+                boolean skipping = key.equals(keyMarker) && versionIdMarker != null;
+                for (int i = 0; i < versions.size(); i++) {
+                    ObjectVersion version = versions.get(i);
+                    if (skipping) {
+                        if (version.versionId().equals(versionIdMarker)) {
+                            skipping = false;
+                        }
+                        continue;
+                    }
+                    if (count == maxKeys) {
+                        truncated = true;
+                        break outer;
+                    }
+                    String isLatest = String.valueOf(i == 0);
+                    if (version.deleteMarker()) {
+                        entries.append("<DeleteMarker>")
+                                .append(element("Key", encodeKey(key, urlEncoding)))
+                                .append(element("VersionId", version.versionId()))
+                                .append(element("IsLatest", isLatest))
+                                .append(element("LastModified", xmlDate(version.lastModified())))
+                                .append("</DeleteMarker>");
+                    } else {
+                        entries.append("<Version>")
+                                .append(element("Key", encodeKey(key, urlEncoding)))
+                                .append(element("VersionId", version.versionId()))
+                                .append(element("IsLatest", isLatest))
+                                .append(element("LastModified", xmlDate(version.lastModified())))
+                                .append(element("ETag", quote(version.eTag())))
+                                .append(element("Size", String.valueOf(version.size())))
+                                .append(element("StorageClass", "STANDARD"))
+                                .append("</Version>");
+                    }
+                    nextKeyMarker = key;
+                    nextVersionIdMarker = version.versionId();
+                    count++;
+                }
+            }
+        }
+        StringBuilder result = new StringBuilder("<ListVersionsResult xmlns=\"" + XML_NAMESPACE + "\">")
+                .append(element("Name", bucket))
+                .append(element("Prefix", encodeKey(prefix, urlEncoding)))
+                .append(element("MaxKeys", String.valueOf(maxKeys)))
+                .append(element("IsTruncated", String.valueOf(truncated)));
+        if (keyMarker != null) {
+            result.append(element("KeyMarker", encodeKey(keyMarker, urlEncoding)));
+        }
+        if (delimiter != null) {
+            result.append(element("Delimiter", encodeKey(delimiter, urlEncoding)));
+        }
+        if (urlEncoding) {
+            result.append(element("EncodingType", "url"));
+        }
+        if (truncated) {
+            result.append(element("NextKeyMarker", encodeKey(nextKeyMarker, urlEncoding)));
+            if (nextVersionIdMarker != null) {
+                result.append(element("NextVersionIdMarker", nextVersionIdMarker));
+            }
+        }
+        result.append(entries);
+        for (String commonPrefix : commonPrefixes) {
+            result.append("<CommonPrefixes>").append(element("Prefix", encodeKey(commonPrefix, urlEncoding))).append("</CommonPrefixes>");
+        }
+        result.append("</ListVersionsResult>");
+        sendXml(exchange, 200, result.toString());
+    }
+
+    /**
+     * All keys with the prefix after the marker. A marker which is a common prefix skips all keys in it.
+     */
+    private List<Map.Entry<String, List<ObjectVersion>>> keysAfter(String bucket, String prefix, String marker, String delimiter) {
+        List<Map.Entry<String, List<ObjectVersion>>> result = new ArrayList<>();
+        NavigableMap<String, List<ObjectVersion>> index = bucketIndex(bucket);
+        NavigableMap<String, List<ObjectVersion>> candidates = marker != null && marker.compareTo(prefix) >= 0 ?
+                index.tailMap(marker, false) : index.tailMap(prefix, true);
+        boolean markerIsCommonPrefix = marker != null && delimiter != null && marker.endsWith(delimiter);
+        for (Map.Entry<String, List<ObjectVersion>> entry : candidates.entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            if (markerIsCommonPrefix && key.startsWith(marker)) {
+                continue;
+            }
+            if (!entry.getValue().isEmpty()) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    private boolean hasLiveObject(String bucket, String keyPrefix) {
+        for (Map.Entry<String, List<ObjectVersion>> entry : bucketIndex(bucket).tailMap(keyPrefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(keyPrefix)) {
+                return false;
+            }
+            if (!entry.getValue().get(0).deleteMarker()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String commonPrefix(String key, String prefix, String delimiter) {
+        if (delimiter == null) {
+            return null;
+        }
+        int index = key.indexOf(delimiter, prefix.length());
+        if (index < 0) {
+            return null;
+        }
+        return key.substring(0, index + delimiter.length());
+    }
+
+    /*
+     * Multipart uploads
+     */
+
+    private void createMultipartUpload(HttpExchange exchange, String bucket, String key) throws IOException {
+        count("CreateMultipartUpload");
+        String uploadId = UUID.randomUUID().toString();
+        multipartUploads.put(uploadId, new MultipartUpload(bucket, key, uploadId, now(), new TreeMap<>()));
+        sendXml(exchange, 200, "<InitiateMultipartUploadResult xmlns=\"" + XML_NAMESPACE + "\">" +
+                element("Bucket", bucket) +
+                element("Key", key) +
+                element("UploadId", uploadId) +
+                "</InitiateMultipartUploadResult>");
+    }
+
+    private void uploadPart(HttpExchange exchange, Map<String, String> query) throws IOException {
+        count("UploadPart");
+        MultipartUpload upload = multipartUpload(query.get("uploadId"));
+        int partNumber = Integer.parseInt(query.get("partNumber"));
+        StoredData stored = storeBody(exchange);
+        Part previous;
+        synchronized (upload) {
+            previous = upload.parts().put(partNumber,
+                    new Part(partNumber, stored.data(), stored.size(), stored.eTag(), stored.sha256Base64(), now()));
+        }
+        if (previous != null) {
+            Files.deleteIfExists(previous.data());
+        }
+        exchange.getResponseHeaders().set("ETag", quote(stored.eTag()));
+        exchange.getResponseHeaders().set("x-amz-checksum-sha256", stored.sha256Base64());
+        sendEmpty(exchange, 200);
+    }
+
+    private void listParts(HttpExchange exchange, Map<String, String> query) throws IOException {
+        count("ListParts");
+        MultipartUpload upload = multipartUpload(query.get("uploadId"));
+        StringBuilder result = new StringBuilder("<ListPartsResult xmlns=\"" + XML_NAMESPACE + "\">")
+                .append(element("Bucket", upload.bucket()))
+                .append(element("Key", upload.key()))
+                .append(element("UploadId", upload.uploadId()))
+                .append(element("IsTruncated", "false"));
+        synchronized (upload) {
+            for (Part part : upload.parts().values()) {
+                result.append("<Part>")
+                        .append(element("PartNumber", String.valueOf(part.partNumber())))
+                        .append(element("LastModified", xmlDate(part.lastModified())))
+                        .append(element("ETag", quote(part.eTag())))
+                        .append(element("Size", String.valueOf(part.size())))
+                        .append(element("ChecksumSHA256", part.sha256Base64()))
+                        .append("</Part>");
+            }
+        }
+        result.append("</ListPartsResult>");
+        sendXml(exchange, 200, result.toString());
+    }
+
+    private void listMultipartUploads(HttpExchange exchange, String bucket, Map<String, String> query) throws IOException {
+        count("ListMultipartUploads");
+        String prefix = query.getOrDefault("prefix", "");
+        boolean urlEncoding = "url".equals(query.get("encoding-type"));
+        StringBuilder result = new StringBuilder("<ListMultipartUploadsResult xmlns=\"" + XML_NAMESPACE + "\">")
+                .append(element("Bucket", bucket))
+                .append(element("Prefix", encodeKey(prefix, urlEncoding)))
+                .append(element("IsTruncated", "false"));
+        if (urlEncoding) {
+            result.append(element("EncodingType", "url"));
+        }
+        for (MultipartUpload upload : multipartUploads.values()) {
+            if (upload.bucket().equals(bucket) && upload.key().startsWith(prefix)) {
+                result.append("<Upload>")
+                        .append(element("Key", encodeKey(upload.key(), urlEncoding)))
+                        .append(element("UploadId", upload.uploadId()))
+                        .append(element("Initiated", xmlDate(upload.initiated())))
+                        .append(element("StorageClass", "STANDARD"))
+                        .append("</Upload>");
+            }
+        }
+        result.append("</ListMultipartUploadsResult>");
+        sendXml(exchange, 200, result.toString());
+    }
+
+    private void completeMultipartUpload(HttpExchange exchange, Map<String, String> query) throws Exception {
+        count("CompleteMultipartUpload");
+        MultipartUpload upload = multipartUpload(query.get("uploadId"));
+        Document document = parseXml(exchange);
+        NodeList partElements = document.getElementsByTagName("Part");
+        Path data = newDataFile();
+        MessageDigest md5OfMd5s = MessageDigest.getInstance("MD5");
+        MessageDigest sha256OfSha256s = MessageDigest.getInstance("SHA-256");
+        long size = 0;
+        int previousPartNumber = 0;
+        try (OutputStream out = Files.newOutputStream(data)) {
+            for (int i = 0; i < partElements.getLength(); i++) {
+                Element partElement = (Element) partElements.item(i);
+                int partNumber = Integer.parseInt(childText(partElement, "PartNumber"));
+                if (partNumber <= previousPartNumber) {
+                    throw new S3Exception(400, "InvalidPartOrder", "parts must be in ascending order");
+                }
+                previousPartNumber = partNumber;
+                Part part;
+                synchronized (upload) {
+                    part = upload.parts().get(partNumber);
+                }
+                String eTag = childText(partElement, "ETag");
+                if (part == null || (eTag != null && !unquote(eTag).equals(part.eTag()))) {
+                    throw new S3Exception(400, "InvalidPart", "unknown part " + partNumber);
+                }
+                String checksum = childText(partElement, "ChecksumSHA256");
+                if (checksum != null && !checksum.equals(part.sha256Base64())) {
+                    throw new S3Exception(400, "InvalidPart", "checksum mismatch for part " + partNumber);
+                }
+                Files.copy(part.data(), out);
+                size += part.size();
+                md5OfMd5s.update(HexFormat.of().parseHex(part.eTag()));
+                sha256OfSha256s.update(Base64.getDecoder().decode(part.sha256Base64()));
+            }
+        }
+        int partCount = partElements.getLength();
+        String eTag = HexFormat.of().formatHex(md5OfMd5s.digest()) + "-" + partCount;
+        String sha256 = Base64.getEncoder().encodeToString(sha256OfSha256s.digest()) + "-" + partCount;
+        ObjectVersion version = addVersion(upload.bucket(), upload.key(), new StoredData(data, size, eTag, sha256));
+        removeMultipartUpload(upload.uploadId());
+        exchange.getResponseHeaders().set("x-amz-version-id", version.versionId());
+        sendXml(exchange, 200, "<CompleteMultipartUploadResult xmlns=\"" + XML_NAMESPACE + "\">" +
+                element("Location", endpoint() + "/" + upload.bucket() + "/" + upload.key()) +
+                element("Bucket", upload.bucket()) +
+                element("Key", upload.key()) +
+                element("ETag", quote(eTag)) +
+                element("ChecksumSHA256", sha256) +
+                "</CompleteMultipartUploadResult>");
+    }
+
+    private void abortMultipartUpload(HttpExchange exchange, Map<String, String> query) throws IOException {
+        count("AbortMultipartUpload");
+        multipartUpload(query.get("uploadId"));
+        removeMultipartUpload(query.get("uploadId"));
+        sendEmpty(exchange, 204);
+    }
+
+    private MultipartUpload multipartUpload(String uploadId) {
+        MultipartUpload upload = uploadId == null ? null : multipartUploads.get(uploadId);
+        if (upload == null) {
+            throw new S3Exception(404, "NoSuchUpload", "The specified upload does not exist: " + uploadId);
+        }
+        return upload;
+    }
+
+    private void removeMultipartUpload(String uploadId) throws IOException {
+        MultipartUpload upload = multipartUploads.remove(uploadId);
+        if (upload == null) {
+            return;
+        }
+        synchronized (upload) {
+            for (Part part : upload.parts().values()) {
+                Files.deleteIfExists(part.data());
+            }
+        }
+    }
+
+    /*
+     * Request and response bodies
+     */
+
+    /**
+     * Stores the request body in a new file while calculating MD5 and SHA256 and verifies a SHA256 checksum
+     * sent by the client, either as header or as trailer of an aws-chunked body.
+     */
+    private StoredData storeBody(HttpExchange exchange) throws IOException {
+        Headers requestHeaders = exchange.getRequestHeaders();
+        MessageDigest md5;
+        MessageDigest sha256;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        InputStream body = exchange.getRequestBody();
+        AwsChunkedInputStream chunkedBody = null;
+        String contentSha256 = requestHeaders.getFirst("x-amz-content-sha256");
+        String contentEncoding = requestHeaders.getFirst("Content-Encoding");
+        if ((contentSha256 != null && contentSha256.startsWith("STREAMING-")) ||
+                (contentEncoding != null && contentEncoding.contains("aws-chunked"))) {
+            chunkedBody = new AwsChunkedInputStream(body);
+            body = chunkedBody;
+        }
+        Path data = newDataFile();
+        long size = 0;
+        try (OutputStream out = Files.newOutputStream(data)) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                throttle.acquire(read);
+                md5.update(buffer, 0, read);
+                sha256.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+                size += read;
+            }
+        }
+        String sha256Base64 = Base64.getEncoder().encodeToString(sha256.digest());
+        String expectedSha256 = requestHeaders.getFirst("x-amz-checksum-sha256");
+        if (expectedSha256 == null && chunkedBody != null) {
+            expectedSha256 = chunkedBody.trailers.get("x-amz-checksum-sha256");
+        }
+        if (expectedSha256 != null && !expectedSha256.equals(sha256Base64)) {
+            Files.deleteIfExists(data);
+            throw new S3Exception(400, "BadDigest", "The SHA256 you specified did not match the calculated checksum");
+        }
+        return new StoredData(data, size, HexFormat.of().formatHex(md5.digest()), sha256Base64);
+    }
+
+    private void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            throttle.acquire(read);
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private Document parseXml(HttpExchange exchange) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            copy(in, bytes);
+        }
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static String childText(Element parent, String name) {
+        NodeList children = parent.getElementsByTagName(name);
+        if (children.getLength() == 0) {
+            return null;
+        }
+        return children.item(0).getTextContent();
+    }
+
+    private void sendXml(HttpExchange exchange, int status, String xml) throws IOException {
+        byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void sendEmpty(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private void sendError(HttpExchange exchange, int status, String code, String message) throws IOException {
+        String xml = "<Error>" + element("Code", code) + element("Message", message) +
+                element("RequestId", UUID.randomUUID().toString()) + "</Error>";
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        sendXml(exchange, status, xml);
+    }
+
+    /*
+     * Helpers
+     */
+
+    private synchronized NavigableMap<String, List<ObjectVersion>> bucketIndex(String bucket) {
+        return buckets.computeIfAbsent(bucket, b -> new TreeMap<>());
+    }
+
+    private Path newDataFile() {
+        return storageFolder.resolve(UUID.randomUUID() + ".data");
+    }
+
+    private void count(String operation) {
+        requestCounts.computeIfAbsent(operation, o -> new LongAdder()).increment();
+    }
+
+    private static String newVersionId() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    private static Instant now() {
+        return Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    }
+
+    private static int maxKeys(String maxKeys) {
+        if (maxKeys == null || maxKeys.isEmpty()) {
+            return DEFAULT_MAX_KEYS;
+        }
+        return Math.min(Integer.parseInt(maxKeys), DEFAULT_MAX_KEYS);
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> result = new LinkedHashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return result;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals < 0) {
+                result.put(decode(parameter), "");
+            } else {
+                result.put(decode(parameter.substring(0, equals)), decode(parameter.substring(equals + 1)));
+            }
+        }
+        return result;
+    }
+
+    private static String decode(String value) {
+        // '+' is not a space in S3 paths and keys
+        return URLDecoder.decode(value.replace("+", "%2B"), StandardCharsets.UTF_8);
+    }
+
+    private static String encodeKey(String key, boolean urlEncoding) {
+        if (!urlEncoding) {
+            return key;
+        }
+        return URLEncoder.encode(key, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    private static String element(String name, String value) {
+        return "<" + name + ">" + escapeXml(value) + "</" + name + ">";
+    }
+
+    private static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String xmlDate(Instant instant) {
+        return DateTimeFormatter.ISO_INSTANT.format(instant);
+    }
+
+    private static String quote(String eTag) {
+        return "\"" + eTag + "\"";
+    }
+
+    private static String unquote(String eTag) {
+        return eTag.replace("\"", "").replace("&quot;", "");
+    }
+
+    /**
+     * Decodes the aws-chunked content encoding, which the SDK uses for streaming (signed) payloads:
+     * {@code <hex-size>[;chunk-signature=...]\r\n<data>\r\n ... 0[;...]\r\n[trailers\r\n]\r\n}
+     */
+    private static class AwsChunkedInputStream extends InputStream {
+
+        private final InputStream in;
+        private final Map<String, String> trailers = new LinkedHashMap<>();
+        private long remainingInChunk;
+        private boolean firstChunk = true;
+        private boolean finished;
+
+        AwsChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (finished) {
+                return -1;
+            }
+            if (remainingInChunk == 0) {
+                if (!firstChunk) {
+                    readLine();
+                }
+                firstChunk = false;
+                String header = readLine();
+                int extension = header.indexOf(';');
+                remainingInChunk = Long.parseLong((extension < 0 ? header : header.substring(0, extension)).trim(), 16);
+                if (remainingInChunk == 0) {
+                    String trailer;
+                    while (!(trailer = readLine()).isEmpty()) {
+                        int colon = trailer.indexOf(':');
+                        trailers.put(trailer.substring(0, colon).trim().toLowerCase(), trailer.substring(colon + 1).trim());
+                    }
+                    finished = true;
+                    return -1;
+                }
+            }
+            int read = in.read(buffer, offset, (int) Math.min(length, remainingInChunk));
+            if (read == -1) {
+                throw new IOException("unexpected end of aws-chunked body");
+            }
+            remainingInChunk -= read;
+            return read;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+    }
+
+    /**
+     * A simple token bucket shared by all bodies to simulate a limited link.
+     */
+    private static class Throttle {
+        private long bytesPerSecond;
+        private long nextFreeNanos;
+
+        synchronized void setBytesPerSecond(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.nextFreeNanos = System.nanoTime();
+        }
+
+        void acquire(int bytes) {
+            long sleepUntil;
+            synchronized (this) {
+                if (bytesPerSecond <= 0) {
+                    return;
+                }
+                long now = System.nanoTime();
+                long start = Math.max(now, nextFreeNanos);
+                nextFreeNanos = start + bytes * 1_000_000_000L / bytesPerSecond;
+                sleepUntil = nextFreeNanos;
+            }
+            long sleepNanos = sleepUntil - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package spb;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetadataCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void fileNamesAndMetadataVersionsSurviveReopening() throws IOException {
+        Path file = tempDir.resolve("bucket").resolve("backup").resolve("metadata");
+        try (MetadataCache metadataCache = MetadataCache.open(file)) {
+            metadataCache.addFileName("hash-1", "folder/file, with comma.txt");
+            metadataCache.addMetadata("hash-1", "version-1", "1,Zm9sZGVy,sha,5,content-version");
+        }
+        // a version entry without metadata and an entry of an unknown kind
+        Files.writeString(file, "version,hash-2,version-3\nunknown,hash-3\n", StandardOpenOption.APPEND);
+
+        try (MetadataCache metadataCache = MetadataCache.open(file)) {
+            assertThat(metadataCache.fileName("hash-1")).isEqualTo("folder/file, with comma.txt");
+            assertThat(metadataCache.metadata("hash-1", "version-1")).isEqualTo("1,Zm9sZGVy,sha,5,content-version");
+            assertThat(metadataCache.metadata("hash-1", "version-2")).isNull();
+            assertThat(metadataCache.metadata("hash-2", "version-3")).isNull();
+            assertThat(metadataCache.fileName("hash-2")).isNull();
+            metadataCache.addFileName("hash-2", "other.txt");
+        }
+
+        try (MetadataCache metadataCache = MetadataCache.open(file)) {
+            assertThat(metadataCache.fileName("hash-2")).isEqualTo("other.txt");
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package spb;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetricsExporterTest {
+
+    @Test
+    void writesPrometheusTextFormat() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("command", "backup");
+        report.put("start", "2023-01-01T00:00:00Z");
+        report.put("durationMillis", 1500L);
+        report.put("phases", Map.of("upload", Map.of("count", 2L, "busyMillis", 3000L, "wallMillis", 2000L, "bytes", 1024L)));
+        report.put("s3Operations", Map.of("PutObject", Map.of("count", 2L, "failed", 0L, "retries", 1L,
+                "latencyMillis", Map.of("p50", 100L, "p95", 200L, "p99", 200L, "max", 150L))));
+
+        String text = MetricsExporter.toPrometheusText(MetricsExporter.samples(report));
+
+        assertThat(text).contains("# TYPE spb_run_duration_seconds gauge\nspb_run_duration_seconds{command=\"backup\"} 1.5\n");
+        assertThat(text).contains("spb_run_start_timestamp_seconds{command=\"backup\"} 1672531200\n");
+        assertThat(text).contains("spb_phase_busy_seconds{command=\"backup\",phase=\"upload\"} 3\n");
+        assertThat(text).contains("spb_phase_bytes{command=\"backup\",phase=\"upload\"} 1024\n");
+        assertThat(text).contains("spb_s3_retries{command=\"backup\",operation=\"PutObject\"} 1\n");
+        assertThat(text).contains("spb_s3_latency_seconds{command=\"backup\",operation=\"PutObject\",quantile=\"0.95\"} 0.2\n");
+        assertThat(text).contains("spb_s3_latency_seconds{command=\"backup\",operation=\"PutObject\",quantile=\"1\"} 0.15\n");
+    }
+}
@@ -0,0 +1,31 @@
+package spb;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ProgressReporterTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    void reportsRateAndRemainingTime() {
+        ProgressReporter progressReporter = new ProgressReporter("backup 'test'", 4, 400 * MB, () -> 3);
+        progressReporter.fileStarted();
+        progressReporter.fileStarted();
+        progressReporter.hashed(100 * MB);
+        progressReporter.encrypted(100 * MB);
+        progressReporter.transferred(50 * MB);
+        progressReporter.fileFinished(100 * MB);
+
+        String line = progressReporter.progressLine(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+
+        assertThat(line).startsWith("backup 'test': 1/4 files, 100mb/400mb (25%)");
+        assertThat(line).contains("| hashed 100mb, encrypted 100mb, transferred 50mb |");
+        assertThat(line).containsPattern("\\| (49|50)\\.\\d MB/s \\|");
+        assertThat(line).contains("| ETA 0:00:03 |");
+        assertThat(line).endsWith("| in flight: 1 files, 3 S3 requests");
+    }
+}
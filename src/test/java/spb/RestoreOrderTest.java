@@ -0,0 +1,52 @@
+package spb;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RestoreOrderTest {
+
+    private static final List<Impl.FileMetadata> FILES = List.of(
+            file("photos/2020/big.jpg", 5_000_000),
+            file("config/app.yaml", 200),
+            file("a-b.txt", 10),
+            file("photos/small.jpg", 1_000),
+            file("db/dump.sql", 80_000));
+
+    private static Impl.FileMetadata file(String fileName, long size) {
+        return new Impl.FileMetadata(fileName, "sha", "backup/hash/", size, Instant.EPOCH, "v1", "backup/hash/content", null);
+    }
+
+    private static List<String> fileNames(List<Impl.FileMetadata> files) {
+        return files.stream().map(Impl.FileMetadata::fileName).toList();
+    }
+
+    @Test
+    void listingKeepsTheOrder() {
+        assertThat(RestoreOrder.LISTING.sort(FILES, List.of())).isEqualTo(FILES);
+    }
+
+    @Test
+    void smallFilesFirst() {
+        assertThat(fileNames(RestoreOrder.SIZE.sort(FILES, List.of())))
+                .containsExactly("a-b.txt", "config/app.yaml", "photos/small.jpg", "db/dump.sql", "photos/2020/big.jpg");
+    }
+
+    @Test
+    void subdirectoriesFollowTheirParent() {
+        List<Impl.FileMetadata> files = List.of(file("a-c/x", 1), file("a/b/y", 1), file("a/z", 1), file("root", 1));
+        assertThat(fileNames(RestoreOrder.DIRECTORY.sort(files, List.of())))
+                .containsExactly("root", "a/z", "a/b/y", "a-c/x");
+    }
+
+    @Test
+    void priorityPatternsFirstInTheirOrder() {
+        List<Pattern> priorityPatterns = List.of(Pattern.compile("config/.*"), Pattern.compile("db/.*"));
+        assertThat(fileNames(RestoreOrder.SIZE.sort(FILES, priorityPatterns)))
+                .containsExactly("config/app.yaml", "db/dump.sql", "a-b.txt", "photos/small.jpg", "photos/2020/big.jpg");
+    }
+}
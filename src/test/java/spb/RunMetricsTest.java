@@ -0,0 +1,38 @@
+package spb;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RunMetricsTest {
+
+    @Test
+    void latencyPercentilesAreBucketUpperBounds() {
+        RunMetrics.LatencyHistogram histogram = new RunMetrics.LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(Duration.ofMillis(i * 3));
+        }
+
+        assertThat(histogram.percentileMillis(0.5)).isEqualTo(200);
+        assertThat(histogram.percentileMillis(0.99)).isEqualTo(300);
+        assertThat(histogram.toMap()).containsEntry("max", 300L);
+    }
+
+    @Test
+    void writesValidJson() {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("name", "a \"quoted\"\nvalue");
+        value.put("count", 3L);
+        value.put("ratio", 0.5);
+        value.put("list", List.of(true, "x"));
+        value.put("missing", null);
+
+        assertThat(RunMetrics.toJson(value))
+                .isEqualTo("{\"name\":\"a \\\"quoted\\\"\\nvalue\",\"count\":3,\"ratio\":0.5,\"list\":[true,\"x\"],\"missing\":null}");
+    }
+}
@@ -0,0 +1,181 @@
+package spb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static spb.Util.bytesToHumanReadableFormat;
+
+/**
+ * Startup benchmark of the spb executable (native image or the start script of {@code installDist}) for short,
+ * cron triggered runs: measures the time from the process start to the first S3 request, the total time and the
+ * peak RSS of {@code spb list} and {@code spb backup --dry-run} against the {@link LocalS3Server}.
+ * <p>
+ * Arguments are key=value pairs, all optional:
+ * <pre>
+ * executable=build/native/nativeCompile/spb   the native image or build/install/spb/bin/spb
+ * runs=5                                      runs per command, the median is reported
+ * files=200                                   files in the backed up folder
+ * </pre>
+ * Run it via {@code ./gradlew nativeCompile startupBenchmark} or
+ * {@code ./gradlew installDist startupBenchmark --args="executable=build/install/spb/bin/spb"}.
+ * The peak RSS is sampled from {@code /proc} and only available on Linux.
+ */
+public class StartupBenchmark {
+
+    private static final long RSS_SAMPLE_MILLIS = 5;
+
+    record RunResult(long firstRequestMillis, long totalMillis, long peakRssBytes) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> arguments = new LinkedHashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("expected key=value but got " + arg);
+            }
+            arguments.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        Path executable = Path.of(arguments.getOrDefault("executable", "build/native/nativeCompile/spb")).toAbsolutePath();
+        int runs = Integer.parseInt(arguments.getOrDefault("runs", "5"));
+        int files = Integer.parseInt(arguments.getOrDefault("files", "200"));
+        if (!Files.isExecutable(executable)) {
+            throw new IllegalArgumentException(executable + " doesn't exist ... run nativeCompile or installDist first");
+        }
+
+        Path root = Files.createTempDirectory("spb-startup");
+        try (LocalS3Server server = new LocalS3Server(root.resolve("s3"))) {
+            Path home = Files.createDirectories(root.resolve("home"));
+            Path folder = Files.createDirectories(root.resolve("data"));
+            generateFolder(folder, files);
+            writeConfig(home, folder, server);
+            // the backed up files are listed by both commands
+            run(executable, home, server, List.of("backup"));
+
+            Map<String, List<RunResult>> results = new LinkedHashMap<>();
+            for (List<String> command : List.of(List.of("list"), List.of("backup", "--dry-run"))) {
+                List<RunResult> commandResults = new ArrayList<>();
+                for (int i = 0; i < runs; i++) {
+                    commandResults.add(run(executable, home, server, command));
+                }
+                results.put(String.join(" ", command), commandResults);
+            }
+            printResults(executable, results);
+        } finally {
+            Util.deleteFolderRecursively(root);
+        }
+    }
+
+    private static void generateFolder(Path folder, int files) throws IOException {
+        Random random = new Random(42);
+        byte[] content = new byte[4 * 1024];
+        for (int i = 0; i < files; i++) {
+            Path file = folder.resolve("dir-" + (i % 10)).resolve("file-" + i + ".bin");
+            Files.createDirectories(file.getParent());
+            random.nextBytes(content);
+            Files.write(file, content);
+        }
+    }
+
+    private static void writeConfig(Path home, Path folder, LocalS3Server server) throws IOException {
+        byte[] secretKey = new byte[32];
+        new SecureRandom().nextBytes(secretKey);
+        String config = String.join("\n",
+                "bucket.name=spb-startup",
+                "secret.key=" + Base64.getEncoder().encodeToString(secretKey),
+                "s3.endpoint=" + server.endpoint(),
+                "s3.region=us-east-1",
+                "backup.1.name=startup",
+                "backup.1.folder=" + folder,
+                "metrics.report=false",
+                "");
+        Files.writeString(home.resolve("spb.config"), config, StandardCharsets.UTF_8);
+    }
+
+    private static RunResult run(Path executable, Path home, LocalS3Server server, List<String> command) throws Exception {
+        // spb reads the config from user.home: the start script passes JAVA_OPTS to the JVM, a native image reads -D arguments
+        boolean isScript = isScript(executable);
+        List<String> processCommand = new ArrayList<>();
+        processCommand.add(executable.toString());
+        if (!isScript) {
+            processCommand.add("-Duser.home=" + home);
+        }
+        processCommand.addAll(command);
+        ProcessBuilder processBuilder = new ProcessBuilder(processCommand)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        processBuilder.environment().put("AWS_ACCESS_KEY_ID", "spb-local");
+        processBuilder.environment().put("AWS_SECRET_ACCESS_KEY", "spb-local");
+        if (isScript) {
+            processBuilder.environment().put("JAVA_OPTS", "-Duser.home=" + home);
+        }
+
+        server.resetRequestCounts();
+        long start = System.nanoTime();
+        Process process = processBuilder.start();
+        long peakRssBytes = 0;
+        while (!process.waitFor(RSS_SAMPLE_MILLIS, TimeUnit.MILLISECONDS)) {
+            peakRssBytes = Math.max(peakRssBytes, peakRssBytes(process.pid()));
+        }
+        long end = System.nanoTime();
+        if (process.exitValue() != 0) {
+            throw new IllegalStateException(String.join(" ", command) + " failed with exit code " + process.exitValue());
+        }
+        long firstRequestNanos = server.firstRequestNanos();
+        long firstRequestMillis = firstRequestNanos == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(firstRequestNanos - start);
+        return new RunResult(firstRequestMillis, TimeUnit.NANOSECONDS.toMillis(end - start), peakRssBytes);
+    }
+
+    private static boolean isScript(Path executable) throws IOException {
+        byte[] start = new byte[2];
+        try (InputStream in = Files.newInputStream(executable)) {
+            return in.read(start) == 2 && start[0] == '#' && start[1] == '!';
+        }
+    }
+
+    /**
+     * The peak resident set size (VmHWM) of the process so far, 0 if unknown.
+     */
+    private static long peakRssBytes(long pid) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", Long.toString(pid), "status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not Linux or the process just exited
+        }
+        return 0;
+    }
+
+    private static void printResults(Path executable, Map<String, List<RunResult>> results) {
+        System.out.println(Util.DIVIDER);
+        System.out.println(executable);
+        System.out.printf("%-18s %18s %12s %12s%n", "command", "first request ms", "total ms", "peak RSS");
+        results.forEach((command, runs) -> System.out.printf("%-18s %18d %12d %12s%n",
+                command,
+                median(runs.stream().mapToLong(RunResult::firstRequestMillis).toArray()),
+                median(runs.stream().mapToLong(RunResult::totalMillis).toArray()),
+                bytesToHumanReadableFormat(median(runs.stream().mapToLong(RunResult::peakRssBytes).toArray()))));
+        System.out.println(Util.DIVIDER);
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -1,6 +1,9 @@
 package spb;
 
+import java.net.URI;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.UUID;
 
 public class TestConfigProvider implements ConfigProvider {
 
@@ -8,16 +11,29 @@ public class TestConfigProvider implements ConfigProvider {
     private final String bucketName;
     private final List<FolderToBackupConfig> foldersBackupConfig;
     private final int multiPartUploadLimitInBytes;
+    private final URI s3EndpointOverride;
+    private final Path checkpointFolder = Path.of(System.getProperty("java.io.tmpdir"), "spb-checkpoints-" + UUID.randomUUID());
+    private final Path cacheFolder = Path.of(System.getProperty("java.io.tmpdir"), "spb-cache-" + UUID.randomUUID());
 
     public TestConfigProvider(byte[] rawSecretKeyBytes,
                               String bucketName,
                               List<FolderToBackupConfig> foldersBackupConfig,
                               int multiPartUploadLimitInBytes
+    ) {
+        this(rawSecretKeyBytes, bucketName, foldersBackupConfig, multiPartUploadLimitInBytes, null);
+    }
+
+    public TestConfigProvider(byte[] rawSecretKeyBytes,
+                              String bucketName,
+                              List<FolderToBackupConfig> foldersBackupConfig,
+                              int multiPartUploadLimitInBytes,
+                              URI s3EndpointOverride
     ) {
         this.rawSecretKeyBytes = rawSecretKeyBytes;
         this.bucketName = bucketName;
         this.foldersBackupConfig = foldersBackupConfig;
         this.multiPartUploadLimitInBytes = multiPartUploadLimitInBytes;
+        this.s3EndpointOverride = s3EndpointOverride;
     }
 
     @Override
@@ -39,4 +55,19 @@ public class TestConfigProvider implements ConfigProvider {
     public int getMultiPartUploadLimitInBytes() {
         return multiPartUploadLimitInBytes;
     }
+
+    @Override
+    public URI getS3EndpointOverride() {
+        return s3EndpointOverride;
+    }
+
+    @Override
+    public Path getCheckpointFolder() {
+        return checkpointFolder;
+    }
+
+    @Override
+    public Path getCacheFolder() {
+        return cacheFolder;
+    }
 }
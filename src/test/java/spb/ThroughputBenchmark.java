@@ -0,0 +1,244 @@
+package spb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static spb.Util.bytesToHumanReadableFormat;
+
+/**
+ * End-to-end throughput benchmark of backup, list, verify and restore against the {@link LocalS3Server}.
+ * <p>
+ * It generates synthetic folders (many small files, a few large files or a mix of both) and reports
+ * files/s, MB/s and the peak heap usage for every phase. Latency and bandwidth of the local S3 server
+ * can be limited to simulate a real link.
+ * <p>
+ * Arguments are key=value pairs, all optional:
+ * <pre>
+ * scenarios=small,large,mixed   the scenarios to run
+ * latencyMs=0                   latency added to every S3 request
+ * bandwidthMbit=0               bandwidth limit of the S3 link in MBit/s, 0 means unlimited
+ * output=build/reports/throughput/results.csv
+ * </pre>
+ * Run it via {@code ./gradlew throughputBenchmark --args="latencyMs=20 bandwidthMbit=100"}.
+ */
+public class ThroughputBenchmark {
+
+    private static final int KB = 1024;
+    private static final int MB = 1024 * 1024;
+    private static final int MULTIPART_UPLOAD_LIMIT = 16 * MB;
+
+    record Scenario(String name, int smallFilesCount, int smallFileSize, int largeFilesCount, int largeFileSize) {
+    }
+
+    record PhaseResult(String scenario, String phase, long files, long bytes, long millis, long peakHeapBytes,
+                       Map<String, Long> requestCounts) {
+
+        double filesPerSecond() {
+            return files * 1000.0 / Math.max(millis, 1);
+        }
+
+        double mbPerSecond() {
+            return bytes * 1000.0 / MB / Math.max(millis, 1);
+        }
+    }
+
+    static final Map<String, Scenario> SCENARIOS = Map.of(
+            "small", new Scenario("small", 5_000, 4 * KB, 0, 0),
+            "large", new Scenario("large", 0, 0, 4, 128 * MB),
+            "mixed", new Scenario("mixed", 2_000, 16 * KB, 2, 64 * MB)
+    );
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> arguments = new LinkedHashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("expected key=value but got " + arg);
+            }
+            arguments.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        List<String> scenarioNames = List.of(arguments.getOrDefault("scenarios", "small,large,mixed").split(","));
+        long latencyMs = Long.parseLong(arguments.getOrDefault("latencyMs", "0"));
+        long bandwidthMbit = Long.parseLong(arguments.getOrDefault("bandwidthMbit", "0"));
+        Path output = Path.of(arguments.getOrDefault("output", "build/reports/throughput/results.csv"));
+
+        Path root = Files.createTempDirectory("spb-throughput");
+        LocalS3Server.configureDummyAwsEnvironment();
+        List<PhaseResult> results = new ArrayList<>();
+        try (LocalS3Server server = new LocalS3Server(root.resolve("s3"))) {
+            server.setLatencyMillis(latencyMs);
+            server.setBandwidthBytesPerSecond(bandwidthMbit * 1_000_000 / 8);
+            for (String scenarioName : scenarioNames) {
+                Scenario scenario = SCENARIOS.get(scenarioName.trim());
+                if (scenario == null) {
+                    throw new IllegalArgumentException("unknown scenario " + scenarioName + ", expected one of " + SCENARIOS.keySet());
+                }
+                results.addAll(runScenario(scenario, root, server));
+            }
+        } finally {
+            Util.deleteFolderRecursively(root);
+        }
+        printResults(results, latencyMs, bandwidthMbit);
+        writeCsv(results, output);
+    }
+
+    private static List<PhaseResult> runScenario(Scenario scenario, Path root, LocalS3Server server) throws Exception {
+        Path folder = Files.createDirectories(root.resolve("data-" + scenario.name()));
+        long totalBytes = generateFolder(scenario, folder);
+        long totalFiles = scenario.smallFilesCount() + scenario.largeFilesCount();
+        System.out.println("generated " + totalFiles + " files with " + bytesToHumanReadableFormat(totalBytes) + " for scenario " + scenario.name());
+
+        byte[] secretKey = new byte[32];
+        new SecureRandom().nextBytes(secretKey);
+        String backupName = "throughput-" + scenario.name();
+        TestConfigProvider configProvider = new TestConfigProvider(secretKey,
+                "spb-throughput",
+                List.of(new FolderToBackupConfig(folder.toString(), backupName)),
+                MULTIPART_UPLOAD_LIMIT,
+                server.endpoint());
+        Impl impl = new Impl(configProvider);
+        Path restoreFolder = root.resolve("restore-" + scenario.name());
+        List<PhaseResult> results = new ArrayList<>();
+        try {
+            results.add(measure(scenario, "backup", totalFiles, totalBytes, server, () -> impl.backupFolders(false)));
+            results.add(measure(scenario, "list", totalFiles, 0, server, impl::allBackedUpFiles));
+            results.add(measure(scenario, "verify", totalFiles, totalBytes, server, () -> {
+                impl.verifyAllBackup();
+                return null;
+            }));
+            results.add(measure(scenario, "restore", totalFiles, totalBytes, server, () -> {
+                impl.restoreFullBackup(backupName, restoreFolder);
+                return null;
+            }));
+        } finally {
+            impl.shutdown();
+            Util.deleteFolderRecursively(folder);
+            if (Files.exists(restoreFolder)) {
+                Util.deleteFolderRecursively(restoreFolder);
+            }
+        }
+        return results;
+    }
+
+    interface Phase {
+        Object run() throws Exception;
+    }
+
+    private static PhaseResult measure(Scenario scenario, String phase, long files, long bytes, LocalS3Server server, Phase action) throws Exception {
+        System.gc();
+        server.resetRequestCounts();
+        HeapSampler heapSampler = new HeapSampler();
+        heapSampler.start();
+        long start = System.nanoTime();
+        try {
+            action.run();
+        } finally {
+            heapSampler.stopSampling();
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        PhaseResult result = new PhaseResult(scenario.name(), phase, files, bytes, millis, heapSampler.peak.get(), server.requestCounts());
+        System.out.printf("%s %s finished after %dms%n", scenario.name(), phase, millis);
+        return result;
+    }
+
+    private static long generateFolder(Scenario scenario, Path folder) throws IOException {
+        Random random = new Random(scenario.name().hashCode());
+        long totalBytes = 0;
+        byte[] smallFile = new byte[scenario.smallFileSize()];
+        for (int i = 0; i < scenario.smallFilesCount(); i++) {
+            Path file = folder.resolve("dir-" + (i % 50)).resolve("sub-" + (i % 7)).resolve("file-" + i + ".bin");
+            Files.createDirectories(file.getParent());
+            random.nextBytes(smallFile);
+            Files.write(file, smallFile);
+            totalBytes += smallFile.length;
+        }
+        byte[] chunk = new byte[MB];
+        for (int i = 0; i < scenario.largeFilesCount(); i++) {
+            Path file = folder.resolve("large-" + i + ".bin");
+            try (OutputStream out = Files.newOutputStream(file)) {
+                for (long written = 0; written < scenario.largeFileSize(); written += chunk.length) {
+                    random.nextBytes(chunk);
+                    int length = (int) Math.min(chunk.length, scenario.largeFileSize() - written);
+                    out.write(chunk, 0, length);
+                }
+            }
+            totalBytes += scenario.largeFileSize();
+        }
+        return totalBytes;
+    }
+
+    private static void printResults(List<PhaseResult> results, long latencyMs, long bandwidthMbit) {
+        System.out.println(Util.DIVIDER);
+        System.out.printf("latency %dms, bandwidth %s%n", latencyMs, bandwidthMbit == 0 ? "unlimited" : bandwidthMbit + " MBit/s");
+        System.out.printf("%-8s %-8s %10s %10s %10s %12s  %s%n", "scenario", "phase", "millis", "files/s", "MB/s", "peak heap", "requests");
+        for (PhaseResult result : results) {
+            System.out.printf("%-8s %-8s %10d %10.1f %10.1f %12s  %s%n",
+                    result.scenario(),
+                    result.phase(),
+                    result.millis(),
+                    result.filesPerSecond(),
+                    result.mbPerSecond(),
+                    bytesToHumanReadableFormat(result.peakHeapBytes()),
+                    result.requestCounts());
+        }
+        System.out.println(Util.DIVIDER);
+    }
+
+    private static void writeCsv(List<PhaseResult> results, Path output) throws IOException {
+        if (output.getParent() != null) {
+            Files.createDirectories(output.getParent());
+        }
+        StringBuilder csv = new StringBuilder("scenario,phase,files,bytes,millis,filesPerSecond,mbPerSecond,peakHeapBytes,requests\n");
+        for (PhaseResult result : results) {
+            long requests = result.requestCounts().values().stream().mapToLong(Long::longValue).sum();
+            csv.append(String.format("%s,%s,%d,%d,%d,%.2f,%.2f,%d,%d%n",
+                    result.scenario(), result.phase(), result.files(), result.bytes(), result.millis(),
+                    result.filesPerSecond(), result.mbPerSecond(), result.peakHeapBytes(), requests));
+        }
+        Files.writeString(output, csv);
+        System.out.println("results written to " + output.toAbsolutePath());
+    }
+
+    /**
+     * Samples the used heap. Includes the local S3 server, which streams all bodies through small buffers.
+     */
+    private static class HeapSampler extends Thread {
+        private final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        private final AtomicLong peak = new AtomicLong();
+        private volatile boolean sampling = true;
+
+        HeapSampler() {
+            setDaemon(true);
+            setName("heap-sampler");
+        }
+
+        @Override
+        public void run() {
+            while (sampling) {
+                peak.accumulateAndGet(memoryMXBean.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void stopSampling() throws InterruptedException {
+            sampling = false;
+            join();
+            peak.accumulateAndGet(memoryMXBean.getHeapMemoryUsage().getUsed(), Math::max);
+        }
+    }
+}
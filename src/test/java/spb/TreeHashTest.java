@@ -0,0 +1,100 @@
+package spb;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TreeHashTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    @Test
+    void rootHashIsTheSha256OfTheSegmentHashes() throws IOException, NoSuchAlgorithmException {
+        byte[] content = new byte[2500];
+        new Random(42).nextBytes(content);
+        Path file = tempDir.resolve("file");
+        Files.write(file, content);
+
+        AtomicLong hashedBytes = new AtomicLong();
+        String treeHash = TreeHash.treeHashForFile(file, 1000, executor, hashedBytes::addAndGet);
+
+        MessageDigest rootDigest = MessageDigest.getInstance("SHA-256");
+        rootDigest.update(sha256(Arrays.copyOfRange(content, 0, 1000)));
+        rootDigest.update(sha256(Arrays.copyOfRange(content, 1000, 2000)));
+        rootDigest.update(sha256(Arrays.copyOfRange(content, 2000, 2500)));
+        assertThat(treeHash).isEqualTo("tree-sha256:1000:" + Base64.getEncoder().encodeToString(rootDigest.digest()));
+        assertThat(hashedBytes.get()).isEqualTo(2500);
+        assertThat(TreeHash.isTreeHash(treeHash)).isTrue();
+        assertThat(TreeHash.segmentSize(treeHash)).isEqualTo(1000);
+    }
+
+    @Test
+    void emptyFileHasOneEmptySegment() throws IOException, NoSuchAlgorithmException {
+        Path file = Files.createFile(tempDir.resolve("empty"));
+
+        String treeHash = TreeHash.treeHashForFile(file, 1000, executor, bytes -> {
+        });
+
+        String expectedRoot = Base64.getEncoder().encodeToString(sha256(sha256(new byte[0])));
+        assertThat(treeHash).isEqualTo("tree-sha256:1000:" + expectedRoot);
+    }
+
+    @Test
+    void digestOfReadBytesEqualsTheHashOfTheFile() throws IOException, NoSuchAlgorithmException {
+        byte[] content = new byte[3000];
+        new Random(42).nextBytes(content);
+        Path file = tempDir.resolve("file");
+        Files.write(file, content);
+        String treeHash = TreeHash.treeHashForFile(file, 1000, executor, bytes -> {
+        });
+
+        ContentDigest contentDigest = ContentDigest.like(treeHash);
+        // reads which don't end at the segment boundaries
+        for (int offset = 0; offset < content.length; offset += 700) {
+            contentDigest.update(content, offset, Math.min(700, content.length - offset));
+        }
+        assertThat(contentDigest.hash()).isEqualTo(treeHash);
+
+        String sha256 = Util.sha256Base64ForFile(file);
+        ContentDigest sha256Digest = ContentDigest.like(sha256);
+        sha256Digest.update(content, 0, content.length);
+        assertThat(sha256Digest.hash()).isEqualTo(sha256);
+
+        String emptyTreeHash = TreeHash.treeHashForFile(Files.createFile(tempDir.resolve("empty")), 1000, executor, bytes -> {
+        });
+        assertThat(ContentDigest.like(emptyTreeHash).hash()).isEqualTo(emptyTreeHash);
+    }
+
+    @Test
+    void sha256IsNoTreeHash() throws IOException, NoSuchAlgorithmException {
+        Path file = Files.writeString(tempDir.resolve("file"), "content");
+
+        assertThat(TreeHash.isTreeHash(Util.sha256Base64ForFile(file))).isFalse();
+    }
+
+    private static byte[] sha256(byte[] bytes) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-256").digest(bytes);
+    }
+}